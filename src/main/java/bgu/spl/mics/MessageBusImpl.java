@@ -78,8 +78,8 @@ public class MessageBusImpl implements MessageBus {
 		Future<T> future = new Future<>(); // Create a Future for the event result
 		eFutures.put(e, future); // Associate the event with the future
 
-		MicroService target = subscribers.poll(); // Get the next MicroService
 		synchronized (subscribers) { // Ensure round-robin selection is thread-safe
+			MicroService target = subscribers.poll(); // Get the next MicroService, under the lock so a concurrent sender never finds the queue empty
 			if (target != null) {
 				subscribers.offer(target); // Add it back to the end of the queue
 				BlockingQueue<Message> queue = MSqueues.get(target); // Get its message queue
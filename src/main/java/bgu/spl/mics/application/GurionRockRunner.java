@@ -2,6 +2,7 @@ package bgu.spl.mics.application;
 import bgu.spl.mics.application.objects.*;
 import bgu.spl.mics.application.services.*;
 import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
@@ -44,12 +45,14 @@ public class GurionRockRunner {
             ArrayList<Thread> serviceThreads = new ArrayList<>();
             Thread timeServiceThread = null;
     
-            // Create a CountDownLatch with count equal to number of services
-            int numberOfServices = 4; // Camera, LiDar, Pose, and FusionSlam services
-            CountDownLatch servicesLatch = new CountDownLatch(numberOfServices);
-    
             // Step 2: Initialize objects and services
-            StatisticalFolder stats = new StatisticalFolder();
+            // pose history: the last "PoseHistoryWindow" ticks stay in memory, older ones go to
+            // "PoseHistorySpill" (a temporary file if it is not set)
+            int poseWindow = config.has("PoseHistoryWindow") ? config.get("PoseHistoryWindow").getAsInt()
+                                                             : PoseStore.DEFAULT_WINDOW;
+            String poseSpill = config.has("PoseHistorySpill")
+                    ? new File(configFile.getParent(), config.get("PoseHistorySpill").getAsString()).getPath() : null;
+            StatisticalFolder stats = new StatisticalFolder(new PoseStore(poseWindow, poseSpill));
             List<Camera> cameras = initializeCameras(configPath, config, stats);
             List<LiDarWorkerTracker> lidarTrackers = initializeLiDars(configPath, config, stats);
             GPSIMU gpsimu = initializeGPSIMU(configPath, config, stats);
@@ -57,25 +60,151 @@ public class GurionRockRunner {
             // Create shared objects
             FusionSlam.initialize(stats, configFile.getParent());
             FusionSlam fusionSlam = FusionSlam.getInstance();
+            if (config.has("SpatialCellSize")) {
+                fusionSlam.setSpatialCellSize(config.get("SpatialCellSize").getAsDouble());
+            }
+            if (config.has("AssociationGate") || config.has("AssociationShapeTolerance")) {
+                double gate = config.has("AssociationGate") ? config.get("AssociationGate").getAsDouble()
+                                                            : FusionSlam.DEFAULT_ASSOCIATION_GATE;
+                double tolerance = config.has("AssociationShapeTolerance") ? config.get("AssociationShapeTolerance").getAsDouble()
+                                                                           : FusionSlam.DEFAULT_SHAPE_TOLERANCE;
+                fusionSlam.setAssociation(gate, tolerance);
+            }
+            if (config.has("Icp") && config.get("Icp").getAsBoolean()) {
+                // aligns re-observed landmarks with ICP instead of pairing their points by index
+                int iterations = config.has("IcpMaxIterations") ? config.get("IcpMaxIterations").getAsInt()
+                                                               : FusionSlam.DEFAULT_ICP_MAX_ITERATIONS;
+                double distance = config.has("IcpMaxDistance") ? config.get("IcpMaxDistance").getAsDouble()
+                                                           : FusionSlam.DEFAULT_ICP_MAX_DISTANCE;
+                fusionSlam.setIcp(new IcpAligner(iterations, distance));
+            }
+            if (config.has("VoxelSize")) {
+                fusionSlam.setVoxelSize(config.get("VoxelSize").getAsDouble());
+            }
+            if (config.has("PoseMaxGap") || config.has("PoseMaxExtrapolation")) {
+                int maxGap = config.has("PoseMaxGap") ? config.get("PoseMaxGap").getAsInt() : FusionSlam.DEFAULT_POSE_MAX_GAP;
+                int maxExtrapolation = config.has("PoseMaxExtrapolation") ? config.get("PoseMaxExtrapolation").getAsInt()
+                                                                          : FusionSlam.DEFAULT_POSE_MAX_EXTRAPOLATION;
+                fusionSlam.setPoseInterpolation(maxGap, maxExtrapolation);
+            }
+            if (config.has("LandmarkFusion")) {
+                // "average" (default) or "runningMean"
+                String fusion = config.get("LandmarkFusion").getAsString();
+                fusionSlam.setFusionMode(fusion.equalsIgnoreCase("runningMean") ? LandMark.FusionMode.RUNNING_MEAN
+                                                                                : LandMark.FusionMode.AVERAGE);
+            }
+            if (config.has("MapTileDir")) {
+                // tiled map: only "MapResidentTiles" tiles of "MapTileSize" stay in memory, the rest go to MapTileDir
+                File tileDir = new File(configFile.getParent(), config.get("MapTileDir").getAsString());
+                double tileSize = config.has("MapTileSize") ? config.get("MapTileSize").getAsDouble() : FusionSlam.DEFAULT_TILE_SIZE;
+                int residentTiles = config.has("MapResidentTiles") ? config.get("MapResidentTiles").getAsInt()
+                                                                   : FusionSlam.DEFAULT_RESIDENT_TILES;
+                fusionSlam.setTiledMap(new TiledMap(tileDir.getPath(), tileSize, residentTiles));
+            }
+            if (config.has("OccupancyGrid")) {
+                // PGM image of the map, written next to the output file
+                double resolution = config.has("OccupancyResolution") ? config.get("OccupancyResolution").getAsDouble()
+                                                                   : FusionSlam.DEFAULT_OCCUPANCY_RESOLUTION;
+                fusionSlam.setOccupancyGrid(new OccupancyGrid(resolution), config.get("OccupancyGrid").getAsString());
+            }
+            if (config.has("PoseGraph") && config.get("PoseGraph").getAsBoolean()) {
+                // corrects the drift of the GPS/IMU poses with the re-observed landmarks
+                int optimizeEvery = config.has("PoseGraphOptimizeEvery") ? config.get("PoseGraphOptimizeEvery").getAsInt() : FusionSlam.DEFAULT_OPTIMIZE_EVERY;
+                fusionSlam.setPoseGraph(new PoseGraph(), optimizeEvery);
+            }
+            if (config.has("MapChangeLog")) {
+                // NDJSON log of landmark changes, next to the output file
+                File changeLogFile = new File(configFile.getParent(), config.get("MapChangeLog").getAsString());
+                fusionSlam.setChangeLog(new MapChangeLog(changeLogFile.getPath()));
+            }
+            int reorderSize = config.has("ReorderBufferSize") ? config.get("ReorderBufferSize").getAsInt()
+                                                              : FusionSlamService.DEFAULT_REORDER_SIZE;
+            int reorderLateness = config.has("ReorderMaxLateness") ? config.get("ReorderMaxLateness").getAsInt()
+                                                                   : FusionSlamService.DEFAULT_REORDER_LATENESS;
+            ReorderBuffer reorderBuffer = new ReorderBuffer(reorderSize, reorderLateness);
+            int startTick = 1;
+            SimulationSnapshot simulationSnapshot = null;
+            if (config.has("SimulationSnapshotDir")) {
+                // full snapshots of the simulation; "RestoreFromTick" restarts from one of them
+                File snapshotDir = new File(configFile.getParent(), config.get("SimulationSnapshotDir").getAsString());
+                simulationSnapshot = new SimulationSnapshot(snapshotDir.getPath(), cameras, lidarTrackers, gpsimu,
+                                                            stats, fusionSlam, reorderBuffer);
+                if (config.has("RestoreFromTick")) {
+                    startTick = simulationSnapshot.restore(config.get("RestoreFromTick").getAsInt()) + 1;
+                }
+            }
+            if (config.has("Checkpoint") && config.has("MapTileDir")) {
+                System.err.println("Checkpoints need map versions, which a tiled map does not keep. Not writing checkpoints.");
+            } else if (config.has("Checkpoint")) {
+                // incremental checkpoints; with "Resume": true the run continues from the last one
+                File checkpointFile = new File(configFile.getParent(), config.get("Checkpoint").getAsString());
+                int checkpointInterval = config.has("CheckpointInterval") ? config.get("CheckpointInterval").getAsInt()
+                                                                          : FusionSlam.DEFAULT_CHECKPOINT_INTERVAL;
+                //a restored simulation snapshot wins over the checkpoint
+                boolean resume = startTick == 1 && config.has("Resume") && config.get("Resume").getAsBoolean();
+                MapCheckpointer.Restored restored = resume ? MapCheckpointer.load(checkpointFile.getPath()) : null;
+                if (restored != null) {
+                    fusionSlam.restore(restored);
+                    // poses the checkpoint missed are taken from the recording
+                    for (Pose pose : gpsimu.getPoseList()) {
+                        if (pose.getTime() > restored.getLastPoseTick() && pose.getTime() <= restored.getTick()) {
+                            stats.updatePoses(pose);
+                        }
+                    }
+                    // the cameras go back to their first detection that is not in the map
+                    startTick = restored.rewindSensors(cameras, lidarTrackers, stats);
+                    gpsimu.setCurrentTick(startTick - 1);
+                    System.out.println("Resuming from the checkpoint at tick " + restored.getTick() + ", sensors restart at tick " + startTick);
+                } else if (resume) {
+                    System.out.println("No checkpoint to resume from, starting at tick 1");
+                }
+                MapCheckpointer checkpointer = new MapCheckpointer(checkpointFile.getPath(), restored);
+                if (restored != null) {
+                    checkpointer.setBaseline(fusionSlam.getSnapshot(), restored.getLastPoseTick());
+                }
+                fusionSlam.setCheckpointer(checkpointer, checkpointInterval);
+            }
     
+            // Every service counts the latch down once it has subscribed: one per camera and LiDAR, Pose and FusionSlam
+            CountDownLatch servicesLatch = new CountDownLatch(cameras.size() + lidarTrackers.size() + 2);
             // Initialize all services except TimeService with the latch
             initializeCameraServices(cameras, stats, serviceThreads, servicesLatch);
             initializeLiDarServices(lidarTrackers, stats, serviceThreads, servicesLatch);
             initializePoseService(gpsimu, serviceThreads, servicesLatch);
-            initializeFusionSlamService(fusionSlam, serviceThreads, servicesLatch);
+            // parallel transform stage, only when FusionWorkers asks for it
+            int fusionWorkers = config.has("FusionWorkers") ? config.get("FusionWorkers").getAsInt()
+                                                            : FusionSlam.DEFAULT_FUSION_WORKERS;
+            int fusionPipelineCapacity = config.has("FusionPipelineCapacity") ? config.get("FusionPipelineCapacity").getAsInt()
+                                                                              : FusionSlam.DEFAULT_FUSION_PIPELINE_CAPACITY;
+            initializeFusionSlamService(fusionSlam, fusionWorkers, fusionPipelineCapacity, reorderBuffer, serviceThreads, servicesLatch);
     
             // Initialize TimeService separately
             int tickTime = config.get("TickTime").getAsInt();
             int duration = config.get("Duration").getAsInt();
-            TimeService timeService = new TimeService(tickTime, duration);
+            TimeService timeService = new TimeService(tickTime, duration, startTick);
             timeServiceThread = new Thread(timeService);
+            int snapshotInterval = config.has("SimulationSnapshotInterval") ? config.get("SimulationSnapshotInterval").getAsInt() : 0;
+            if (simulationSnapshot != null && snapshotInterval > 0) {
+                SnapshotBarrier barrier = new SnapshotBarrier();
+                for (Thread thread : serviceThreads) {
+                    barrier.register(thread);
+                }
+                SimulationSnapshot snapshotWriter = simulationSnapshot;
+                timeService.setSnapshots(snapshotInterval, barrier, tick -> {
+                    try {
+                        snapshotWriter.write(tick);
+                    } catch (IOException e) {
+                        System.err.println("Failed to write the simulation snapshot at tick " + tick + ": " + e.getMessage());
+                    }
+                });
+            }
     
             // Step 3: Start all services except TimeService
             for (Thread thread : serviceThreads) {
                 thread.start();
             }
     
-            // Wait for all services to signal they're ready
+            // Wait for all services to signal they're ready (subscribed to everything)
             servicesLatch.await();
             System.out.println("All services initialized. Starting TimeService...");
             
@@ -122,6 +251,7 @@ public class GurionRockRunner {
 
             long endTime = System.currentTimeMillis();
             System.out.println("All threads completed or timed out after " + (endTime - startTime) + "ms");
+            stats.getPoses().close();
             System.out.println("System terminating...");
 
         } catch (Exception e) {
@@ -181,10 +311,8 @@ public class GurionRockRunner {
                 return cameras;
             }
     
-            // Load camera data once
-            JsonObject cameraData = loadCameraData(dataFile.getPath());
-            
-            // Initialize each camera
+            // Create the cameras first so the data file can be streamed straight into them
+            Map<String, List<Camera>> camerasByKey = new HashMap<>();
             for (JsonElement element : cameraConfigs) {
                 JsonObject cameraConfig = element.getAsJsonObject();
                 int id = cameraConfig.get("id").getAsInt();
@@ -192,18 +320,20 @@ public class GurionRockRunner {
                 String cameraKey = cameraConfig.get("camera_key").getAsString();
                 
                 Camera camera = new Camera(id, frequency, stats);
-                
-                // Get data for this specific camera
-                if (cameraData.has(cameraKey)) {
-                    JsonArray cameraEvents = cameraData.getAsJsonArray(cameraKey);
-                    List<StampedDetectedObjects> detectedObjects = parseCameraEvents(cameraEvents);
-                    camera.getDetectedObjectsList().addAll(detectedObjects);
-                    System.out.println("Successfully initialized camera " + id);
+                camerasByKey.computeIfAbsent(cameraKey, k -> new ArrayList<>()).add(camera);
+                cameras.add(camera);
+            }
+    
+            // Read the camera data once, one entry at a time
+            Set<String> loadedKeys = loadCameraData(dataFile.getPath(), camerasByKey);
+            for (Map.Entry<String, List<Camera>> entry : camerasByKey.entrySet()) {
+                if (loadedKeys.contains(entry.getKey())) {
+                    for (Camera camera : entry.getValue()) {
+                        System.out.println("Successfully initialized camera " + camera.getID());
+                    }
                 } else {
-                    System.err.println("No data found for camera key: " + cameraKey);
+                    System.err.println("No data found for camera key: " + entry.getKey());
                 }
-                
-                cameras.add(camera);
             }
     
             return cameras;
@@ -262,30 +392,69 @@ public class GurionRockRunner {
                 return new GPSIMU(0, new ArrayList<>(poses), stats);
             }
         
-            private static JsonObject loadCameraData(String filePath) throws IOException {
-                try (Reader reader = new FileReader(filePath)) {
-                    return JsonParser.parseReader(reader).getAsJsonObject();
+            //streams the camera data file and hands every entry directly to the cameras using its key.
+            //keys that no configured camera uses are skipped without being parsed.
+            //returns the keys that were found in the file.
+            private static Set<String> loadCameraData(String filePath, Map<String, List<Camera>> camerasByKey) throws IOException {
+                Set<String> loadedKeys = new HashSet<>();
+                try (JsonReader reader = new JsonReader(new BufferedReader(new FileReader(filePath)))) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String cameraKey = reader.nextName();
+                        List<Camera> targets = camerasByKey.get(cameraKey);
+                        if (targets == null) {
+                            reader.skipValue();
+                            continue;
+                        }
+                        loadedKeys.add(cameraKey);
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            StampedDetectedObjects event = readCameraEvent(reader);
+                            for (Camera camera : targets) {
+                                camera.addDetections(event);
+                            }
+                        }
+                        reader.endArray();
+                    }
+                    reader.endObject();
                 }
+                return loadedKeys;
             }
 
-            private static List<StampedDetectedObjects> parseCameraEvents(JsonArray events) {
-                List<StampedDetectedObjects> result = new ArrayList<>();
-                for (JsonElement event : events) {
-                    JsonObject eventObj = event.getAsJsonObject();
-                    int time = eventObj.get("time").getAsInt();
-                    ArrayList<DetectedObject> detectedObjects = new ArrayList<>();
-                    
-                    JsonArray objectsArray = eventObj.getAsJsonArray("detectedObjects");
-                    for (JsonElement objElement : objectsArray) {
-                        JsonObject detected = objElement.getAsJsonObject();
-                        String id = detected.get("id").getAsString();
-                        String description = detected.get("description").getAsString();
-                        detectedObjects.add(new DetectedObject(id, description));
+            private static StampedDetectedObjects readCameraEvent(JsonReader reader) throws IOException {
+                int time = 0;
+                ArrayList<DetectedObject> detectedObjects = new ArrayList<>();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if (field.equals("time")) {
+                        time = reader.nextInt();
+                    } else if (field.equals("detectedObjects")) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            String id = null;
+                            String description = null;
+                            reader.beginObject();
+                            while (reader.hasNext()) {
+                                String objField = reader.nextName();
+                                if (objField.equals("id")) {
+                                    id = reader.nextString();
+                                } else if (objField.equals("description")) {
+                                    description = reader.nextString();
+                                } else {
+                                    reader.skipValue();
+                                }
+                            }
+                            reader.endObject();
+                            detectedObjects.add(new DetectedObject(id, description));
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
                     }
-                    
-                    result.add(new StampedDetectedObjects(time, detectedObjects));
                 }
-                return result;
+                reader.endObject();
+                return new StampedDetectedObjects(time, detectedObjects);
             }
         
             private static List<Pose> loadPoseData(String filePath) throws IOException {
@@ -323,13 +492,8 @@ public class GurionRockRunner {
                                 ArrayList<Thread> threads, CountDownLatch latch) {
                 for (Camera camera : cameras) {
                     CameraService service = new CameraService(camera, stats);
-                    Thread thread = new Thread(new Runnable() {
-                        @Override
-                        public void run() {
-                            latch.countDown();
-                            service.run();
-                        }
-                    }, "CameraService-" + camera.getID());  // Named thread
+                    service.setReadySignal(latch);
+                    Thread thread = new Thread(service, "CameraService-" + camera.getID());  // Named thread
                     threads.add(thread);
                 }
             }
@@ -352,13 +516,8 @@ public class GurionRockRunner {
                               ArrayList<Thread> threads, CountDownLatch latch) {
                 for (LiDarWorkerTracker tracker : trackers) {
                     LiDarService service = new LiDarService(tracker, stats);
-                    Thread thread = new Thread(new Runnable() {
-                        @Override
-                        public void run() {
-                            latch.countDown();
-                            service.run();
-                        }
-                    }, "LiDarService-" + tracker.getID());  // Named thread
+                    service.setReadySignal(latch);
+                    Thread thread = new Thread(service, "LiDarService-" + tracker.getID());  // Named thread
                     threads.add(thread);
                 }
             }
@@ -376,13 +535,8 @@ public class GurionRockRunner {
 
             private static void initializePoseService(GPSIMU gpsimu, ArrayList<Thread> threads, CountDownLatch latch) {
                 PoseService service = new PoseService(gpsimu);
-                Thread thread = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        latch.countDown();
-                        service.run();
-                    }
-                }, "PoseService");  // Named thread
+                service.setReadySignal(latch);
+                Thread thread = new Thread(service, "PoseService");  // Named thread
                 threads.add(thread);
             }
         
@@ -398,16 +552,11 @@ public class GurionRockRunner {
             //     }));
             // }
 
-            private static void initializeFusionSlamService(FusionSlam fusionSlam, ArrayList<Thread> threads, 
-                                  CountDownLatch latch) {
-                FusionSlamService service = new FusionSlamService(fusionSlam);
-                Thread thread = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        latch.countDown();
-                        service.run();
-                    }
-                }, "FusionSlamService");  // Named thread
+            private static void initializeFusionSlamService(FusionSlam fusionSlam, int fusionWorkers, int pipelineCapacity,
+                                  ReorderBuffer reorderBuffer, ArrayList<Thread> threads, CountDownLatch latch) {
+                FusionSlamService service = new FusionSlamService(fusionSlam, fusionWorkers, pipelineCapacity, reorderBuffer);
+                service.setReadySignal(latch);
+                Thread thread = new Thread(service, "FusionSlamService");  // Named thread
                 threads.add(thread);
             }
         }
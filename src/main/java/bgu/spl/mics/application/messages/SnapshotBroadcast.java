@@ -0,0 +1,26 @@
+package bgu.spl.mics.application.messages;
+import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.application.objects.SnapshotBarrier;
+
+public class SnapshotBroadcast implements Broadcast {
+/**
+ * Sent by: TimeService, between two ticks when a simulation snapshot is due
+ * Used for: Letting every service finish the work of the last tick and check in at the barrier.
+ */
+    //fields
+    private final int tick;
+    private final SnapshotBarrier barrier;
+
+    public SnapshotBroadcast(int tick, SnapshotBarrier barrier) {
+        this.tick = tick;
+        this.barrier = barrier;
+    }
+
+    public int getTick() {
+        return tick;
+    }
+
+    public SnapshotBarrier getBarrier() {
+        return barrier;
+    }
+}
@@ -0,0 +1,81 @@
+package bgu.spl.mics.application.objects;
+
+/**
+ * Matches observations that have no stable ID to landmarks already in the map.
+ * A landmark is a candidate when its centroid is within the gate radius of the
+ * observation's centroid (found through the SpatialIndex, so the whole map is never scanned)
+ * and, if both have a description, the descriptions are the same.
+ * Candidates are scored by centroid distance and by how similar their spread is
+ * (RMS distance of the points from the centroid). The best candidate under the
+ * shape tolerance wins. No candidate means the observation is a new landmark.
+ */
+public class AssociationEngine {
+    private final double gateRadius;       //max distance between centroids
+    private final double shapeTolerance;   //max relative difference in spread
+    private static final double MIN_SPREAD = 0.05;   //spreads below this count as point-like
+
+    public AssociationEngine(double gateRadius, double shapeTolerance) {
+        if (gateRadius <= 0 || shapeTolerance < 0) {
+            throw new IllegalArgumentException("Association gate must be positive and tolerance non-negative.");
+        }
+        this.gateRadius = gateRadius;
+        this.shapeTolerance = shapeTolerance;
+    }
+
+    //returns the landmark the observation belongs to, or null if it is a new one
+    public LandMark associate(SpatialIndex index, PointBuffer observation, int description) {
+        if (observation.size() == 0) {
+            return null;
+        }
+        double cx = mean(observation.getXs(), observation.size());
+        double cy = mean(observation.getYs(), observation.size());
+        double spread = spread(observation.getXs(), observation.getYs(), observation.size(), cx, cy);
+
+        LandMark best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (LandMark candidate : index.queryRadius(cx, cy, gateRadius)) {
+            if (description != SymbolTable.NONE && candidate.getDescriptionHandle() != SymbolTable.NONE
+                    && candidate.getDescriptionHandle() != description) {
+                continue;
+            }
+            double shapeDifference = shapeDifference(spread, candidate.getSpread());
+            if (shapeDifference > shapeTolerance) {
+                continue;
+            }
+            double distance = Math.hypot(candidate.getCentroidX() - cx, candidate.getCentroidY() - cy);
+            double score = distance / gateRadius + shapeDifference;
+            if (score < bestScore) {
+                bestScore = score;
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    static double shapeDifference(double a, double b) {
+        double scale = Math.max(Math.max(a, b), MIN_SPREAD);
+        return Math.abs(a - b) / scale;
+    }
+
+    static double mean(double[] values, int size) {
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += values[i];
+        }
+        return sum / size;
+    }
+
+    //RMS distance of the points from (cx, cy)
+    static double spread(double[] xs, double[] ys, int size, double cx, double cy) {
+        if (size == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            double dx = xs[i] - cx;
+            double dy = ys[i] - cy;
+            sum += dx * dx + dy * dy;
+        }
+        return Math.sqrt(sum / size);
+    }
+}
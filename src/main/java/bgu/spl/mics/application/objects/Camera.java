@@ -1,5 +1,7 @@
 package bgu.spl.mics.application.objects;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 /**
  * Represents a camera sensor on the robot.
  * Responsible for detecting objects in the environment.
@@ -9,6 +11,8 @@ public class Camera {
     private final int frequency;
     private STATUS status;
     private ArrayList<StampedDetectedObjects> detectedObjectsList;   //store detected objects orginaized according yo yime stamp
+    private StampedDetectedObjects[] schedule;   //detections indexed by the tick they are due at (time + frequency)
+    private final HashMap<Integer, DetectedObject> errorTicks;   //detection time -> first ERROR object at that time
     private int lastProcessedTick = 0;
     private int totalDetections; 
     private int processedDetections = 0;
@@ -20,6 +24,8 @@ public class Camera {
         this.frequency = frequency;
         this.status = STATUS.UP; //camera starts in opreational state
         this.detectedObjectsList = new ArrayList<>();
+        this.schedule = new StampedDetectedObjects[0];
+        this.errorTicks = new HashMap<>();
         this.stats = stats;
         stats.registerSensor(getIDString());   //updading the number of active sensors in statistical folder
     }
@@ -29,6 +35,48 @@ public class Camera {
         for (StampedDetectedObjects obj : detectedObjectsList){
             this.totalDetections += obj.getDetectedObjects().size();
         }
+        buildSchedule();
+    }
+
+    //adds a detection to the camera and schedules it right away (used by the streaming loader)
+    public void addDetections(StampedDetectedObjects objects){
+        detectedObjectsList.add(objects);
+        totalDetections += objects.getDetectedObjects().size();
+        int dueTick = objects.getTime() + frequency;
+        if (dueTick < 0){
+            return;
+        }
+        if (dueTick >= schedule.length){
+            schedule = Arrays.copyOf(schedule, Math.max(dueTick + 1, schedule.length * 2));
+        }
+        if (schedule[dueTick] == null){
+            schedule[dueTick] = objects;
+            DetectedObject error = findError(objects);
+            if (error != null){
+                errorTicks.put(objects.getTime(), error);
+            }
+        }
+    }
+
+    //index the detections by the tick they are due at, so every tick is a single array lookup
+    private void buildSchedule(){
+        int lastDueTick = -1;
+        for (StampedDetectedObjects obj : detectedObjectsList){
+            lastDueTick = Math.max(lastDueTick, obj.getTime() + frequency);
+        }
+        schedule = new StampedDetectedObjects[lastDueTick + 1];
+        errorTicks.clear();
+        for (StampedDetectedObjects obj : detectedObjectsList){
+            int dueTick = obj.getTime() + frequency;
+            // if two entries share a time stamp the first one wins, like the old linear scan
+            if (dueTick >= 0 && schedule[dueTick] == null){
+                schedule[dueTick] = obj;
+                DetectedObject error = findError(obj);
+                if (error != null){
+                    errorTicks.put(obj.getTime(), error);
+                }
+            }
+        }
     }
  
     // gets Camera's ID
@@ -60,34 +108,36 @@ public class Camera {
         if (status == STATUS.ERROR) {
             return null;
         }
-        for (StampedDetectedObjects objects : detectedObjectsList) {
-            // Process data when:
-            // 1. Detection time plus frequency equals current time
-            // 2. Haven't processed this detection before
-            if (objects.getTime() + frequency == currentTick && 
-                objects.getTime() > lastProcessedTick) {    
-                
-                lastProcessedTick = objects.getTime();
-                processedDetections += objects.getDetectedObjects().size();
-
-                // Check if this was the last detection
-                if (processedDetections >= totalDetections) {
-                    status = STATUS.DOWN;
-                    stats.updateSensorStatus(getIDString(), status);   //updating the number of active sensors in statistical folder
-                    System.out.println("Camera " + id + " finished processing all detections. Status changed to DOWN");
-                }
-                if(isValid(objects)==null){
-                    stats.updateCameraLastFrame(this, objects);
-                    stats.incrementDetectedObjects(objects.getDetectedObjects().size());
-                }
-                return objects;
-            }
+        if (currentTick < 0 || currentTick >= schedule.length) {
+            return null;
         }
-        return null;
+        StampedDetectedObjects objects = schedule[currentTick];
+        // Process data when:
+        // 1. Detection time plus frequency equals current time (the schedule slot)
+        // 2. Haven't processed this detection before
+        if (objects == null || objects.getTime() <= lastProcessedTick) {
+            return null;
+        }
+        lastProcessedTick = objects.getTime();
+        processedDetections += objects.getDetectedObjects().size();
+
+        // Check if this was the last detection
+        if (processedDetections >= totalDetections) {
+            status = STATUS.DOWN;
+            stats.updateSensorStatus(getIDString(), status);   //updating the number of active sensors in statistical folder
+            System.out.println("Camera " + id + " finished processing all detections. Status changed to DOWN");
+        }
+        if(!errorTicks.containsKey(objects.getTime())){
+            stats.updateCameraLastFrame(this, objects);
+            stats.incrementDetectedObjects(objects.getDetectedObjects().size());
+        }
+        return objects;
     }
 
     public void clearDetections() {
         detectedObjectsList.clear();
+        schedule = new StampedDetectedObjects[0];
+        errorTicks.clear();
         lastProcessedTick = 0;
     }
 
@@ -100,17 +150,77 @@ public class Camera {
 
     //check if we encounter ERROR
     public DetectedObject isValid(StampedDetectedObjects stampedDetectedObjects){
-        if(stampedDetectedObjects != null){
-            for (DetectedObject o : stampedDetectedObjects.getDetectedObjects()) {
-                if(o.getId().equals("ERROR")){
-                    System.out.println("Camera: "+ getID()+ "recieved ERROR:" + o.getDescription());
-                    return o;
-                }
+        if(stampedDetectedObjects == null){
+            return null;
+        }
+        DetectedObject error;
+        int dueTick = stampedDetectedObjects.getTime() + frequency;
+        if (dueTick >= 0 && dueTick < schedule.length && schedule[dueTick] == stampedDetectedObjects) {
+            error = errorTicks.get(stampedDetectedObjects.getTime());   //already checked when the schedule was built
+        } else {
+            error = findError(stampedDetectedObjects);
+        }
+        if(error != null){
+            System.out.println("Camera: "+ getID()+ "recieved ERROR:" + error.getDescription());
+        }
+        return error;
+    }
+
+    private DetectedObject findError(StampedDetectedObjects stampedDetectedObjects){
+        for (DetectedObject o : stampedDetectedObjects.getDetectedObjects()) {
+            if(o.isError()){
+                return o;
             }
         }
         return null;
     }
     
+    //progress, saved and restored by SimulationSnapshot
+    int getLastProcessedTick(){
+        return lastProcessedTick;
+    }
+
+    int getProcessedDetections(){
+        return processedDetections;
+    }
+
+    void restoreProgress(STATUS status, int lastProcessedTick, int processedDetections){
+        this.status = status;
+        this.lastProcessedTick = lastProcessedTick;
+        this.processedDetections = processedDetections;
+    }
+
+    /**
+     * Rewinds the camera to just before its first detection that is not in the map, for a resume
+     * from a checkpoint. fused counts the detections in the map; the ones found are taken out.
+     * Returns the tick that detection is due at, or Integer.MAX_VALUE if all of them are in the map.
+     */
+    int rewind(FusedDetections fused){
+        int sentUpTo = 0;
+        int sent = 0;
+        int restartTick = Integer.MAX_VALUE;
+        for (int dueTick = 0; dueTick < schedule.length && restartTick == Integer.MAX_VALUE; dueTick++) {
+            StampedDetectedObjects objects = schedule[dueTick];
+            if (objects == null) {
+                continue;
+            }
+            boolean inMap = !errorTicks.containsKey(objects.getTime());
+            for (DetectedObject object : objects.getDetectedObjects()) {
+                inMap &= fused.remove(objects.getTime(), object.getIdHandle());
+            }
+            if (inMap) {
+                sentUpTo = objects.getTime();
+                sent += objects.getDetectedObjects().size();
+            } else {
+                restartTick = dueTick;
+            }
+        }
+        STATUS rewound = sent >= totalDetections ? STATUS.DOWN : STATUS.UP;
+        restoreProgress(rewound, sentUpTo, sent);
+        stats.updateSensorStatus(getIDString(), rewound);
+        return restartTick;
+    }
+
     //checkong through sstatistical folder if all the sensors are DOWN
     public boolean areAllSensorsDown(){ 
         return stats.areAllSensorsDown();
@@ -6,20 +6,20 @@ package bgu.spl.mics.application.objects;
  */
 public class CloudPoint {
     //fields
-    private final Double x;
-    private final Double y;
+    private final double x;
+    private final double y;
 
     //builder
-    public CloudPoint(Double x, Double y){
+    public CloudPoint(double x, double y){
         this.x = x;
         this.y = y;
     }
 
     //getter
-    public Double getCloudPointX(){
+    public double getCloudPointX(){
         return this.x;  
     }
-    public Double getCloudPointY(){
+    public double getCloudPointY(){
         return this.y;
     }
 
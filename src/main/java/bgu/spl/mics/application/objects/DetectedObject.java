@@ -3,27 +3,44 @@ package bgu.spl.mics.application.objects;
 /**
  * DetectedObject represents an object detected by the camera.
  * It contains information such as the object's ID and description.
+ * The ID and description are kept as SymbolTable handles.
  */
 public class DetectedObject {
-    private final String id;
-    private final String description;
+    private final int id;
+    private final int description;
 
     // constructor
     public DetectedObject(String id, String description){
+        this(SymbolTable.intern(id), SymbolTable.intern(description));
+    }
+
+    public DetectedObject(int id, int description){
         this.id = id;
         this.description = description;
     }
     
     public String getId(){
-        return id;
+        return SymbolTable.nameOf(id);
     }
 
     public String getDescription(){
+        return SymbolTable.nameOf(description);
+    }
+
+    public int getIdHandle(){
+        return id;
+    }
+
+    public int getDescriptionHandle(){
         return description;
     }
 
+    public boolean isError(){
+        return id == SymbolTable.ERROR;
+    }
+
     public String toString(){
-        return ("ID: "+id+", description: "+description);
+        return ("ID: "+getId()+", description: "+getDescription());
     }
 
 }
@@ -0,0 +1,99 @@
+package bgu.spl.mics.application.objects;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts detections (detection time and object ID) that were fused into the map.
+ * Checkpoints save the detections fused since the previous checkpoint, and a resume uses
+ * the merged counts to restart the cameras from their first detection that is not in the
+ * map yet, and to skip the detections sent again that are.
+ * Unlabelled objects share an ID, so an ID can be counted more than once at the same time.
+ * Not thread-safe.
+ */
+public class FusedDetections {
+    private final HashMap<Long, Integer> counts = new HashMap<>();
+    private int size = 0;
+
+    private static long key(int time, int idHandle) {
+        return ((long) time << 32) | (idHandle & 0xffffffffL);
+    }
+
+    public void add(int time, int idHandle) {
+        add(time, idHandle, 1);
+    }
+
+    public void add(int time, int idHandle, int count) {
+        counts.merge(key(time, idHandle), count, Integer::sum);
+        size += count;
+    }
+
+    public void addAll(FusedDetections other) {
+        for (Map.Entry<Long, Integer> entry : other.counts.entrySet()) {
+            counts.merge(entry.getKey(), entry.getValue(), Integer::sum);
+        }
+        size += other.size;
+    }
+
+    //takes one detection out. Returns false if it was not counted.
+    public boolean remove(int time, int idHandle) {
+        long key = key(time, idHandle);
+        Integer count = counts.get(key);
+        if (count == null) {
+            return false;
+        }
+        if (count == 1) {
+            counts.remove(key);
+        } else {
+            counts.put(key, count - 1);
+        }
+        size--;
+        return true;
+    }
+
+    public void clear() {
+        counts.clear();
+        size = 0;
+    }
+
+    public FusedDetections copy() {
+        FusedDetections copy = new FusedDetections();
+        copy.addAll(this);
+        return copy;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    //writes the counts as (time, ID, count) records, IDs as strings since handles differ between runs
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(counts.size());
+        for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+            long key = entry.getKey();
+            out.writeInt((int) (key >> 32));
+            String id = SymbolTable.nameOf((int) key);
+            out.writeBoolean(id != null);
+            if (id != null) {
+                out.writeUTF(id);
+            }
+            out.writeInt(entry.getValue());
+        }
+    }
+
+    //adds the records written by write
+    void read(DataInputStream in) throws IOException {
+        int records = in.readInt();
+        for (int i = 0; i < records; i++) {
+            int time = in.readInt();
+            int id = in.readBoolean() ? SymbolTable.intern(in.readUTF()) : SymbolTable.NONE;
+            add(time, id, in.readInt());
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package bgu.spl.mics.application.objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Two stage fusion pipeline for FusionSlam.
+ * Stage 1 transforms point clouds to the global frame on a pool of worker threads.
+ * Stage 2 is a single merge thread that applies the results to the landmark map,
+ * so the map keeps a single writer.
+ * The stages are connected by a bounded ring (ArrayBlockingQueue) of pending results
+ * in submission order, so merges happen in the same order as without the pipeline
+ * and submit blocks when the merge stage falls behind.
+ * The merge thread publishes a map snapshot whenever it catches up with the ring,
+ * and at least every PUBLISH_EVERY merges.
+ */
+public class FusionPipeline {
+    private final FusionSlam fusionSlam;
+    private final ExecutorService transformPool;
+    private final ArrayBlockingQueue<Future<Runnable>> ring;
+    private final Thread mergeThread;
+    private static final Runnable STOP = () -> {};      //tells the merge thread to exit
+    private static final Runnable NO_OP = () -> {};     //result of a failed transform
+    private static final int PUBLISH_EVERY = 256;       //most merges between two map snapshots while busy
+
+    public FusionPipeline(FusionSlam fusionSlam, int workers, int ringCapacity) {
+        if (workers <= 0 || ringCapacity <= 0) {
+            throw new IllegalArgumentException("Fusion pipeline needs at least one worker and one ring slot.");
+        }
+        this.fusionSlam = fusionSlam;
+        this.ring = new ArrayBlockingQueue<>(ringCapacity);
+        AtomicInteger threadCount = new AtomicInteger(0);
+        this.transformPool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "FusionTransform-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.mergeThread = new Thread(this::mergeLoop, "FusionMerge");
+        this.mergeThread.setDaemon(true);
+        this.mergeThread.start();
+    }
+
+    //queues a tracked object for fusion. Blocks while the ring is full.
+    public void submit(TrackedObject trackedObject, Pose pose) throws InterruptedException {
+        ring.put(CompletableFuture.supplyAsync(() -> {
+            try {
+                PointBuffer global = fusionSlam.transformTrackedObject(trackedObject, pose);
+                return () -> fusionSlam.mergeTransformed(trackedObject, pose, global);
+            } catch (Exception e) {
+                System.err.println("Failed to transform tracked object: " + e.getMessage());
+                return NO_OP;
+            }
+        }, transformPool));
+    }
+
+    //waits until everything submitted so far has been merged into the map
+    public void drain() throws InterruptedException {
+        CountDownLatch merged = new CountDownLatch(1);
+        ring.put(CompletableFuture.completedFuture(merged::countDown));
+        merged.await();
+    }
+
+    //drains the pipeline and stops its threads
+    public void shutdown() throws InterruptedException {
+        drain();
+        ring.put(CompletableFuture.completedFuture(STOP));
+        mergeThread.join();
+        transformPool.shutdown();
+        fusionSlam.publishSnapshot();   //the merge thread is gone, so this thread is the writer now
+    }
+
+    private void mergeLoop() {
+        try {
+            int unpublished = 0;
+            while (true) {
+                Runnable merge;
+                try {
+                    merge = ring.take().get();
+                } catch (ExecutionException e) {
+                    System.err.println("Failed to transform tracked object: " + e.getMessage());
+                    continue;
+                }
+                if (merge == STOP) {
+                    return;
+                }
+                try {
+                    merge.run();
+                } catch (Exception e) {
+                    System.err.println("Failed to merge tracked object: " + e.getMessage());
+                }
+                if (++unpublished >= PUBLISH_EVERY || ring.isEmpty()) {
+                    fusionSlam.publishSnapshot();
+                    unpublished = 0;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
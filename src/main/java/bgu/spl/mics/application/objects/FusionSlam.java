@@ -1,16 +1,21 @@
 package bgu.spl.mics.application.objects;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * Manages the fusion of sensor data for simultaneous localization and mapping (SLAM).
@@ -23,15 +28,70 @@ public class FusionSlam {
         private static FusionSlam instance;       
     }
     
-    private final ArrayBlockingQueue<LandMark> landmarks;
-    private final ArrayList<Pose> poses;
+    // defaults of the optional settings, used by the runner when the configuration leaves them out
+    public static final double DEFAULT_CELL_SIZE = 1.0;
+    public static final double DEFAULT_ASSOCIATION_GATE = 1.0;
+    public static final double DEFAULT_SHAPE_TOLERANCE = 0.5;
+    public static final int DEFAULT_POSE_MAX_GAP = 5;
+    public static final int DEFAULT_POSE_MAX_EXTRAPOLATION = 2;
+    public static final int DEFAULT_ICP_MAX_ITERATIONS = 20;
+    public static final double DEFAULT_ICP_MAX_DISTANCE = 0.5;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 100;
+    public static final int DEFAULT_OPTIMIZE_EVERY = 10;
+    public static final double DEFAULT_TILE_SIZE = 50.0;
+    public static final int DEFAULT_RESIDENT_TILES = 64;
+    public static final double DEFAULT_OCCUPANCY_RESOLUTION = 0.1;
+    public static final int DEFAULT_FUSION_WORKERS = 0;   //the transform pipeline is opt-in, 0 fuses on the service thread
+    public static final int DEFAULT_FUSION_PIPELINE_CAPACITY = 1024;
+    // output files are streamed with the same settings the Gson instances used to write them with
+    private static final Gson PRETTY_JSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final Gson COMPACT_JSON = new GsonBuilder().create();
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+    private final ConcurrentHashMap<Integer, LandMark> landmarks;   //landmark ID handle -> landmark
+    private final ConcurrentLinkedQueue<LandMark> landmarkOrder;    //same landmarks, in insertion order for the output
+    private final PoseStore poses;   //pose history by tick, shared with the StatisticalFolder
     private final StatisticalFolder stats;
     private final String outputParent;
-  
+    private int mapSize = 0;   //landmarks added so far, writer only
+    private int generatedLandmarks = 0;   //for naming landmarks made from unlabelled observations, writer only
+    // scratch buffers for the transform, one pair per thread so nothing is allocated per point
+    private final ThreadLocal<PointBuffer> localPoints = ThreadLocal.withInitial(PointBuffer::new);
+    private final ThreadLocal<PointBuffer> globalPoints = ThreadLocal.withInitial(PointBuffer::new);
+    // read-only map versions for other threads, see publishSnapshot
+    private volatile MapSnapshot snapshot = MapSnapshot.EMPTY;
+    private final ArrayList<LandMark> changedLandmarks = new ArrayList<>();   //changed since the last snapshot, writer only
+
+    // how observations are placed and fused, always on
+    private volatile LandMark.FusionMode fusionMode = LandMark.FusionMode.AVERAGE;
+    private volatile SpatialIndex spatialIndex = new SpatialIndex(DEFAULT_CELL_SIZE);   //landmark centroids, for geometric queries
+    private volatile AssociationEngine associationEngine = new AssociationEngine(DEFAULT_ASSOCIATION_GATE, DEFAULT_SHAPE_TOLERANCE);
+    private volatile PoseInterpolator poseInterpolator = new PoseInterpolator(DEFAULT_POSE_MAX_GAP, DEFAULT_POSE_MAX_EXTRAPOLATION);
+
+    // optional features, off while null
+    private volatile IcpAligner icpAligner;     //alignment of re-observations, null pairs points by index
+    private volatile VoxelFilter voxelFilter;   //downsampling of new observations, null keeps every point
+    private volatile MapChangeLog changeLog;    //gets the changes of every snapshot
+    private volatile MapCheckpointer checkpointer;   //writes incremental checkpoints
+    private volatile int checkpointInterval;
+    private final FusedDetections mergedDetections = new FusedDetections();   //since the last snapshot, writer only
+    private FusedDetections publishedDetections = new FusedDetections();      //in a published snapshot, not checkpointed yet
+    private final Object publishLock = new Object();   //pairs a snapshot with its fused detections for the checkpointer
+    private FusedDetections resumedDetections;   //already in the map when resuming from a checkpoint, writer only
+    private volatile TiledMap tiledMap;   //keeps only the tiles around the robot in memory
+    private long tiledVersion = 0;   //change log version in tiled mode, writer only
+    private int loggedSize = 0;      //landmarks the change log has seen in tiled mode, writer only
+    private volatile OccupancyGrid occupancyGrid;   //rasterized from the changed landmarks of every version
+    private volatile String occupancyGridFile;
+    private volatile PoseGraph poseGraph;   //drift correction of the GPS/IMU poses
+    private int optimizeEvery = DEFAULT_OPTIMIZE_EVERY;
+    private int pendingLoops = 0;   //re-observations since the last optimization, writer only
+
     private FusionSlam(StatisticalFolder stats, String outputParent) {
-        this.landmarks = new ArrayBlockingQueue<>(1000);
-        this.poses = new ArrayList<>();
+        this.landmarks = new ConcurrentHashMap<>();
+        this.landmarkOrder = new ConcurrentLinkedQueue<>();
         this.stats = stats;
+        this.poses = stats.getPoses();
         this.outputParent = outputParent;
     }
 
@@ -54,90 +114,448 @@ public class FusionSlam {
         return FusionSlamHolder.instance;
     }
 
+    //how re-observed landmarks are fused, AVERAGE unless configured otherwise
+    public void setFusionMode(LandMark.FusionMode fusionMode) {
+        this.fusionMode = fusionMode;
+    }
+
+    //sets the grid cell size of the spatial index. Call before any landmark is added.
+    public void setSpatialCellSize(double cellSize) {
+        this.spatialIndex = new SpatialIndex(cellSize);
+    }
+
+    //sets how unlabelled observations are matched to existing landmarks
+    public void setAssociation(double gateRadius, double shapeTolerance) {
+        this.associationEngine = new AssociationEngine(gateRadius, shapeTolerance);
+    }
+
+    //aligns every re-observation to its landmark with ICP, and fuses points with their nearest neighbour
+    public void setIcp(IcpAligner aligner) {
+        this.icpAligner = aligner;
+    }
+
+    //downsamples every new observation to one point per cell of the given size. 0 turns it off.
+    //since fusion never grows a landmark past its largest observation, this bounds every landmark too.
+    public void setVoxelSize(double resolution) {
+        this.voxelFilter = resolution > 0 ? new VoxelFilter(resolution) : null;
+    }
+
+    /**
+     * Stores the map in tiles, and evicts the points of cold tiles to disk. Call before any
+     * landmark is added. A map version would hold a copy of every landmark, so in tiled mode
+     * no versions are published (getSnapshot stays empty) and only the change log gets the changes.
+     */
+    public void setTiledMap(TiledMap tiledMap) {
+        this.tiledMap = tiledMap;
+    }
+
+    //keeps an occupancy grid of the map up to date, and writes it as a PGM image next to the output file
+    public void setOccupancyGrid(OccupancyGrid grid, String fileName) {
+        this.occupancyGrid = grid;
+        this.occupancyGridFile = fileName;
+    }
+
+    public OccupancyGrid getOccupancyGrid() {
+        return occupancyGrid;
+    }
+
+    /**
+     * Builds a pose graph from the observations and corrects the poses of new observations
+     * with it. The graph is optimized every optimizeEvery re-observed landmarks.
+     * Landmarks already in the map are not moved, only the ones seen afterwards benefit.
+     */
+    public void setPoseGraph(PoseGraph graph, int optimizeEvery) {
+        this.optimizeEvery = Math.max(1, optimizeEvery);
+        this.poseGraph = graph;
+    }
+
+    public PoseGraph getPoseGraph() {
+        return poseGraph;
+    }
+
+    //sets how far apart pose samples may be to interpolate between them, and how far past them to extrapolate
+    public void setPoseInterpolation(int maxGap, int maxExtrapolation) {
+        this.poseInterpolator = new PoseInterpolator(maxGap, maxExtrapolation);
+    }
+
+    //landmarks whose centroid is within radius of (x, y)
+    public ArrayList<LandMark> findLandmarksNear(double x, double y, double radius) {
+        return spatialIndex.queryRadius(x, y, radius);
+    }
+
+    //the landmark with the closest centroid within maxDistance of (x, y), or null
+    public LandMark findNearestLandmark(double x, double y, double maxDistance) {
+        return spatialIndex.nearest(x, y, maxDistance);
+    }
+
     private void updateLandMarkNum(){
         stats.incrementLandmarks(1);
     }
 
     public void processTrackedObject(TrackedObject trackedObject, Pose currentPose) {
-        // Create local landmark
+        if (alreadyFused(trackedObject)) {
+            return;
+        }
         try{
-            LandMark localLandMark = new LandMark(
-                trackedObject.getID(),
-                trackedObject.getDescription(),
-                trackedObject.getCoordinates()
-            );
-
-            // Transform to global coordinates
-            LandMark globalLandmark = transformToGlobal(localLandMark, currentPose);
+            // Transform to global coordinates, using this thread's reusable buffers
+            PointBuffer local = localPoints.get();
+            PointBuffer global = globalPoints.get();
+            local.load(trackedObject.getCoordinates());
+            TransformKernel.transform(local, correct(currentPose), global);
+            downsample(global);
+            focus(currentPose);
             // Update map
-            updateLandmarkInMap(globalLandmark);
+            LandMark landmark = updateLandmarkInMap(trackedObject.getIDHandle(), trackedObject.getDescriptionHandle(), global);
+            recordFused(landmark, trackedObject);
+            addToPoseGraph(landmark, trackedObject, currentPose);
         } catch (Exception e){
             System.err.println("Failed to process tracked object: " +e.getMessage());
         }
     }
 
 
-    private void updateLandmarkInMap(LandMark newLandmark) {
+    //transform stage of the fusion pipeline. Touches no shared state, so any thread can run it.
+    //the result is a new buffer that the caller hands to mergeTransformed.
+    public PointBuffer transformTrackedObject(TrackedObject trackedObject, Pose currentPose) {
+        PointBuffer local = localPoints.get();
+        local.load(trackedObject.getCoordinates());
+        PointBuffer global = new PointBuffer(Math.max(1, local.size()));
+        TransformKernel.transform(local, correct(currentPose), global);
+        downsample(global);
+        return global;
+    }
+
+    //the tiles around the robot stay in memory
+    private void focus(Pose pose) {
+        TiledMap tiles = tiledMap;
+        if (tiles != null) {
+            tiles.focus(pose.getPoseX(), pose.getPoseY());
+        }
+    }
+
+    //the pose moved by the pose graph's drift correction. Safe from any thread.
+    private Pose correct(Pose pose) {
+        PoseGraph graph = poseGraph;
+        return graph == null ? pose : graph.correct(pose);
+    }
+
+    //the observation's centroid in the robot frame becomes a constraint between its pose and the landmark
+    private void addToPoseGraph(LandMark landmark, TrackedObject trackedObject, Pose rawPose) {
+        PoseGraph graph = poseGraph;
+        if (graph == null || landmark == null || trackedObject.getCoordinates().isEmpty()) {
+            return;
+        }
+        double sumX = 0, sumY = 0;
+        for (CloudPoint point : trackedObject.getCoordinates()) {
+            sumX += point.getCloudPointX();
+            sumY += point.getCloudPointY();
+        }
+        int count = trackedObject.getCoordinates().size();
+        if (graph.addObservation(landmark.getLandmarkIdHandle(), rawPose, sumX / count, sumY / count)) {
+            pendingLoops++;
+            if (pendingLoops >= optimizeEvery) {
+                pendingLoops = 0;
+                graph.optimize();
+            }
+        }
+    }
+
+    //in the global frame, so the cells line up between observations taken from different poses
+    private void downsample(PointBuffer global) {
+        VoxelFilter filter = voxelFilter;
+        if (filter != null) {
+            filter.downsample(global);
+        }
+    }
+
+    //merge stage of the fusion pipeline. Updates the map, so only one thread may call it.
+    public void mergeTransformed(TrackedObject trackedObject, Pose pose, PointBuffer globalCoordinates) {
+        if (alreadyFused(trackedObject)) {
+            return;
+        }
+        focus(pose);
+        LandMark landmark = updateLandmarkInMap(trackedObject.getIDHandle(), trackedObject.getDescriptionHandle(), globalCoordinates);
+        recordFused(landmark, trackedObject);
+        addToPoseGraph(landmark, trackedObject, pose);
+    }
+
+    //after a resume the cameras send some detections again, the ones the checkpoint has in the map are skipped
+    private boolean alreadyFused(TrackedObject trackedObject) {
+        FusedDetections resumed = resumedDetections;
+        return resumed != null && resumed.remove(trackedObject.getTime(), trackedObject.getIDHandle());
+    }
+
+    //the checkpoints record which detections are in the map, so a resume knows where to restart the cameras
+    private void recordFused(LandMark landmark, TrackedObject trackedObject) {
+        if (landmark != null && checkpointer != null) {
+            mergedDetections.add(trackedObject.getTime(), trackedObject.getIDHandle());
+        }
+    }
+
+
+    //returns the new or updated landmark, or null if the update failed
+    private LandMark updateLandmarkInMap(int id, int description, PointBuffer globalCoordinates) {
         try{
-            boolean exists = false;
-            ArrayList<LandMark> tmp = new ArrayList<>(landmarks) ;   
-
-            for (LandMark existingLandmark : tmp) {
-                if (existingLandmark.getLandmarkId().equals(newLandmark.getLandmarkId())) {
-                    exists = true;
-                    existingLandmark.updateCoordinates(newLandmark.getCoordinates());
-                    break;
-                }
+            if (SymbolTable.isUnlabelled(id)) {
+                id = associate(description, globalCoordinates);
             }
-            if (!exists) {
-                if(landmarks.offer(newLandmark)){
+            LandMark existingLandmark = landmarks.get(id);
+            if (existingLandmark == null) {
+                LandMark newLandmark = new LandMark(id, description, globalCoordinates);
+                newLandmark.tiledMap = tiledMap;   //its points are guarded by the map before anyone can read them
+                existingLandmark = landmarks.putIfAbsent(id, newLandmark);
+                if (existingLandmark == null) {
+                    newLandmark.mapIndex = mapSize++;
+                    if (tiledMap != null) {
+                        tiledMap.add(newLandmark);
+                    }
+                    landmarkOrder.add(newLandmark);
+                    spatialIndex.update(newLandmark);
+                    markChanged(newLandmark);
                     updateLandMarkNum();
+                    return newLandmark;
                 }
             }
+            existingLandmark.updateCoordinates(globalCoordinates, fusionMode, icpAligner);
+            if (tiledMap != null) {
+                tiledMap.touch(existingLandmark);
+            }
+            spatialIndex.update(existingLandmark);
+            markChanged(existingLandmark);
+            return existingLandmark;
         } catch (Exception e) {
             System.err.println("failes to update landmark map:" +e.getMessage());
+            return null;
         }   
     }
 
+    private void markChanged(LandMark landmark) {
+        if (!landmark.viewPending) {
+            landmark.viewPending = true;
+            changedLandmarks.add(landmark);
+        }
+    }
 
-    //Transforms a local landmark to global coordinates
-    public LandMark transformToGlobal(LandMark localLandmark, Pose robotPose) {
-        ArrayList<CloudPoint> globalCoordinates = new ArrayList<>();
-        try{
-            // Transform each CloudPoint in the localLandmark coordinates
-            for (CloudPoint localPoint : localLandmark.getCoordinates()) {
-                double x = Math.cos(Math.toRadians(robotPose.getYaw())) * localPoint.getCloudPointX() 
-                            - Math.sin(Math.toRadians(robotPose.getYaw()))*localPoint.getCloudPointY() + robotPose.getPoseX();
+    //publishes a new map version with the landmarks that changed since the last one.
+    //only the map writer may call this (the merge thread, or the service thread without a pipeline).
+    //unchanged landmarks and chunks are shared with the previous version, so the cost
+    //depends on how much changed and not on the size of the map.
+    public void publishSnapshot() {
+        if (changedLandmarks.isEmpty()) {
+            return;
+        }
+        OccupancyGrid grid = occupancyGrid;
+        for (LandMark landmark : changedLandmarks) {
+            landmark.viewPending = false;
+            if (grid != null) {
+                grid.update(landmark);
+            }
+        }
+        if (tiledMap != null) {
+            logTiledChanges();
+            return;
+        }
+        MapSnapshot previous = snapshot;
+        synchronized (publishLock) {
+            snapshot = previous.withChanges(changedLandmarks, mapSize);
+            publishedDetections.addAll(mergedDetections);
+        }
+        mergedDetections.clear();
+        MapChangeLog log = changeLog;
+        if (log != null) {
+            //the views were just made for the snapshot, the log only queues them
+            ArrayList<LandmarkView> views = new ArrayList<>(changedLandmarks.size());
+            boolean[] inserted = new boolean[changedLandmarks.size()];
+            for (int i = 0; i < changedLandmarks.size(); i++) {
+                int index = changedLandmarks.get(i).getMapIndex();
+                views.add(snapshot.get(index));
+                inserted[i] = index >= previous.size();
+            }
+            log.append(stats.getSystemRuntime(), snapshot.getVersion(), views, inserted);
+        }
+        changedLandmarks.clear();
+    }
+
+    //tiled maps keep no versions, the changed landmarks go straight to the change log
+    private void logTiledChanges() {
+        MapChangeLog log = changeLog;
+        if (log != null) {
+            tiledVersion++;
+            ArrayList<LandmarkView> views = new ArrayList<>(changedLandmarks.size());
+            boolean[] inserted = new boolean[changedLandmarks.size()];
+            for (int i = 0; i < changedLandmarks.size(); i++) {
+                LandMark landmark = changedLandmarks.get(i);
+                views.add(landmark.view(tiledVersion));
+                inserted[i] = landmark.getMapIndex() >= loggedSize;
+            }
+            log.append(stats.getSystemRuntime(), tiledVersion, views, inserted);
+        }
+        loggedSize = mapSize;
+        changedLandmarks.clear();
+    }
 
-                double y = Math.sin(Math.toRadians(robotPose.getYaw())) * localPoint.getCloudPointX()
-                             + Math.cos(Math.toRadians(robotPose.getYaw()))*localPoint.getCloudPointY() + robotPose.getPoseY();
+    //starts logging every published map change to the given log
+    public void setChangeLog(MapChangeLog changeLog) {
+        this.changeLog = changeLog;
+    }
+
+    //writes a checkpoint every interval ticks, in the background
+    public void setCheckpointer(MapCheckpointer checkpointer, int interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive.");
+        }
+        this.checkpointInterval = interval;
+        this.checkpointer = checkpointer;
+    }
+
+    //starts a checkpoint of the last published map if one is due at this tick
+    public void checkpointIfDue(int tick) {
+        MapCheckpointer current = checkpointer;
+        if (current != null && tick % checkpointInterval == 0) {
+            synchronized (publishLock) {
+                if (current.checkpoint(tick, snapshot, publishedDetections, poses, stats)) {
+                    publishedDetections = new FusedDetections();   //the writer thread owns the old one now
+                } else {
+                    System.out.println("Checkpoint at tick " + tick + " skipped, the last one is still being written");
+                }
+            }
+        }
+    }
+
+    public void closeCheckpointer() {
+        MapCheckpointer current = checkpointer;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Loads the state of a checkpoint into an empty FusionSlam before the simulation starts:
+     * the counters, the poses and the landmarks in their original order.
+     * The detections the checkpoint has in the map are skipped when they arrive again
+     * (see MapCheckpointer.Restored.rewindSensors).
+     */
+    public void restore(MapCheckpointer.Restored state) {
+        stats.incrementRuntime(state.getSystemRuntime());
+        stats.incrementDetectedObjects(state.getNumDetectedObjects());
+        stats.incrementTrackedObjects(state.getNumTrackedObjects());
+        stats.incrementLandmarks(state.getNumLandmarks());
+        for (Pose pose : state.getPoses()) {
+            stats.updatePoses(pose);
+        }
+        restoreMap(state.getLandmarks());
+        resumedDetections = state.getFusedDetections().copy();
+    }
+
+    //puts saved landmarks (in their original order) into an empty map. Statistics are not touched.
+    void restoreMap(List<LandmarkView> savedLandmarks) {
+        if (!landmarks.isEmpty()) {
+            throw new IllegalStateException("Can only restore into an empty map.");
+        }
+        for (LandmarkView view : savedLandmarks) {
+            if (view == null) {
+                continue;
+            }
+            LandMark landmark = new LandMark(view);
+            landmark.tiledMap = tiledMap;
+            landmarks.put(landmark.getLandmarkIdHandle(), landmark);
+            landmark.mapIndex = mapSize++;
+            if (tiledMap != null) {
+                tiledMap.add(landmark);
+            }
+            landmarkOrder.add(landmark);
+            spatialIndex.update(landmark);
+            markChanged(landmark);
+        }
+        publishSnapshot();
+    }
+
+    //every landmark as it is now, in insertion order. Only call while the map is not being written.
+    ArrayList<LandmarkView> viewLandmarks() {
+        ArrayList<LandmarkView> views = new ArrayList<>();
+        for (LandMark landmark : landmarkOrder) {
+            views.add(landmark.view(snapshot.getVersion()));
+        }
+        return views;
+    }
+
+    int getGeneratedLandmarks() {
+        return generatedLandmarks;
+    }
+
+    void restoreGeneratedLandmarks(int generated) {
+        this.generatedLandmarks = generated;
+    }
+
+    //writes out what is left in the change log. Call after the last snapshot was published.
+    public void closeChangeLog() {
+        MapChangeLog log = changeLog;
+        if (log == null) {
+            return;
+        }
+        try {
+            log.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //the last published map version. Any thread can call this, it never locks or copies.
+    public MapSnapshot getSnapshot() {
+        return snapshot;
+    }
 
-                CloudPoint globalPoint = new CloudPoint(x, y);
-                globalCoordinates.add(globalPoint);
 
+    //finds the landmark an observation without an ID belongs to, by geometry.
+    //returns its ID, or a new generated ID if nothing in the map matches.
+    private int associate(int description, PointBuffer globalCoordinates) {
+        LandMark match = associationEngine.associate(spatialIndex, globalCoordinates, description);
+        if (match != null) {
+            return match.getLandmarkIdHandle();
         }
+        int id;
+        do {
+            id = SymbolTable.intern("landmark_" + (++generatedLandmarks));
+        } while (landmarks.containsKey(id));
+        return id;
+    }
+
+
+    //Transforms a local landmark to global coordinates
+    public LandMark transformToGlobal(LandMark localLandmark, Pose robotPose) {
+        PointBuffer global = new PointBuffer();
+        try{
+            PointBuffer local = new PointBuffer();
+            local.load(localLandmark.getCoordinates());
+            TransformKernel.transform(local, robotPose, global);
         } catch (Exception e) {
             System.err.println("failed to transform coordinates" + e.getMessage());
         }       
         // Return a new global LandMark
-        return new LandMark(localLandmark.getLandmarkId(), localLandmark.getDescription(), globalCoordinates);
+        return new LandMark(localLandmark.getLandmarkIdHandle(), localLandmark.getDescriptionHandle(), global.toCloudPoints());
     
     }  
 
+    //the pose at the given time, interpolated if it falls between two samples. null if it cannot be known yet.
     public Pose getPose(int time){
-        for(Pose p : poses){
-            if(p.getTime() == time){
-                return p;
-            }
-        }
-        return null;
+        return poseInterpolator.poseAt(poses, time);
+    }
+
+    //like getPose, but also extrapolates a little past the samples. For objects that cannot wait any longer.
+    public Pose estimatePose(int time) {
+        return poseInterpolator.estimatePoseAt(poses, time);
     }
     
     
 
-    public synchronized void updatePose(Pose pose) {
+    public void updatePose(Pose pose) {
         try {
-            poses.add(pose);
+            poses.put(pose);
 
         } catch (Exception e) {
             System.err.println("Failed to update pose: " + e.getMessage());
@@ -148,65 +566,45 @@ public class FusionSlam {
 
     public void writeOutputFile() throws IOException {
         String outputPath = new File(outputParent, "output_file.json").getPath();
-        JsonObject output = new JsonObject();
-        // Add statistics
-        output.addProperty("systemRuntime", stats.getSystemRuntime());
-        output.addProperty("numDetectedObjects", stats.getNumDetectedObjects());
-        output.addProperty("numTrackedObjects", stats.getNumTrackedObjects());
-        output.addProperty("numLandmarks", stats.getNumLandmarks());
-    
-        // Create landmarks object
-        JsonObject landmarksObj = new JsonObject();
-        
-        // For each landmark in our list of landmarks
-        for (LandMark landmark : landmarks) {
-            JsonObject landmarkObj = new JsonObject();
-            
-            // Add basic landmark info
-            landmarkObj.addProperty("id", landmark.getLandmarkId());
-            landmarkObj.addProperty("description", landmark.getDescription());
-            
-            // Create coordinates array
-            JsonArray coordinatesArr = new JsonArray();
-            for (CloudPoint point : landmark.getCoordinates()) {
-                JsonObject coordObj = new JsonObject();
-                coordObj.addProperty("x", point.getCloudPointX());
-                coordObj.addProperty("y", point.getCloudPointY());
-                coordinatesArr.add(coordObj);
-            }
-            landmarkObj.add("coordinates", coordinatesArr);
-            
-            // Add this landmark to landmarks object using its ID as key
-            landmarksObj.add(landmark.getLandmarkId(), landmarkObj);
-        }
-        output.add("landMarks", landmarksObj);
-    
-        // Write to file with pretty printing
-        try (Writer writer = new FileWriter(outputPath)) {
-        //try (Writer writer = new FileWriter(outPath)) {
-            Gson gson = new GsonBuilder()
-                .setPrettyPrinting()
-                .create();
-            gson.toJson(output, writer);
+        // Stream straight to the file with pretty printing, nothing is built in memory
+        try (JsonWriter json = PRETTY_JSON.newJsonWriter(openOutput(outputPath))) {
+            json.beginObject();
+            // Add statistics
+            json.name("systemRuntime").value(stats.getSystemRuntime());
+            json.name("numDetectedObjects").value(stats.getNumDetectedObjects());
+            json.name("numTrackedObjects").value(stats.getNumTrackedObjects());
+            json.name("numLandmarks").value(stats.getNumLandmarks());
+            json.name("landMarks");
+            writeLandmarks(json);
+            json.endObject();
         }
         System.out.println("finished output file");
+        writeOccupancyGrid();
     }
 
-    public synchronized Pose getCurrentPose() {
+    private void writeOccupancyGrid() throws IOException {
+        OccupancyGrid grid = occupancyGrid;
+        if (grid != null) {
+            grid.writePgm(new File(outputParent, occupancyGridFile).getPath());
+        }
+    }
+    public Pose getCurrentPose() {
         try {
-            if (poses.isEmpty()) {
-                return null;
-            }
-            return poses.get(poses.size() - 1);
+            return poses.getLatest();
         } catch (Exception e) {
             System.err.println("Failed to get current pose: " + e.getMessage());
             return null;
         }
     }
 
-    public synchronized ArrayList<LandMark> getLandmarks() {
+    public LandMark getLandmark(String id) {
+        return landmarks.get(SymbolTable.intern(id));
+    }
+
+    //live landmarks in insertion order. Use getSnapshot for a consistent view while mapping runs.
+    public ArrayList<LandMark> getLandmarks() {
         try {
-            return new ArrayList<>(landmarks);
+            return new ArrayList<>(landmarkOrder);
         } catch (Exception e) {
             System.err.println("Failed to get landmarks: " + e.getMessage());
             return new ArrayList<>();
@@ -219,125 +617,151 @@ public class FusionSlam {
 
    
 
+    //the error file is compact json with each top level key (and the two frame lists) on a new line.
+    //the line breaks are written between the values, and the values are streamed with a JsonWriter.
     public void writeErrorOutputFile(String faultySensor, String errorDescription) throws IOException {
         String outputPath = new File(outputParent, "OutputError.json").getPath();
-        JsonObject output = new JsonObject();
-        
-        output.addProperty("Error", errorDescription);
-        output.addProperty("faultySensor", faultySensor);
-
-        // Add lastFrames
-        JsonObject lastFrames = new JsonObject();
-        
-        // Add cameras' last frames
-        JsonObject camerasFrames = new JsonObject();
+        try (Writer out = openOutput(outputPath)) {
+            out.write('{');
+            boolean first = true;
+            if (errorDescription != null) {
+                first = errorKey(out, "error", first);
+                COMPACT_JSON.newJsonWriter(out).value(errorDescription);
+            }
+            if (faultySensor != null) {
+                first = errorKey(out, "faultySensor", first);
+                COMPACT_JSON.newJsonWriter(out).value(faultySensor);
+            }
+
+            // Add lastFrames
+            first = errorKey(out, "lastFrames", first);
+            out.write('{');
+            errorKey(out, "lastCameraFrames", true);
+            writeCameraFrames(COMPACT_JSON.newJsonWriter(out));
+            errorKey(out, "lastLidarFrames", false);
+            writeLidarFrames(COMPACT_JSON.newJsonWriter(out));
+            out.write('}');
+
+            //Add poses
+            errorKey(out, "poses", first);
+            writePoses(COMPACT_JSON.newJsonWriter(out));
+
+            errorKey(out, "statistics:  systemRuntime", false);
+            out.write(Integer.toString(stats.getSystemRuntime()));
+            errorKey(out, "numDetectedObjects", false);
+            out.write(Integer.toString(stats.getNumDetectedObjects()));
+            errorKey(out, "numTrackedObjects", false);
+            out.write(Integer.toString(stats.getNumTrackedObjects()));
+            errorKey(out, "numLandmarks", false);
+            out.write(Integer.toString(stats.getNumLandmarks()));
+
+            errorKey(out, "landMarks", false);
+            writeLandmarks(COMPACT_JSON.newJsonWriter(out));
+            out.write('}');
+        }
+        writeOccupancyGrid();
+    }
+
+    //starts a key of the error file on a new line. Returns false, the next key is not the first.
+    private static boolean errorKey(Writer out, String name, boolean first) throws IOException {
+        if (!first) {
+            out.write(',');
+        }
+        out.write("\n\"");
+        out.write(name);
+        out.write("\":");
+        return false;
+    }
+
+    //opens a buffered writer on a file channel, replacing the file
+    private static Writer openOutput(String outputPath) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(outputPath),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), OUTPUT_BUFFER_SIZE), OUTPUT_BUFFER_SIZE);
+    }
+
+    // landmarks as an object keyed by ID, in insertion order
+    private void writeLandmarks(JsonWriter json) throws IOException {
+        PointBuffer points = localPoints.get();   //reused for every landmark
+        json.beginObject();
+        for (LandMark landmark : landmarkOrder) {
+            json.name(landmark.getLandmarkId()).beginObject();
+            json.name("id").value(landmark.getLandmarkId());
+            json.name("description").value(landmark.getDescription());
+            landmark.copyCoordinates(points);
+            json.name("coordinates").beginArray();
+            for (int i = 0; i < points.size(); i++) {
+                json.beginObject();
+                json.name("x").value(points.getX(i));
+                json.name("y").value(points.getY(i));
+                json.endObject();
+            }
+            json.endArray();
+            json.endObject();
+        }
+        json.endObject();
+    }
+
+    private void writeCameraFrames(JsonWriter json) throws IOException {
+        json.beginObject();
         for (Map.Entry<Camera, StampedDetectedObjects> entry : stats.getCamerasLastFrame().entrySet()) {
-            JsonArray detections = new JsonArray();
+            json.name("camera" + entry.getKey().getID()).beginArray();
             StampedDetectedObjects lastObjects = entry.getValue();
             if (lastObjects != null) {
                 for (DetectedObject obj : lastObjects.getDetectedObjects()) {
-                    JsonObject detection = new JsonObject();
-                    detection.addProperty("time: ", lastObjects.getTime());
-                    detection.addProperty("id", obj.getId());
-                    detection.addProperty("description", obj.getDescription());
-                    detections.add(detection);
+                    json.beginObject();
+                    json.name("time: ").value(lastObjects.getTime());
+                    json.name("id").value(obj.getId());
+                    json.name("description").value(obj.getDescription());
+                    json.endObject();
                 }
             }
-            camerasFrames.add("camera" + entry.getKey().getID(), detections);
+            json.endArray();
         }
-        lastFrames.add("cameras", camerasFrames);
+        json.endObject();
+    }
 
-        // Add lidars' last frames
-        JsonObject lidarsFrames = new JsonObject();
+    private void writeLidarFrames(JsonWriter json) throws IOException {
+        json.beginObject();
         for (Map.Entry<LiDarWorkerTracker, TrackedObject> entry : stats.getLidarsLastFrame().entrySet()) {
-            JsonArray cloudPoints = new JsonArray();
+            json.name("lidar" + entry.getKey().getID()).beginArray();
             TrackedObject lastObject = entry.getValue();
             if (lastObject != null) {
-                JsonObject tracked = new JsonObject();
-                tracked.addProperty("time: ", lastObject.getTime());
-                tracked.addProperty("id", lastObject.getID());
-                tracked.addProperty("description", lastObject.getDescription());
+                json.beginObject();
+                json.name("time: ").value(lastObject.getTime());
+                json.name("id").value(lastObject.getID());
+                json.name("description").value(lastObject.getDescription());
                 if (lastObject.getCoordinates() != null) {
-                    JsonArray coordinates = new JsonArray();
+                    json.name("coordinates").beginArray();
                     for (CloudPoint point : lastObject.getCoordinates()) {
-                        JsonObject coord = new JsonObject();
-                        coord.addProperty("x", point.getCloudPointX());
-                        coord.addProperty("y", point.getCloudPointY());
-                        coordinates.add(coord);
+                        json.beginObject();
+                        json.name("x").value(point.getCloudPointX());
+                        json.name("y").value(point.getCloudPointY());
+                        json.endObject();
                     }
-                    tracked.add("coordinates", coordinates);
+                    json.endArray();
                 }
-                cloudPoints.add(tracked);
+                json.endObject();
             }
-            lidarsFrames.add("lidar" + entry.getKey().getID(), cloudPoints);
+            json.endArray();
         }
-        lastFrames.add("lidar", lidarsFrames);
-        output.add("lastFrames", lastFrames);
+        json.endObject();
+    }
 
-        //Add poses
-        JsonArray posesArray = new JsonArray();
+    private void writePoses(JsonWriter json) throws IOException {
+        json.beginArray();
         for (Pose pose : stats.getPoses()) {
             if (pose.getTime() <= stats.getSystemRuntime()) {
-                JsonObject poseObj = new JsonObject();
-                poseObj.addProperty("time", pose.getTime());
-                poseObj.addProperty("x", pose.getPoseX());
-                poseObj.addProperty("y", pose.getPoseY());
-                poseObj.addProperty("yaw", pose.getYaw());
-                posesArray.add(poseObj);
+                json.beginObject();
+                json.name("time").value(pose.getTime());
+                //boxed so floats keep their short form, like JsonObject wrote them
+                json.name("x").value(Float.valueOf(pose.getPoseX()));
+                json.name("y").value(Float.valueOf(pose.getPoseY()));
+                json.name("yaw").value(Float.valueOf(pose.getYaw()));
+                json.endObject();
             }
         }
-        output.add("poses", posesArray);
-
-        output.addProperty("systemRuntime", stats.getSystemRuntime());
-        output.addProperty("numDetectedObjects", stats.getNumDetectedObjects());
-        output.addProperty("numTrackedObjects", stats.getNumTrackedObjects());
-        output.addProperty("numLandmarks", stats.getNumLandmarks());
-
-        // Create landmarks object
-        JsonObject landmarksObj = new JsonObject();
-        
-        // For each landmark in our list of landmarks
-        for (LandMark landmark : landmarks) {
-            JsonObject landmarkObj = new JsonObject();
-            
-            // Add basic landmark info
-            landmarkObj.addProperty("id", landmark.getLandmarkId());
-            landmarkObj.addProperty("description", landmark.getDescription());
-            
-            // Create coordinates array
-            JsonArray coordinatesArr = new JsonArray();
-            for (CloudPoint point : landmark.getCoordinates()) {
-                JsonObject coordObj = new JsonObject();
-                coordObj.addProperty("x", point.getCloudPointX());
-                coordObj.addProperty("y", point.getCloudPointY());
-                coordinatesArr.add(coordObj);
-            }
-            landmarkObj.add("coordinates", coordinatesArr);
-            
-            // Add this landmark to landmarks object using its ID as key
-            landmarksObj.add(landmark.getLandmarkId(), landmarkObj);
-        }
-        output.add("landMarks", landmarksObj);
-
-        String rawJson = new GsonBuilder().create().toJson(output);
-        String finalJson = rawJson
-                // after the error, for instance:
-                .replace("\"Error\":", "\n\"error\":")
-                .replace("\"faultySensor\":", "\n\"faultySensor\":")
-                .replace("\"lastFrames\":", "\n\"lastFrames\":")
-                .replace("\"cameras\":", "\n\"lastCameraFrames\":")
-                .replace("\"lidar\":", "\n\"lastLidarFrames\":")
-                .replace("\"poses\":", "\n\"poses\":")
-                .replace("\"systemRuntime\":", "\n\"statistics:  systemRuntime\":")
-                .replace("\"numDetectedObjects\":", "\n\"numDetectedObjects\":")
-                .replace("\"numTrackedObjects\":", "\n\"numTrackedObjects\":")
-                .replace("\"numLandmarks\":", "\n\"numLandmarks\":")
-                .replace("\"landMarks\":", "\n\"landMarks\":");
-
-        
-        try (Writer w = new FileWriter(outputPath)) {
-         w.write(finalJson);
-        }           
+        json.endArray();
     }
 
     // public void handleTermination() {
@@ -0,0 +1,118 @@
+package bgu.spl.mics.application.objects;
+
+/**
+ * Aligns a new observation of a landmark to its current points with ICP (iterative closest point).
+ * Every iteration pairs each new point with its nearest current point (a k-d tree over the
+ * current points), drops pairs further apart than maxDistance, and moves the new points by
+ * the rigid transform (rotation + translation) that best fits the pairs, in closed form.
+ * It stops when the transform of an iteration is negligible, when the mean error stops
+ * improving, or after maxIterations.
+ * The aligner keeps its tree and match arrays between calls, so it allocates nothing once
+ * they are big enough. Not thread-safe: only the map writer uses it.
+ */
+public class IcpAligner {
+    private static final double CONVERGED_STEP = 1e-9;      //rotation (radians) and squared translation
+    private static final double CONVERGED_ERROR = 1e-12;    //mean squared error improvement
+
+    private final int maxIterations;
+    private final double maxDistance;
+    private final KdTree tree = new KdTree();
+    private int[] matches = new int[16];
+    private int iterations = 0;
+    //sums over the pairs of the last match
+    private int pairs;
+    private double sourceX, sourceY, targetX, targetY, dot, cross, squaredError;
+
+    public IcpAligner(int maxIterations, double maxDistance) {
+        if (maxIterations < 0 || !(maxDistance > 0)) {
+            throw new IllegalArgumentException("ICP needs a non negative iteration count and a positive distance.");
+        }
+        this.maxIterations = maxIterations;
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * Moves the points of source onto points 0..targetSize-1 of the target arrays, in place.
+     * Returns, for every source point, the index of its nearest target point after the
+     * alignment, or -1 if it has none within maxDistance. The array is reused by the next call.
+     */
+    public int[] align(double[] targetXs, double[] targetYs, int targetSize, PointBuffer source) {
+        if (matches.length < source.size()) {
+            matches = new int[Math.max(source.size(), matches.length * 2)];
+        }
+        tree.build(targetXs, targetYs, targetSize);
+        double previousError = Double.MAX_VALUE;
+        iterations = 0;
+        while (iterations < maxIterations) {
+            match(targetXs, targetYs, source);
+            if (pairs == 0) {
+                return matches;
+            }
+            double error = squaredError / pairs;
+            if (previousError - error < CONVERGED_ERROR) {
+                return matches;   //the last step did not help any more, and the matches are up to date
+            }
+            previousError = error;
+            iterations++;
+            if (step(source)) {
+                break;
+            }
+        }
+        match(targetXs, targetYs, source);
+        return matches;
+    }
+
+    //iterations the last align ran
+    public int getIterations() {
+        return iterations;
+    }
+
+    //pairs every source point with its nearest target point and sums the pairs up
+    private void match(double[] targetXs, double[] targetYs, PointBuffer source) {
+        double[] xs = source.getXs();
+        double[] ys = source.getYs();
+        pairs = 0;
+        sourceX = sourceY = targetX = targetY = dot = cross = squaredError = 0;
+        for (int i = 0; i < source.size(); i++) {
+            int j = tree.nearest(xs[i], ys[i], maxDistance);
+            matches[i] = j;
+            if (j < 0) {
+                continue;
+            }
+            double px = xs[i], py = ys[i];
+            double qx = targetXs[j], qy = targetYs[j];
+            pairs++;
+            sourceX += px;
+            sourceY += py;
+            targetX += qx;
+            targetY += qy;
+            dot += px * qx + py * qy;
+            cross += px * qy - py * qx;
+            squaredError += (qx - px) * (qx - px) + (qy - py) * (qy - py);
+        }
+    }
+
+    //applies the rigid transform that best fits the pairs. Returns true if it was negligible.
+    private boolean step(PointBuffer source) {
+        double sx = sourceX / pairs, sy = sourceY / pairs;
+        double tx = targetX / pairs, ty = targetY / pairs;
+        double angle = 0;
+        if (pairs > 1) {
+            //about the centroids: sum of p.q and p x q of the centred pairs
+            double centredDot = dot - pairs * (sx * tx + sy * ty);
+            double centredCross = cross - pairs * (sx * ty - sy * tx);
+            angle = Math.atan2(centredCross, centredDot);
+        }
+        double c = Math.cos(angle), s = Math.sin(angle);
+        double moveX = tx - (c * sx - s * sy);
+        double moveY = ty - (s * sx + c * sy);
+        double[] xs = source.getXs();
+        double[] ys = source.getYs();
+        for (int i = 0; i < source.size(); i++) {
+            double x = xs[i];
+            xs[i] = c * x - s * ys[i] + moveX;
+            ys[i] = s * x + c * ys[i] + moveY;
+        }
+        return Math.abs(angle) < CONVERGED_STEP && moveX * moveX + moveY * moveY < CONVERGED_STEP;
+    }
+}
@@ -0,0 +1,117 @@
+package bgu.spl.mics.application.objects;
+
+/**
+ * 2D k-d tree over the points of a cloud, for nearest neighbour queries.
+ * The tree is an array of point indices: the median of every range is the node, split on
+ * x at even depths and on y at odd ones, and the two halves are its subtrees. Building
+ * is O(n log n) with quickselect and allocates nothing once the array is big enough,
+ * so the same tree can be rebuilt over a new cloud for every query batch.
+ * The tree keeps a reference to the coordinate arrays, they must not change until the
+ * next build. Not thread-safe.
+ */
+public class KdTree {
+    private double[] xs;
+    private double[] ys;
+    private int[] order = new int[16];
+    private int size = 0;
+    //state of the running query
+    private int best;
+    private double bestDistance;
+
+    //indexes points 0..size-1 of the arrays
+    public void build(double[] xs, double[] ys, int size) {
+        this.xs = xs;
+        this.ys = ys;
+        this.size = size;
+        if (order.length < size) {
+            order = new int[Math.max(size, order.length * 2)];
+        }
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        build(0, size, 0);
+    }
+
+    /**
+     * Index of the point closest to (x, y), or -1 if there is none within maxDistance.
+     */
+    public int nearest(double x, double y, double maxDistance) {
+        best = -1;
+        bestDistance = maxDistance * maxDistance;
+        search(0, size, 0, x, y);
+        return best;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void build(int from, int to, int depth) {
+        if (to - from <= 1) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        select(from, to - 1, middle, (depth & 1) == 0 ? xs : ys);
+        build(from, middle, depth + 1);
+        build(middle + 1, to, depth + 1);
+    }
+
+    //puts the k-th smallest of order[left..right] (by the given coordinate) at k, smaller ones before it
+    private void select(int left, int right, int k, double[] coordinate) {
+        while (left < right) {
+            double pivot = coordinate[order[(left + right) >>> 1]];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (coordinate[order[i]] < pivot) {
+                    i++;
+                }
+                while (coordinate[order[j]] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void search(int from, int to, int depth, double x, double y) {
+        if (from >= to) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        int point = order[middle];
+        double dx = xs[point] - x;
+        double dy = ys[point] - y;
+        double distance = dx * dx + dy * dy;
+        if (distance < bestDistance || (distance == bestDistance && best < 0)) {
+            bestDistance = distance;
+            best = point;
+        }
+        double split = (depth & 1) == 0 ? x - xs[point] : y - ys[point];
+        //the side of the query first, the other side only if the splitting line is closer than the best so far
+        if (split < 0) {
+            search(from, middle, depth + 1, x, y);
+            if (split * split <= bestDistance) {
+                search(middle + 1, to, depth + 1, x, y);
+            }
+        } else {
+            search(middle + 1, to, depth + 1, x, y);
+            if (split * split <= bestDistance) {
+                search(from, middle, depth + 1, x, y);
+            }
+        }
+    }
+}
@@ -1,60 +1,350 @@
 package bgu.spl.mics.application.objects;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Represents a landmark in the environment map.
  * Landmarks are identified and updated by the FusionSlam service.
+ * The ID and description are kept as SymbolTable handles.
+ * Coordinates are packed in primitive arrays together with the number of
+ * observations of every point, so re-observations are fused in place.
+ * In a TiledMap the arrays of a cold tile are written out and dropped. They are read
+ * back the next time any method needs the points.
+ * The points are guarded by the landmark itself, or in a TiledMap by the map, since
+ * loading a tile fills (and evicting one drops) the points of every landmark in it.
  */
 public class LandMark {
-    private final String id;
-    private final String description;
-    private ArrayList<CloudPoint> coordinates;
+    /**
+     * How a re-observation is fused into the existing points.
+     * AVERAGE: the new sample and the old value are averaged 50/50 (older samples decay).
+     * RUNNING_MEAN: the point is the true mean of all its observations.
+     */
+    public enum FusionMode { AVERAGE, RUNNING_MEAN }
+
+    private final int id;
+    private final int description;
+    private double[] xs;
+    private double[] ys;
+    private int[] observations;   //how many samples each point was fused from
+    private int size;
+    //position in the map snapshots and whether a new view is due, both used only by the map writer
+    int mapIndex = -1;
+    boolean viewPending = false;
+    //the tile the landmark belongs to, and the map that holds it. Only set in tiled maps,
+    //the map before the landmark is published to other threads.
+    long tile;
+    TiledMap tiledMap;
 
     //constructor
     public LandMark(String id, String description, ArrayList<CloudPoint> coordinates){
+        this(SymbolTable.intern(id), SymbolTable.intern(description), coordinates);
+    }
+
+    public LandMark(int id, int description, ArrayList<CloudPoint> coordinates){
         this.id = id;
         this.description = description;
-        this.coordinates = coordinates;
+        allocate(coordinates.size());
+        for (CloudPoint point : coordinates) {
+            xs[size] = point.getCloudPointX();
+            ys[size] = point.getCloudPointY();
+            observations[size] = 1;
+            size++;
+        }
+    }
+
+    public LandMark(int id, int description, PointBuffer coordinates){
+        this.id = id;
+        this.description = description;
+        allocate(coordinates.size());
+        appendFrom(coordinates.getXs(), coordinates.getYs(), 0, coordinates.size());
+    }
+
+    //rebuilds a landmark from a saved view, keeping how many samples every point has
+    LandMark(LandmarkView view){
+        this.id = view.getLandmarkIdHandle();
+        this.description = view.getDescriptionHandle();
+        allocate(view.size());
+        for (int i = 0; i < view.size(); i++) {
+            xs[i] = view.getX(i);
+            ys[i] = view.getY(i);
+            observations[i] = view.getObservations(i);
+        }
+        size = view.size();
+    }
+
+    private void allocate(int capacity) {
+        int length = Math.max(4, capacity);
+        xs = new double[length];
+        ys = new double[length];
+        observations = new int[length];
+        size = 0;
     }
 
     //if an object is detected angain will take the avarage coordinates
-    public synchronized void updateCoordinates(ArrayList<CloudPoint> newCoordinates) {
-        try {
-            ArrayList<CloudPoint> updatedCoordinates = new ArrayList<>();
-         //   int count = avg.get();
-            for (int i = 0; i < Math.min(coordinates.size(), newCoordinates.size()); i++) {
-                CloudPoint existing = coordinates.get(i);
-                CloudPoint newPoint = newCoordinates.get(i);
-                
-                double newX = (existing.getCloudPointX() + newPoint.getCloudPointX()) / 2;
-                                   
-                double newY = (existing.getCloudPointY() + newPoint.getCloudPointY()) / 2;
-                            
-                updatedCoordinates.add(new CloudPoint(newX, newY));
+    public void updateCoordinates(ArrayList<CloudPoint> newCoordinates) {
+        PointBuffer buffer = new PointBuffer(Math.max(1, newCoordinates.size()));
+        buffer.load(newCoordinates);
+        updateCoordinates(buffer, FusionMode.AVERAGE);
+    }
+
+    public void updateCoordinates(PointBuffer newCoordinates) {
+        updateCoordinates(newCoordinates, FusionMode.AVERAGE);
+    }
+
+    //fuses a new observation into the points in place. Points are paired by index,
+    //and points beyond the current ones are appended. AVERAGE keeps the original blend's
+    //behaviour of dropping the points the new observation does not have, RUNNING_MEAN keeps them.
+    public void updateCoordinates(PointBuffer newCoordinates, FusionMode mode) {
+        synchronized (lock()) {
+            try {
+                ensureResident();
+                double[] newXs = newCoordinates.getXs();
+                double[] newYs = newCoordinates.getYs();
+                int common = Math.min(size, newCoordinates.size());
+                if (mode == FusionMode.RUNNING_MEAN) {
+                    for (int i = 0; i < common; i++) {
+                        int n = ++observations[i];
+                        xs[i] += (newXs[i] - xs[i]) / n;
+                        ys[i] += (newYs[i] - ys[i]) / n;
+                    }
+                } else {
+                    for (int i = 0; i < common; i++) {
+                        observations[i]++;
+                        xs[i] = (xs[i] + newXs[i]) / 2;
+                        ys[i] = (ys[i] + newYs[i]) / 2;
+                    }
+                    size = common;
+                }
+                if (newCoordinates.size() > size) {
+                    appendFrom(newXs, newYs, size, newCoordinates.size());
+                }
+            } catch (Exception e) {
+                System.err.println("Failed to update coordinates: " + e.getMessage());
             }
+        }
+    }
 
-            if(newCoordinates.size() > coordinates.size()){
-                for(int i = newCoordinates.size() - coordinates.size(); i < newCoordinates.size(); i ++){
-                    updatedCoordinates.add(newCoordinates.get(i));
+    /**
+     * Fuses a new observation whose points may come in any order or count. The observation is
+     * first aligned to the current points with ICP (it is moved in place), then every new point
+     * is fused into its nearest current point. New points with no current point within the
+     * aligner's distance are appended, but only until the landmark has as many points as the
+     * larger of itself and the observation, so like index pairing it never holds more points
+     * than its largest observation had. Without an aligner, or if no new point has a current
+     * point within that distance, points are paired by index instead.
+     */
+    public void updateCoordinates(PointBuffer newCoordinates, FusionMode mode, IcpAligner aligner) {
+        synchronized (lock()) {
+            if (aligner == null) {
+                updateCoordinates(newCoordinates, mode);
+                return;
+            }
+            try {
+                ensureResident();
+                int[] matches = aligner.align(xs, ys, size, newCoordinates);
+                if (!anyMatch(matches, newCoordinates.size())) {
+                    //too far off to align: appending every point would only duplicate the landmark
+                    updateCoordinates(newCoordinates, mode);
+                    return;
+                }
+                double[] newXs = newCoordinates.getXs();
+                double[] newYs = newCoordinates.getYs();
+                int oldSize = size;
+                int limit = Math.max(oldSize, newCoordinates.size());   //noise must not grow the landmark on every update
+                for (int i = 0; i < newCoordinates.size(); i++) {
+                    int j = matches[i];
+                    if (j < 0 || j >= oldSize) {
+                        if (size < limit) {
+                            appendFrom(newXs, newYs, i, i + 1);
+                        }
+                    } else if (mode == FusionMode.RUNNING_MEAN) {
+                        int n = ++observations[j];
+                        xs[j] += (newXs[i] - xs[j]) / n;
+                        ys[j] += (newYs[i] - ys[j]) / n;
+                    } else {
+                        observations[j]++;
+                        xs[j] = (xs[j] + newXs[i]) / 2;
+                        ys[j] = (ys[j] + newYs[i]) / 2;
+                    }
                 }
+            } catch (Exception e) {
+                System.err.println("Failed to update coordinates: " + e.getMessage());
+            }
+        }
+    }
+
+    private static boolean anyMatch(int[] matches, int count) {
+        for (int i = 0; i < count; i++) {
+            if (matches[i] >= 0) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            // Save the newly averaged coordinates
-            this.coordinates = updatedCoordinates;
-                
-        } catch (Exception e) {
-            System.err.println("Failed to update coordinates: " + e.getMessage());
+    //appends points from..to of the given arrays (only the tail the landmark does not have yet)
+    private void appendFrom(double[] newXs, double[] newYs, int from, int to) {
+        int needed = size + (to - from);
+        if (needed > xs.length) {
+            int capacity = Math.max(needed, xs.length * 2);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            observations = Arrays.copyOf(observations, capacity);
+        }
+        for (int i = from; i < to; i++) {
+            xs[size] = newXs[i];
+            ys[size] = newYs[i];
+            observations[size] = 1;
+            size++;
         }
     }
 
     //getter
     public String getLandmarkId(){
+        return SymbolTable.nameOf(this.id);
+    }
+    public int getLandmarkIdHandle(){
         return this.id;
     }
     public String getDescription(){
+        return SymbolTable.nameOf(this.description);
+    }
+    public int getDescriptionHandle(){
         return this.description;
     }
-    public synchronized ArrayList<CloudPoint> getCoordinates(){
-        return this.coordinates;
+
+    //returns a copy of the points as CloudPoints (for output)
+    public ArrayList<CloudPoint> getCoordinates(){
+        synchronized (lock()) {
+            ensureResident();
+            ArrayList<CloudPoint> coordinates = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                coordinates.add(new CloudPoint(xs[i], ys[i]));
+            }
+            return coordinates;
+        }
+    }
+
+    //copies the points into a reusable buffer, without allocating per point
+    public void copyCoordinates(PointBuffer out){
+        synchronized (lock()) {
+            ensureResident();
+            out.setSize(size);
+            System.arraycopy(xs, 0, out.getXs(), 0, size);
+            System.arraycopy(ys, 0, out.getYs(), 0, size);
+        }
+    }
+
+    //immutable copy of the current points for a map snapshot
+    LandmarkView view(long version){
+        synchronized (lock()) {
+            ensureResident();
+            return new LandmarkView(id, description, Arrays.copyOf(xs, size), Arrays.copyOf(ys, size),
+                    Arrays.copyOf(observations, size), version);
+        }
+    }
+
+    int getMapIndex(){
+        return mapIndex;
+    }
+
+    public int getObservations(int index){
+        synchronized (lock()) {
+            ensureResident();
+            return observations[index];
+        }
+    }
+
+    public double getCentroidX(){
+        synchronized (lock()) {
+            ensureResident();
+            return mean(xs);
+        }
+    }
+
+    public double getCentroidY(){
+        synchronized (lock()) {
+            ensureResident();
+            return mean(ys);
+        }
+    }
+
+    //RMS distance of the points from the centroid, used to compare shapes
+    public double getSpread(){
+        synchronized (lock()) {
+            ensureResident();
+            return AssociationEngine.spread(xs, ys, size, mean(xs), mean(ys));
+        }
+    }
+
+    //bytes writePoints needs
+    int pointBytes(){
+        synchronized (lock()) {
+            return 4 + size * 20;
+        }
+    }
+
+    //writes the points out and drops the arrays, the tile of this landmark is being evicted
+    void writePoints(ByteBuffer out){
+        synchronized (lock()) {
+            out.putInt(size);
+            for (int i = 0; i < size; i++) {
+                out.putDouble(xs[i]).putDouble(ys[i]).putInt(observations[i]);
+            }
+            xs = null;
+            ys = null;
+            observations = null;
+        }
+    }
+
+    //reads back the points writePoints wrote
+    void readPoints(ByteBuffer in){
+        synchronized (lock()) {
+            int count = in.getInt();
+            allocate(count);
+            for (int i = 0; i < count; i++) {
+                xs[i] = in.getDouble();
+                ys[i] = in.getDouble();
+                observations[i] = in.getInt();
+            }
+            size = count;
+        }
+    }
+
+    boolean isResident(){
+        synchronized (lock()) {
+            return xs != null;
+        }
+    }
+
+    //the monitor that guards the points
+    private Object lock(){
+        TiledMap map = tiledMap;
+        return map != null ? map : this;
+    }
+
+    //loads the points back if the tile was evicted
+    private void ensureResident(){
+        if (xs == null) {
+            tiledMap.load(this);
+        }
+    }
+
+    private double mean(double[] values){
+        if (size == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += values[i];
+        }
+        return sum / size;
+    }
+
+    public int size(){
+        synchronized (lock()) {
+            return size;
+        }
     }
 }
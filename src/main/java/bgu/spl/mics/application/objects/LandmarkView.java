@@ -0,0 +1,74 @@
+package bgu.spl.mics.application.objects;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Immutable copy of a landmark at one snapshot version.
+ * Made by the map writer whenever the landmark changes, and shared by every
+ * MapSnapshot until the landmark changes again.
+ */
+public final class LandmarkView {
+    private final int id;
+    private final int description;
+    private final double[] xs;
+    private final double[] ys;
+    private final int[] observations;
+    private final long version;   //snapshot version this copy was made for
+
+    LandmarkView(int id, int description, double[] xs, double[] ys, int[] observations, long version) {
+        this.id = id;
+        this.description = description;
+        this.xs = xs;
+        this.ys = ys;
+        this.observations = observations;
+        this.version = version;
+    }
+
+    public String getLandmarkId() {
+        return SymbolTable.nameOf(id);
+    }
+
+    public int getLandmarkIdHandle() {
+        return id;
+    }
+
+    public String getDescription() {
+        return SymbolTable.nameOf(description);
+    }
+
+    public int size() {
+        return xs.length;
+    }
+
+    public double getX(int i) {
+        return xs[i];
+    }
+
+    public double getY(int i) {
+        return ys[i];
+    }
+
+    public int getObservations(int i) {
+        return observations[i];
+    }
+
+    public int getDescriptionHandle() {
+        return description;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public ArrayList<CloudPoint> getCoordinates() {
+        ArrayList<CloudPoint> coordinates = new ArrayList<>(xs.length);
+        for (int i = 0; i < xs.length; i++) {
+            coordinates.add(new CloudPoint(xs[i], ys[i]));
+        }
+        return coordinates;
+    }
+
+    public String toString() {
+        return "Landmark " + getLandmarkId() + " (" + getDescription() + "): " + Arrays.toString(xs) + ", " + Arrays.toString(ys);
+    }
+}
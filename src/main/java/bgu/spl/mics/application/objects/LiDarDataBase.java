@@ -1,14 +1,13 @@
 package bgu.spl.mics.application.objects;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.lang.reflect.Type;
 import java.util.ArrayList;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
@@ -18,8 +17,13 @@ import java.util.concurrent.atomic.AtomicInteger;
  * It provides access to cloud point data and other relevant information for tracked objects.
  */
 public class LiDarDataBase {
-    // Store cloud points with concurrent access 
-    private final ConcurrentHashMap<String, ArrayList<StampedCloudPoints>> objectDataMap;
+    // Cloud points per object, indexed by the object's SymbolTable handle.
+    // Filled once in the constructor and only read afterwards.
+    private final ArrayList<ArrayList<StampedCloudPoints>> objectDataMap;
+    // Records with no ID, by time and in file order. They cannot be looked up by ID,
+    // so the k-th one at a time goes with the k-th unlabelled detection at that time.
+    private final HashMap<Integer, ArrayList<StampedCloudPoints>> unlabelledByTime;
+    private final HashSet<Integer> errorTimes;   //times that have an ERROR entry
     private final AtomicInteger leftToTrack;
 
     private static class SingletonHolder{
@@ -35,7 +39,9 @@ public class LiDarDataBase {
     //Private constructor that loads data from the JSON file.
     //We make it private to enforce the Singleton pattern.
     private LiDarDataBase(String filePath) {
-        objectDataMap = new ConcurrentHashMap<>();
+        objectDataMap = new ArrayList<>();
+        unlabelledByTime = new HashMap<>();
+        errorTimes = new HashSet<>();
         leftToTrack = new AtomicInteger(0);
         loadDataFromFile(filePath);
     }
@@ -43,83 +49,167 @@ public class LiDarDataBase {
 
      //Loads cloud point data from a JSON file into our database
     private void loadDataFromFile(String filePath) {
-        Gson gson = new Gson();
         File file = new File(filePath);
         System.out.println("Loading LiDAR data from: " + file.getAbsolutePath());
         
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            Type lidarDataType = new TypeToken<ArrayList<StampedCloudPoints>>(){}.getType();
-            ArrayList<StampedCloudPoints> data = gson.fromJson(reader, lidarDataType);
-            
-            if (data == null) {
-                throw new RuntimeException("Failed to parse LiDAR data: null result");
-            }
-            
-            //organize data by object ID for faster lookups
-            for (StampedCloudPoints point : data) {
-                String objectId = point.getId();
-                objectDataMap.computeIfAbsent(objectId, k -> new ArrayList<>()).add(point);
+        try (JsonReader reader = new JsonReader(new BufferedReader(new FileReader(file)))) {
+            reader.beginArray();
+            //organize data by object handle for faster lookups
+            while (reader.hasNext()) {
+                StampedCloudPoints point = readStampedCloudPoints(reader);
+                int objectId = point.getIdHandle();
                 leftToTrack.incrementAndGet();
-            }       
-        } catch (IOException e) {
+                if (SymbolTable.isUnlabelled(objectId)) {
+                    unlabelledByTime.computeIfAbsent(point.getTime(), t -> new ArrayList<>()).add(point);
+                    continue;
+                }
+                while (objectDataMap.size() <= objectId) {
+                    objectDataMap.add(null);
+                }
+                if (objectDataMap.get(objectId) == null) {
+                    objectDataMap.set(objectId, new ArrayList<>());
+                }
+                objectDataMap.get(objectId).add(point);
+                if (objectId == SymbolTable.ERROR) {
+                    errorTimes.add(point.getTime());
+                }
+            }
+            reader.endArray();
+        } catch (IOException | IllegalStateException e) {
             System.err.println("Failed to load LiDAR data from file: " + e.getMessage());
             throw new RuntimeException("Database initialization failed", e);
         }
     }
 
+    private StampedCloudPoints readStampedCloudPoints(JsonReader reader) throws IOException {
+        String id = null;
+        int time = 0;
+        ArrayList<ArrayList<Double>> cloudPoints = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (field.equals("id")) {
+                id = reader.nextString();
+            } else if (field.equals("time")) {
+                time = reader.nextInt();
+            } else if (field.equals("cloudPoints")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    ArrayList<Double> point = new ArrayList<>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        point.add(reader.nextDouble());
+                    }
+                    reader.endArray();
+                    cloudPoints.add(point);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new StampedCloudPoints(SymbolTable.intern(id), time, cloudPoints);
+    }
+
 
     //return the cooresponding CloudPoints
     public ArrayList<CloudPoint> getCoordinates(String objectId, int time) {
+        return getCoordinates(SymbolTable.intern(objectId), time);
+    }
+
+    public ArrayList<CloudPoint> getCoordinates(int objectId, int time) {
         // Get all points for this object
-        ArrayList<StampedCloudPoints> objectPoints = objectDataMap.get(objectId);
+        ArrayList<StampedCloudPoints> objectPoints = getObjectPoints(objectId);
         if (objectPoints == null) {
-            throw new IllegalArgumentException("No data found for object: " + objectId);
+            throw new IllegalArgumentException("No data found for object: " + SymbolTable.nameOf(objectId));
         }
     
         // Find points for the specific time
         for (StampedCloudPoints p : objectPoints) {
             if (p.getTime() == time) {
-                //convert the points to CloudPoint objects
-                ArrayList<ArrayList<Double>> points = p.getCloudPoints();
-                ArrayList<CloudPoint> coordinates = new ArrayList<>();
-                
-                // Create CloudPoint objects from the coordinates
-                for (int i = 0; i < points.size(); i++) {
-                    ArrayList<Double> point = points.get(i);
-                    coordinates.add(new CloudPoint(point.get(0), point.get(1)));
-                }                
-                return coordinates;
+                return toCloudPoints(p);
             }
         }
         //if we get here, we didn't find points for the requested time
         throw new IllegalArgumentException(
-            "No data found for object " + objectId + " at time " + time);
+            "No data found for object " + SymbolTable.nameOf(objectId) + " at time " + time);
+    }
+
+    //the cloud of the index-th record without an ID at the given time (in file order)
+    public ArrayList<CloudPoint> getUnlabelledCoordinates(int time, int index) {
+        ArrayList<StampedCloudPoints> records = unlabelledByTime.get(time);
+        if (records == null || index >= records.size()) {
+            throw new IllegalArgumentException("No data found for unlabelled object " + index + " at time " + time);
+        }
+        return toCloudPoints(records.get(index));
+    }
+
+    //convert the points to CloudPoint objects
+    private ArrayList<CloudPoint> toCloudPoints(StampedCloudPoints stamped) {
+        ArrayList<ArrayList<Double>> points = stamped.getCloudPoints();
+        ArrayList<CloudPoint> coordinates = new ArrayList<>(points.size());
+        for (ArrayList<Double> point : points) {
+            coordinates.add(new CloudPoint(point.get(0), point.get(1)));
+        }
+        return coordinates;
     }
 
     
      //Checks if we have data for a specific object.
     public boolean hasObjectData(String objectId) {
-        return objectDataMap.containsKey(objectId);
+        return getObjectPoints(SymbolTable.intern(objectId)) != null;
+    }
+
+    private ArrayList<StampedCloudPoints> getObjectPoints(int objectId) {
+        if (objectId < 0 || objectId >= objectDataMap.size()) {
+            return null;
+        }
+        return objectDataMap.get(objectId);
     }
 
     public void setLeftToTrack(){
         leftToTrack.decrementAndGet();
     }
 
+    //counts a batch of tracked records off at once
+    public void decrementLeftToTrack(int tracked){
+        leftToTrack.addAndGet(-tracked);
+    }
+
+    int getLeftToTrack(){
+        return leftToTrack.get();
+    }
+
+    void restoreLeftToTrack(int left){
+        leftToTrack.set(left);
+    }
+
     public boolean isLeftToTrack(){
         return leftToTrack.get()!=0;
     }
 
     public ArrayList<String> getObjectsIDsAtTime(int time) {
         ArrayList<String> objectIds = new ArrayList<>();
-        for (ArrayList<StampedCloudPoints> points : objectDataMap.values()) {
+        for (ArrayList<StampedCloudPoints> points : objectDataMap) {
+            if (points == null) {
+                continue;
+            }
             for (StampedCloudPoints stampedPoints : points) {
                 if (stampedPoints.getTime() == time) {
                     objectIds.add(stampedPoints.getId());
                 }
             }
         }
+        for (StampedCloudPoints stampedPoints : unlabelledByTime.getOrDefault(time, new ArrayList<>())) {
+            objectIds.add(stampedPoints.getId());
+        }
         return objectIds;
      }
 
+    //checks if the data has an ERROR entry at the given time
+    public boolean hasErrorAtTime(int time) {
+        return errorTimes.contains(time);
+    }
+
 }
\ No newline at end of file
@@ -1,7 +1,10 @@
 package bgu.spl.mics.application.objects;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RecursiveAction;
 
 import bgu.spl.mics.application.messages.DetectObjectsEvent;
 import bgu.spl.mics.application.messages.TrackedObjectsEvent;
@@ -18,19 +21,25 @@ public class LiDarWorkerTracker {
     private final int frequency;
     private STATUS status;
     private final ArrayList<TrackedObject> lastTrackedObjects;
-    private final ConcurrentLinkedQueue<TrackedObject> pendingObjects;
+    private final PriorityBlockingQueue<PendingObject> pendingObjects;   //min-heap on the tick the object is ready at
+    private long pendingSequence = 0;   //arrival order, breaks ties between objects ready at the same tick
     private final LiDarDataBase database;
     // private int totalObjectsToProcess;
     // private int processedObjects;
     StatisticalFolder stats;
 
+    // ready batches at least this big are looked up on the fork-join pool
+    private static final int PARALLEL_THRESHOLD = 256;
+    // size of the pieces a parallel batch is split into
+    private static final int SERIAL_CHUNK = 64;
+
     //consturctor
     public LiDarWorkerTracker(int id, int frequency, String dataPath, StatisticalFolder stats){
         this.id = id;
         this.frequency = frequency;
         this.status = STATUS.UP;
         this.lastTrackedObjects = new ArrayList<>();
-        this.pendingObjects = new ConcurrentLinkedQueue<>();
+        this.pendingObjects = new PriorityBlockingQueue<>();
         this.database = LiDarDataBase.getInstance(dataPath); 
         // this.totalObjectsToProcess = 0;
         // this.processedObjects = 0;
@@ -57,7 +66,7 @@ public class LiDarWorkerTracker {
 
       //  totalObjectsToProcess += objectsToTrack.size();
         for (TrackedObject object : objectsToTrack) {
-            pendingObjects.offer(object);
+            pendingObjects.offer(new PendingObject(object, readyTick(object), pendingSequence++));
         }
     }
 
@@ -75,11 +84,12 @@ public class LiDarWorkerTracker {
         ArrayList<TrackedObject> pendingTrackedObjects = new ArrayList<>();
 
         //Get the detected objects from the camera event
+        int unlabelled = 0;
         for (DetectedObject detected : event.getDetectedObjects()) {
             TrackedObject tracked = new TrackedObject(
-                detected.getId(),
+                detected.getIdHandle(),
                 event.getTimeStamp(),
-                detected.getDescription(),
+                detected.getDescriptionHandle(),
                 null //Coordinates will be filled in later during processing
             );
             //check for error condition
@@ -88,6 +98,9 @@ public class LiDarWorkerTracker {
                 status = STATUS.ERROR;
                 return null;
             }
+            if (tracked.isUnlabelled()) {
+                tracked = withUnlabelledCoordinates(tracked, unlabelled++);
+            }
 
             pendingTrackedObjects.add(tracked); 
         }
@@ -111,37 +124,24 @@ public class LiDarWorkerTracker {
         
         if (!objectsToProcess.isEmpty()) {
             // Check database for ERROR at this time tick
-            for(String obj : database.getObjectsIDsAtTime(currentTick)) {
-                if(obj.equals("ERROR")) {
-                    status = STATUS.ERROR;
-                    return null;
-                }
+            if(database.hasErrorAtTime(currentTick)) {
+                status = STATUS.ERROR;
+                return null;
             }
-            ArrayList<TrackedObject> processedObjects = new ArrayList<>();
             for (TrackedObject obj : objectsToProcess) {
                 //check for error condition before processing
                 if(!isValid(obj)){
                     status = STATUS.ERROR;
                     return null;
                 }
-                try {
-                    ArrayList<CloudPoint> coordinates = database.getCoordinates(obj.getID(), obj.getTime());
-                    TrackedObject processedObj = new TrackedObject(
-                        obj.getID(),
-                        obj.getTime(),
-                        obj.getDescription(),
-                        coordinates
-                    );
-                    processedObjects.add(processedObj);
-                    stats.updateLidarLastFrame(this, processedObj);
-                    stats.incrementTrackedObjects(1);
-                    database.setLeftToTrack();
-                    System.out.println("LiDar successfully tracked object " + obj.getID() + " at time " + obj.getTime() + ", total tracked: " + stats.getNumTrackedObjects());
-             //       this.processedObjects++; //increment processed count
-
-                } catch (Exception e) {
-                    System.err.println("Failed to process object " + obj.getID());
-                }
+            }
+            ArrayList<TrackedObject> processedObjects = lookupCoordinates(objectsToProcess);
+            if (!processedObjects.isEmpty()) {
+                //one statistics update per tick instead of one per object
+                stats.updateLidarLastFrame(this, processedObjects.get(processedObjects.size() - 1));
+                stats.incrementTrackedObjects(processedObjects.size());
+                database.decrementLeftToTrack(processedObjects.size());
+                System.out.println("LiDar " + getID() + " tracked " + processedObjects.size() + " objects at tick " + currentTick + ", total tracked: " + stats.getNumTrackedObjects());
             }
             if (!processedObjects.isEmpty()) {
                 TrackedObjectsEvent event = new TrackedObjectsEvent(processedObjects);
@@ -152,21 +152,120 @@ public class LiDarWorkerTracker {
         return readyEvents;
     }        
 
-    // Check pending objects to see which are ready
+    // Fetches the coordinates of every ready object. Big batches are split across the
+    // fork-join pool, small ones stay on the calling thread. Order is kept either way.
+    private ArrayList<TrackedObject> lookupCoordinates(ArrayList<TrackedObject> objects) {
+        TrackedObject[] results = new TrackedObject[objects.size()];
+        if (objects.size() >= PARALLEL_THRESHOLD) {
+            ForkJoinPool.commonPool().invoke(new LookupTask(objects, results, 0, objects.size()));
+        } else {
+            lookupRange(objects, results, 0, objects.size());
+        }
+        ArrayList<TrackedObject> processedObjects = new ArrayList<>(results.length);
+        for (TrackedObject obj : results) {
+            if (obj != null) {
+                processedObjects.add(obj);
+            }
+        }
+        return processedObjects;
+    }
+
+    private void lookupRange(ArrayList<TrackedObject> objects, TrackedObject[] results, int from, int to) {
+        for (int i = from; i < to; i++) {
+            TrackedObject obj = objects.get(i);
+            if (obj.getCoordinates() != null) {
+                results[i] = obj;   //unlabelled, looked up when it was detected
+                continue;
+            }
+            try {
+                ArrayList<CloudPoint> coordinates = database.getCoordinates(obj.getIDHandle(), obj.getTime());
+                results[i] = new TrackedObject(
+                    obj.getIDHandle(),
+                    obj.getTime(),
+                    obj.getDescriptionHandle(),
+                    coordinates
+                );
+            } catch (Exception e) {
+                System.err.println("Failed to process object " + obj.getID());
+            }
+        }
+    }
+
+    // An unlabelled object has no ID to look its cloud up by. It is the k-th object without an ID
+    // in its detection, so it gets the k-th record without an ID at that time. This is done when
+    // the detection arrives, while the order of the camera's objects is still known.
+    private TrackedObject withUnlabelledCoordinates(TrackedObject obj, int index) {
+        try {
+            return new TrackedObject(obj.getIDHandle(), obj.getTime(), obj.getDescriptionHandle(),
+                                     database.getUnlabelledCoordinates(obj.getTime(), index));
+        } catch (Exception e) {
+            System.err.println("Failed to process unlabelled object " + index + " at time " + obj.getTime());
+            return obj;
+        }
+    }
+
+    // splits a ready batch in halves until the pieces are small enough to run serially
+    private class LookupTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final ArrayList<TrackedObject> objects;
+        private final TrackedObject[] results;
+        private final int from;
+        private final int to;
+
+        LookupTask(ArrayList<TrackedObject> objects, TrackedObject[] results, int from, int to) {
+            this.objects = objects;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SERIAL_CHUNK) {
+                lookupRange(objects, results, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new LookupTask(objects, results, from, mid), new LookupTask(objects, results, mid, to));
+        }
+    }
+
+    // Pop every pending object that is ready. The heap head is always the earliest
+    // ready tick, so the first object that is not ready means no other object is.
     private ArrayList<TrackedObject> getReadyObjects(int currentTick) {
         ArrayList<TrackedObject> readyObjects = new ArrayList<>();
-        TrackedObject object;
-        while ((object = pendingObjects.peek()) != null) {
-            if (object.getTime() + frequency <= currentTick) {
-                pendingObjects.poll();
-                readyObjects.add(object);
-            } else {
-                // If this object isn't ready, later ones won't be either
-                break;
-            }
+        PendingObject pending;
+        while ((pending = pendingObjects.peek()) != null && pending.readyTick <= currentTick) {
+            readyObjects.add(pendingObjects.poll().object);
         }
         return readyObjects;
     }
+
+    // the tick at which a pending object can be sent on
+    private int readyTick(TrackedObject object) {
+        return object.getTime() + frequency;
+    }
+    
+    // heap entry for a pending object, ordered by ready tick and then by arrival
+    private static class PendingObject implements Comparable<PendingObject> {
+        private final TrackedObject object;
+        private final int readyTick;
+        private final long sequence;
+
+        PendingObject(TrackedObject object, int readyTick, long sequence) {
+            this.object = object;
+            this.readyTick = readyTick;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(PendingObject other) {
+            if (readyTick != other.readyTick) {
+                return Integer.compare(readyTick, other.readyTick);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
     
     private void updateLastTrackedObjects(ArrayList<TrackedObject> objects) {
         lastTrackedObjects.clear();
@@ -177,7 +276,7 @@ public class LiDarWorkerTracker {
     public boolean isValid(TrackedObject trackedObject){
         if(trackedObject!=null){
             System.out.println("LiDar " + getID() + " checking object ID: " + trackedObject.getID());
-            if(trackedObject.getID().equals("ERROR")){
+            if(trackedObject.isError()){
                 System.out.println("LiDar: "+ getID() + " detected error");
                 return false;
             }
@@ -198,4 +297,25 @@ public class LiDarWorkerTracker {
     public boolean areAllSensorsDown(){
         return stats.areAllSensorsDown();
     }
+
+    LiDarDataBase getDatabase(){
+        return database;
+    }
+
+    //objects waiting for their ready tick, in the order they will be sent. Used by SimulationSnapshot.
+    ArrayList<TrackedObject> getPendingObjects(){
+        PendingObject[] pending = pendingObjects.toArray(new PendingObject[0]);
+        Arrays.sort(pending);
+        ArrayList<TrackedObject> objects = new ArrayList<>(pending.length);
+        for (PendingObject p : pending) {
+            objects.add(p.object);
+        }
+        return objects;
+    }
+
+    void restorePending(STATUS status, List<TrackedObject> objects){
+        this.status = status;
+        pendingObjects.clear();
+        addPendingObjects(objects);
+    }
 }
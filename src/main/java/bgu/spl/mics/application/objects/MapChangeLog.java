@@ -0,0 +1,242 @@
+package bgu.spl.mics.application.objects;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Append-only log of landmark changes, one JSON object per line (NDJSON).
+ * Every time FusionSlam publishes a map snapshot, the landmarks that changed are
+ * appended with the tick, the snapshot version and their full current points, each with
+ * the number of observations fused into it:
+ * {"tick":3,"version":7,"op":"insert","id":"Wall_1","description":"Wall","coordinates":[{"x":1.0,"y":2.0,"observations":1}]}
+ * Lines are formatted and written by a background thread, so the fusion thread only
+ * queues the (immutable) views. The log is flushed whenever the queue runs empty,
+ * so it can be read while the simulation runs. replay rebuilds the map from it.
+ */
+public class MapChangeLog {
+    private static final Gson JSON = new GsonBuilder().create();
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final LinkedBlockingQueue<Batch> queue;
+    private final Writer out;
+    private final Thread writerThread;
+    private volatile boolean closed = false;
+
+    //changes of one snapshot. inserted[i] is true if views[i] is a new landmark.
+    private static final class Batch {
+        private final int tick;
+        private final long version;
+        private final List<LandmarkView> views;
+        private final boolean[] inserted;
+
+        Batch(int tick, long version, List<LandmarkView> views, boolean[] inserted) {
+            this.tick = tick;
+            this.version = version;
+            this.views = views;
+            this.inserted = inserted;
+        }
+    }
+    private static final Batch STOP = new Batch(-1, -1, new ArrayList<>(), new boolean[0]);
+
+    public MapChangeLog(String path) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(path),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE), BUFFER_SIZE);
+        this.queue = new LinkedBlockingQueue<>();
+        this.writerThread = new Thread(this::writeLoop, "MapChangeLog");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    //queues the changes of one snapshot. Never blocks and never touches the file.
+    public void append(int tick, long version, List<LandmarkView> views, boolean[] inserted) {
+        if (closed || views.isEmpty()) {
+            return;
+        }
+        queue.add(new Batch(tick, version, views, inserted));
+    }
+
+    //writes everything queued so far and closes the file
+    public void close() throws InterruptedException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.add(STOP);
+        writerThread.join();
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                Batch batch = queue.poll();
+                if (batch == null) {
+                    out.flush();   //caught up, make the log readable so far
+                    batch = queue.take();
+                }
+                if (batch == STOP) {
+                    break;
+                }
+                for (int i = 0; i < batch.views.size(); i++) {
+                    writeRecord(batch.tick, batch.version, batch.inserted[i], batch.views.get(i));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to write map change log: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close map change log: " + e.getMessage());
+            }
+        }
+    }
+
+    private void writeRecord(int tick, long version, boolean inserted, LandmarkView view) throws IOException {
+        JsonWriter json = JSON.newJsonWriter(out);
+        json.beginObject();
+        json.name("tick").value(tick);
+        json.name("version").value(version);
+        json.name("op").value(inserted ? "insert" : "update");
+        json.name("id").value(view.getLandmarkId());
+        json.name("description").value(view.getDescription());
+        json.name("coordinates").beginArray();
+        for (int i = 0; i < view.size(); i++) {
+            json.beginObject();
+            json.name("x").value(view.getX(i));
+            json.name("y").value(view.getY(i));
+            json.name("observations").value(view.getObservations(i));
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        out.write('\n');
+    }
+
+    /**
+     * Rebuilds the map from a change log: the last record of every landmark, in the
+     * order the landmarks were inserted. Records after maxTick are ignored, and so is
+     * a last line that was cut off by a crash.
+     */
+    public static ArrayList<LandmarkView> replay(String path, int maxTick) throws IOException {
+        LinkedHashMap<String, LandmarkView> map = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                Record record;
+                try {
+                    record = readRecord(new JsonReader(new StringReader(line)));
+                } catch (IOException | IllegalStateException | NumberFormatException e) {
+                    System.err.println("Skipping broken change log line: " + e.getMessage());
+                    continue;
+                }
+                if (record.tick > maxTick) {
+                    break;   //records are written in tick order
+                }
+                map.put(record.view.getLandmarkId(), record.view);   //an update keeps the insertion position
+            }
+        }
+        return new ArrayList<>(map.values());
+    }
+
+    public static ArrayList<LandmarkView> replay(String path) throws IOException {
+        return replay(path, Integer.MAX_VALUE);
+    }
+
+    //one parsed line of the log
+    private static final class Record {
+        private final int tick;
+        private final LandmarkView view;
+
+        Record(int tick, LandmarkView view) {
+            this.tick = tick;
+            this.view = view;
+        }
+    }
+
+    private static Record readRecord(JsonReader json) throws IOException {
+        int tick = 0;
+        String id = null;
+        String description = null;
+        long version = 0;
+        PointBuffer points = new PointBuffer();
+        int[] observations = new int[16];
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "tick":
+                    tick = json.nextInt();
+                    break;
+                case "version":
+                    version = json.nextLong();
+                    break;
+                case "id":
+                    id = json.nextString();
+                    break;
+                case "description":
+                    description = json.nextString();
+                    break;
+                case "coordinates":
+                    json.beginArray();
+                    while (json.hasNext()) {
+                        double x = 0, y = 0;
+                        int count = 1;   //logs written before the counts were logged
+                        json.beginObject();
+                        while (json.hasNext()) {
+                            String axis = json.nextName();
+                            if (axis.equals("x")) {
+                                x = json.nextDouble();
+                            } else if (axis.equals("y")) {
+                                y = json.nextDouble();
+                            } else if (axis.equals("observations")) {
+                                count = json.nextInt();
+                            } else {
+                                json.skipValue();
+                            }
+                        }
+                        json.endObject();
+                        if (points.size() == observations.length) {
+                            observations = Arrays.copyOf(observations, observations.length * 2);
+                        }
+                        observations[points.size()] = count;
+                        points.add(x, y);
+                    }
+                    json.endArray();
+                    break;
+                default:
+                    json.skipValue();   //op, and anything added later
+            }
+        }
+        json.endObject();
+        if (id == null) {
+            throw new IllegalStateException("record has no id");
+        }
+        double[] xs = Arrays.copyOf(points.getXs(), points.size());
+        double[] ys = Arrays.copyOf(points.getYs(), points.size());
+        return new Record(tick, new LandmarkView(SymbolTable.intern(id), SymbolTable.intern(description), xs, ys,
+                                                 Arrays.copyOf(observations, points.size()), version));
+    }
+}
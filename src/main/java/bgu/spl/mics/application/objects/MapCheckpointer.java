@@ -0,0 +1,317 @@
+package bgu.spl.mics.application.objects;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Writes incremental checkpoints of the FusionSlam state, for crash recovery.
+ * A checkpoint is a block appended to the checkpoint file. It holds the tick, the
+ * statistics counters, the poses since the last checkpoint, the landmarks that
+ * changed since the last checkpoint and the detections fused into them.
+ * Changed landmarks are found by comparing two MapSnapshots, which skips every
+ * chunk the two versions share.
+ * The snapshot is immutable, so the diff and the write run on a background thread
+ * and fusion never waits for them. If a checkpoint is still being written when the
+ * next one is due, the next one is skipped and the one after it covers both.
+ * Every block ends with a CRC, so a block cut off by a crash is ignored by load.
+ * A block that fails to write is cut off the file again, and its fused detections go
+ * into the next block, so a failure never hides the checkpoints after it.
+ */
+public class MapCheckpointer {
+    private static final int BLOCK_MAGIC = 0x534c4d43;   //"SLMC"
+
+    private final FileChannel channel;
+    private final ExecutorService writer;
+    private final AtomicBoolean busy = new AtomicBoolean(false);
+    // last written state, only used on the writer thread (and before it starts)
+    private MapSnapshot lastSnapshot = MapSnapshot.EMPTY;
+    private int lastPoseTick = 0;
+    private final FusedDetections unwritten = new FusedDetections();   //fused detections no block holds yet
+
+    /**
+     * State read back from a checkpoint file.
+     */
+    public static class Restored {
+        private int tick;
+        private int systemRuntime;
+        private int numDetectedObjects;
+        private int numTrackedObjects;
+        private int numLandmarks;
+        private final ArrayList<Pose> poses = new ArrayList<>();
+        private final ArrayList<LandmarkView> landmarks = new ArrayList<>();   //by insertion position
+        private final FusedDetections fused = new FusedDetections();
+        private long validLength;   //bytes of the file up to the end of the last good block
+
+        public int getTick() { return tick; }
+        public int getSystemRuntime() { return systemRuntime; }
+        public int getNumDetectedObjects() { return numDetectedObjects; }
+        public int getNumTrackedObjects() { return numTrackedObjects; }
+        public int getNumLandmarks() { return numLandmarks; }
+        public ArrayList<Pose> getPoses() { return poses; }
+        //the pose of the checkpoint tick itself may not have reached FusionSlam in time
+        public int getLastPoseTick() { return poses.isEmpty() ? 0 : poses.get(poses.size() - 1).getTime(); }
+        public ArrayList<LandmarkView> getLandmarks() { return landmarks; }
+        public FusedDetections getFusedDetections() { return fused; }
+
+        /**
+         * Rewinds every camera to its first detection that is not in the restored map, and sets the
+         * counters and the LiDAR database to match. The cameras send the detections from there on
+         * again, and FusionSlam skips the ones it already fused (see FusionSlam.restore), so objects
+         * that were still on their way at the checkpoint are not lost.
+         * Returns the tick to start the simulation from.
+         */
+        public int rewindSensors(List<Camera> cameras, List<LiDarWorkerTracker> lidars, StatisticalFolder stats) {
+            FusedDetections left = fused.copy();
+            int startTick = tick + 1;
+            int sent = 0;
+            for (Camera camera : cameras) {
+                startTick = Math.min(startTick, camera.rewind(left));
+                sent += camera.getProcessedDetections();
+            }
+            startTick = Math.max(startTick, 1);
+            //every detection sent before the rewind was tracked, or it would not be in the map
+            stats.restoreCounters(startTick - 1, sent, sent, numLandmarks);
+            if (!lidars.isEmpty()) {
+                LiDarDataBase database = lidars.get(0).getDatabase();
+                database.restoreLeftToTrack(database.getLeftToTrack() - sent);
+            }
+            return startTick;
+        }
+    }
+
+    //opens the checkpoint file. When resuming, the good blocks already in it are kept
+    //(a block cut off by the crash is cut away) and new blocks are added after them.
+    public MapCheckpointer(String path, Restored resumedFrom) throws IOException {
+        long keep = resumedFrom == null ? 0 : resumedFrom.validLength;
+        this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.channel.truncate(keep);
+        this.channel.position(keep);
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "FusionCheckpoint");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    //the state the file already holds, so the next checkpoint only writes what changed after it
+    public void setBaseline(MapSnapshot snapshot, int tick) {
+        this.lastSnapshot = snapshot;
+        this.lastPoseTick = tick;
+    }
+
+    /**
+     * Starts a checkpoint of the given tick in the background.
+     * The counters are read now, the map and poses are read by the writer thread.
+     * fused holds the detections fused into the map since the last accepted checkpoint,
+     * it is handed over to the writer thread. If the block fails to write, they are kept
+     * for the next one.
+     * Returns false if the previous checkpoint is still being written.
+     */
+    public boolean checkpoint(int tick, MapSnapshot snapshot, FusedDetections fused, PoseStore poses, StatisticalFolder stats) {
+        if (!busy.compareAndSet(false, true)) {
+            return false;
+        }
+        int[] counters = {stats.getSystemRuntime(), stats.getNumDetectedObjects(),
+                          stats.getNumTrackedObjects(), stats.getNumLandmarks()};
+        writer.execute(() -> {
+            try {
+                writeBlock(tick, snapshot, fused, poses, counters);
+            } catch (IOException e) {
+                System.err.println("Failed to write checkpoint at tick " + tick + ": " + e.getMessage());
+            } finally {
+                busy.set(false);
+            }
+        });
+        return true;
+    }
+
+    //waits for the checkpoint being written, then closes the file
+    public void close() throws InterruptedException {
+        writer.shutdown();
+        writer.awaitTermination(1, TimeUnit.MINUTES);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close checkpoint file: " + e.getMessage());
+        }
+    }
+
+    private void writeBlock(int tick, MapSnapshot snapshot, FusedDetections fused, PoseStore poses, int[] counters) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(tick);
+        for (int counter : counters) {
+            out.writeInt(counter);
+        }
+
+        ArrayList<Pose> newPoses = new ArrayList<>();
+        int poseTick = Math.min(tick, poses.getLatestTick());   //the pose of this tick may not be here yet
+        for (int t = lastPoseTick + 1; t <= poseTick; t++) {
+            Pose pose = poses.get(t);
+            if (pose != null) {
+                newPoses.add(pose);
+            }
+        }
+        out.writeInt(newPoses.size());
+        for (Pose pose : newPoses) {
+            out.writeInt(pose.getTime());
+            out.writeFloat(pose.getPoseX());
+            out.writeFloat(pose.getPoseY());
+            out.writeFloat(pose.getYaw());
+        }
+
+        int[] changed = snapshot.changedSince(lastSnapshot);
+        out.writeInt(changed.length);
+        for (int index : changed) {
+            LandmarkView view = snapshot.get(index);
+            out.writeInt(index);
+            out.writeUTF(view.getLandmarkId());
+            String description = view.getDescription();
+            out.writeBoolean(description != null);
+            if (description != null) {
+                out.writeUTF(description);
+            }
+            out.writeInt(view.size());
+            for (int i = 0; i < view.size(); i++) {
+                out.writeDouble(view.getX(i));
+                out.writeDouble(view.getY(i));
+                out.writeInt(view.getObservations(i));
+            }
+        }
+        unwritten.addAll(fused);
+        unwritten.write(out);
+        out.flush();
+
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer block = ByteBuffer.allocate(8 + payload.length + 8);
+        block.putInt(BLOCK_MAGIC).putInt(payload.length).put(payload).putLong(crc.getValue());
+        block.flip();
+        long start = channel.position();
+        try {
+            write(block);
+            channel.force(false);   //the block is on disk before it counts as written
+        } catch (IOException e) {
+            //cut the partial block away, or load would stop at it and miss every later block
+            channel.truncate(start);
+            channel.position(start);
+            throw e;
+        }
+        unwritten.clear();
+        lastSnapshot = snapshot;
+        lastPoseTick = Math.max(lastPoseTick, poseTick);
+        System.out.println("Checkpoint at tick " + tick + ": " + changed.length + " landmarks, " + newPoses.size() + " poses");
+    }
+
+    //writes a whole block at the current position
+    void write(ByteBuffer block) throws IOException {
+        while (block.hasRemaining()) {
+            channel.write(block);
+        }
+    }
+
+    /**
+     * Reads every complete block of a checkpoint file and merges them.
+     * Stops at the first block that is cut off or does not match its CRC.
+     * Returns null if the file has no complete checkpoint.
+     */
+    public static Restored load(String path) throws IOException {
+        Path file = Paths.get(path);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        long fileSize = Files.size(file);
+        long position = 0;
+        Restored restored = null;
+        ArrayList<LandmarkView> landmarks = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                byte[] payload;
+                try {
+                    if (in.readInt() != BLOCK_MAGIC) {
+                        System.err.println("Checkpoint file is damaged, using the blocks before it");
+                        break;
+                    }
+                    int length = in.readInt();
+                    if (length < 0 || position + 8 + length + 8 > fileSize) {
+                        break;   //a block cut off while it was written
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    if (in.readLong() != crc.getValue()) {
+                        System.err.println("Last checkpoint is incomplete, ignoring it");
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;   //end of file, or a block cut off while it was written
+                }
+                if (restored == null) {
+                    restored = new Restored();
+                }
+                readBlock(new DataInputStream(new ByteArrayInputStream(payload)), restored, landmarks);
+                position += 8 + payload.length + 8;
+                restored.validLength = position;
+            }
+        }
+        if (restored != null) {
+            restored.landmarks.addAll(landmarks);
+        }
+        return restored;
+    }
+
+    private static void readBlock(DataInputStream in, Restored restored, ArrayList<LandmarkView> landmarks) throws IOException {
+        restored.tick = in.readInt();
+        restored.systemRuntime = in.readInt();
+        restored.numDetectedObjects = in.readInt();
+        restored.numTrackedObjects = in.readInt();
+        restored.numLandmarks = in.readInt();
+        int poseCount = in.readInt();
+        for (int i = 0; i < poseCount; i++) {
+            int time = in.readInt();
+            float x = in.readFloat();
+            float y = in.readFloat();
+            float yaw = in.readFloat();
+            restored.poses.add(new Pose(x, y, yaw, time));
+        }
+        int changed = in.readInt();
+        for (int c = 0; c < changed; c++) {
+            int index = in.readInt();
+            int id = SymbolTable.intern(in.readUTF());
+            int description = in.readBoolean() ? SymbolTable.intern(in.readUTF()) : SymbolTable.NONE;
+            int n = in.readInt();
+            double[] xs = new double[n];
+            double[] ys = new double[n];
+            int[] observations = new int[n];
+            for (int i = 0; i < n; i++) {
+                xs[i] = in.readDouble();
+                ys[i] = in.readDouble();
+                observations[i] = in.readInt();
+            }
+            while (landmarks.size() <= index) {
+                landmarks.add(null);
+            }
+            landmarks.set(index, new LandmarkView(id, description, xs, ys, observations, 0));
+        }
+        restored.fused.read(in);
+    }
+}
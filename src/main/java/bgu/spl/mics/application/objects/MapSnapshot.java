@@ -0,0 +1,113 @@
+package bgu.spl.mics.application.objects;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable, versioned snapshot of the landmark map.
+ * Landmarks are kept in insertion order in fixed size chunks. A new version
+ * copies only the top level array and the chunks that hold changed landmarks;
+ * every other chunk (and every unchanged LandmarkView) is shared with the
+ * previous version. Snapshots are safe to read from any thread without locking.
+ */
+public final class MapSnapshot implements Iterable<LandmarkView> {
+    private static final int CHUNK_BITS = 6;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    public static final MapSnapshot EMPTY = new MapSnapshot(0, 0, new LandmarkView[0][]);
+
+    private final long version;
+    private final int size;
+    private final LandmarkView[][] chunks;
+
+    private MapSnapshot(long version, int size, LandmarkView[][] chunks) {
+        this.version = version;
+        this.size = size;
+        this.chunks = chunks;
+    }
+
+    //makes the next version with the given landmarks replaced (or added, for new map indexes)
+    MapSnapshot withChanges(Collection<LandMark> changed, int newSize) {
+        long newVersion = version + 1;
+        int chunkCount = (newSize + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+        LandmarkView[][] newChunks = Arrays.copyOf(chunks, Math.max(chunkCount, chunks.length));
+        for (LandMark landmark : changed) {
+            int index = landmark.getMapIndex();
+            int c = index >>> CHUNK_BITS;
+            if (newChunks[c] == null) {
+                newChunks[c] = new LandmarkView[CHUNK_SIZE];
+            } else if (c < chunks.length && newChunks[c] == chunks[c]) {
+                newChunks[c] = newChunks[c].clone();   //first change in this chunk, stop sharing it
+            }
+            newChunks[c][index & (CHUNK_SIZE - 1)] = landmark.view(newVersion);
+        }
+        return new MapSnapshot(newVersion, newSize, newChunks);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    //the landmark at the given insertion position
+    public LandmarkView get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("No landmark at " + index + ", snapshot has " + size);
+        }
+        return chunks[index >>> CHUNK_BITS][index & (CHUNK_SIZE - 1)];
+    }
+
+    //insertion positions of the landmarks that differ from an older version of the same map.
+    //chunks shared with the older version are skipped without looking inside.
+    public int[] changedSince(MapSnapshot older) {
+        int[] changed = new int[size];
+        int count = 0;
+        for (int c = 0; c < chunks.length; c++) {
+            LandmarkView[] chunk = chunks[c];
+            LandmarkView[] old = c < older.chunks.length ? older.chunks[c] : null;
+            if (chunk == null || chunk == old) {
+                continue;
+            }
+            int end = Math.min(CHUNK_SIZE, size - (c << CHUNK_BITS));
+            for (int i = 0; i < end; i++) {
+                if (old == null || chunk[i] != old[i]) {
+                    changed[count++] = (c << CHUNK_BITS) + i;
+                }
+            }
+        }
+        return Arrays.copyOf(changed, count);
+    }
+
+    public ArrayList<LandmarkView> toList() {
+        ArrayList<LandmarkView> list = new ArrayList<>(size);
+        for (LandmarkView view : this) {
+            list.add(view);
+        }
+        return list;
+    }
+
+    @Override
+    public Iterator<LandmarkView> iterator() {
+        return new Iterator<LandmarkView>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public LandmarkView next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return get(next++);
+            }
+        };
+    }
+}
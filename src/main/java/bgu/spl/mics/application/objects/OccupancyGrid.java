@@ -0,0 +1,165 @@
+package bgu.spl.mics.application.objects;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 2D occupancy grid rasterized from the landmark points.
+ * The grid is sparse: it is made of 64x64 cell blocks that only exist where there are
+ * points. Every cell counts the landmark points that fall into it, and a cell is
+ * occupied while its count is above zero.
+ * The grid remembers the cells each landmark was rasterized into. When a landmark
+ * changes, its old cells are decremented and its new ones incremented, so an update
+ * costs as much as the points of the changed landmark, however big the map is.
+ * Exported as a binary PGM (P5) image: occupied cells are 0 (black), the rest 255.
+ * Like the rest of the map, it is only used by the map writer thread.
+ */
+public class OccupancyGrid {
+    private static final int BLOCK_SHIFT = 6;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;   //cells per block side
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+    private final double resolution;
+    private final HashMap<Long, Block> blocks = new HashMap<>();
+    private final HashMap<Integer, long[]> landmarkCells = new HashMap<>();   //landmark ID handle -> cells it is counted in
+    private final PointBuffer scratch = new PointBuffer();
+    private int occupiedCells = 0;
+
+    //counts of one block, row by row
+    private static final class Block {
+        private final int[] counts = new int[BLOCK_SIZE * BLOCK_SIZE];
+        private int occupied = 0;
+    }
+
+    public OccupancyGrid(double resolution) {
+        if (!(resolution > 0)) {
+            throw new IllegalArgumentException("Grid resolution must be positive.");
+        }
+        this.resolution = resolution;
+    }
+
+    //re-rasterizes one landmark: removes its old cells and adds its current ones
+    public void update(LandMark landmark) {
+        long[] old = landmarkCells.get(landmark.getLandmarkIdHandle());
+        if (old != null) {
+            for (long cell : old) {
+                add(cell, -1);
+            }
+        }
+        landmark.copyCoordinates(scratch);
+        long[] cells = new long[scratch.size()];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = key(cellOf(scratch.getX(i)), cellOf(scratch.getY(i)));
+            add(cells[i], 1);
+        }
+        landmarkCells.put(landmark.getLandmarkIdHandle(), cells);
+    }
+
+    public boolean isOccupied(double x, double y) {
+        long cell = key(cellOf(x), cellOf(y));
+        Block block = blocks.get(blockKey(cell));
+        return block != null && block.counts[indexInBlock(cell)] > 0;
+    }
+
+    public int getOccupiedCells() {
+        return occupiedCells;
+    }
+
+    public double getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Writes the bounding box of the occupied cells as a binary PGM image, top row first
+     * (highest y). A comment in the header gives the resolution and the world position of
+     * the bottom left corner, so image pixels can be mapped back to map coordinates.
+     */
+    public void writePgm(String path) throws IOException {
+        int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+        int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+        for (Map.Entry<Long, Block> entry : blocks.entrySet()) {
+            int bx = (int) (entry.getKey() >> 32);
+            int by = (int) (long) entry.getKey();
+            int[] counts = entry.getValue().counts;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    int cx = (bx << BLOCK_SHIFT) + (i & BLOCK_MASK);
+                    int cy = (by << BLOCK_SHIFT) + (i >> BLOCK_SHIFT);
+                    minX = Math.min(minX, cx);
+                    maxX = Math.max(maxX, cx);
+                    minY = Math.min(minY, cy);
+                    maxY = Math.max(maxY, cy);
+                }
+            }
+        }
+        if (occupiedCells == 0) {
+            minX = maxX = minY = maxY = 0;   //a single free pixel
+        }
+        int width = maxX - minX + 1;
+        int height = maxY - minY + 1;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(path), 1 << 16)) {
+            String header = "P5\n# resolution " + resolution + " origin " + (minX * resolution) + " " + (minY * resolution) + "\n"
+                    + width + " " + height + "\n255\n";
+            out.write(header.getBytes(StandardCharsets.US_ASCII));
+            byte[] row = new byte[width];
+            for (int cy = maxY; cy >= minY; cy--) {
+                //one block lookup per block the row crosses, not one per cell
+                for (int cx = minX; cx <= maxX; ) {
+                    int blockEnd = Math.min(maxX, ((cx >> BLOCK_SHIFT) << BLOCK_SHIFT) + BLOCK_MASK);
+                    Block block = blocks.get(blockKey(key(cx, cy)));
+                    for (; cx <= blockEnd; cx++) {
+                        boolean occupied = block != null && block.counts[indexInBlock(key(cx, cy))] > 0;
+                        row[cx - minX] = occupied ? 0 : (byte) 255;
+                    }
+                }
+                out.write(row);
+            }
+        }
+    }
+
+    private void add(long cell, int delta) {
+        long blockKey = blockKey(cell);
+        Block block = blocks.get(blockKey);
+        if (block == null) {
+            block = new Block();
+            blocks.put(blockKey, block);
+        }
+        int index = indexInBlock(cell);
+        int before = block.counts[index];
+        block.counts[index] = before + delta;
+        if (before == 0 && delta > 0) {
+            block.occupied++;
+            occupiedCells++;
+        } else if (before + delta == 0) {
+            block.occupied--;
+            occupiedCells--;
+            if (block.occupied == 0) {
+                blocks.remove(blockKey);   //empty blocks are dropped, so the grid only grows with the map
+            }
+        }
+    }
+
+    private int cellOf(double coordinate) {
+        return (int) Math.floor(coordinate / resolution);
+    }
+
+    private static long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    private static long blockKey(long cell) {
+        int cx = (int) (cell >> 32);
+        int cy = (int) cell;
+        return key(cx >> BLOCK_SHIFT, cy >> BLOCK_SHIFT);
+    }
+
+    private static int indexInBlock(long cell) {
+        int cx = (int) (cell >> 32);
+        int cy = (int) cell;
+        return ((cy & BLOCK_MASK) << BLOCK_SHIFT) | (cx & BLOCK_MASK);
+    }
+}
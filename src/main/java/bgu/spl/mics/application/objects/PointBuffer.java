@@ -0,0 +1,92 @@
+package bgu.spl.mics.application.objects;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A reusable structure-of-arrays buffer of 2D points.
+ * x and y are kept in separate primitive arrays so loops over them need no boxing
+ * and can be vectorized by the JIT. The buffer grows when needed and is never shrunk,
+ * so reusing one buffer per thread makes the transform path allocation free.
+ */
+public class PointBuffer {
+    private double[] xs;
+    private double[] ys;
+    private int size;
+
+    public PointBuffer() {
+        this(16);
+    }
+
+    public PointBuffer(int capacity) {
+        this.xs = new double[capacity];
+        this.ys = new double[capacity];
+        this.size = 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    //makes room for at least capacity points, keeping the current ones
+    public void ensureCapacity(int capacity) {
+        if (capacity > xs.length) {
+            int newCapacity = Math.max(capacity, xs.length * 2);
+            xs = Arrays.copyOf(xs, newCapacity);
+            ys = Arrays.copyOf(ys, newCapacity);
+        }
+    }
+
+    public void add(double x, double y) {
+        ensureCapacity(size + 1);
+        xs[size] = x;
+        ys[size] = y;
+        size++;
+    }
+
+    //replaces the content of the buffer with the given points
+    public void load(List<CloudPoint> points) {
+        ensureCapacity(points.size());
+        size = points.size();
+        for (int i = 0; i < size; i++) {
+            CloudPoint point = points.get(i);
+            xs[i] = point.getCloudPointX();
+            ys[i] = point.getCloudPointY();
+        }
+    }
+
+    //sets the number of points, used after a kernel wrote straight into the arrays
+    public void setSize(int size) {
+        ensureCapacity(size);
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double[] getXs() {
+        return xs;
+    }
+
+    public double[] getYs() {
+        return ys;
+    }
+
+    public double getX(int i) {
+        return xs[i];
+    }
+
+    public double getY(int i) {
+        return ys[i];
+    }
+
+    //copies the points out as CloudPoints, for code that still needs objects
+    public ArrayList<CloudPoint> toCloudPoints() {
+        ArrayList<CloudPoint> points = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            points.add(new CloudPoint(xs[i], ys[i]));
+        }
+        return points;
+    }
+}
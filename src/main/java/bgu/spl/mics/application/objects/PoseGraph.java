@@ -0,0 +1,605 @@
+package bgu.spl.mics.application.objects;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pose-graph backend that corrects the drift of the GPS/IMU poses.
+ * Nodes are the robot poses at the ticks that had observations (x, y, yaw) and the
+ * landmark centroids (x, y). Edges are:
+ * - odometry between consecutive pose nodes, the motion the raw poses report
+ * - an observation of a landmark centroid from a pose, in the robot's frame
+ * - a prior that holds the first pose in place
+ * When a landmark is seen again from a pose that drifted, its observations disagree
+ * with the odometry, and solving the graph spreads the error over the poses.
+ * The graph is solved by Gauss-Newton. The normal equations are never built: conjugate
+ * gradients (with a Jacobi preconditioner) only needs H*v, which is summed edge by edge
+ * from the Jacobians. Each optimize only solves for the variables that changed (see
+ * optimize), so its cost depends on the new observations and not on the size of the graph.
+ * Jacobians are cached per edge. A variable is only relinearized when its estimate moved
+ * more than RELINEARIZE_THRESHOLD from the point it was linearized at, and only the edges
+ * touching it (and new edges) compute new Jacobians. Everything else uses the first
+ * order model r = r0 + J (x - x0).
+ * Angles are in radians inside the graph. Only the map writer thread uses it, except
+ * correct(), which any thread may call.
+ */
+public class PoseGraph {
+    private static final double RELINEARIZE_THRESHOLD = 0.01;
+    private static final int MAX_ITERATIONS = 10;
+    private static final double WILDFIRE_THRESHOLD = 1e-3;   //a step this big pulls the neighbours into the solve
+    private static final int MAX_CG_ITERATIONS = 500;
+    private static final double CONVERGED = 1e-6;    //stop when the largest step is below this
+    private static final double PRIOR_WEIGHT = 1e6;
+    private static final double ODOMETRY_XY_WEIGHT = 1.0 / (0.1 * 0.1);             //10 cm
+    private static final double ODOMETRY_YAW_WEIGHT = 1.0 / Math.pow(Math.toRadians(2.0), 2);   //2 degrees
+    private static final double OBSERVATION_WEIGHT = 1.0 / (0.2 * 0.2);             //20 cm
+
+    private double[] x = new double[64];    //current estimate of every variable
+    private double[] x0 = new double[64];   //point every variable was linearized at
+    private int dimensions = 0;
+    private final ArrayList<Edge> edges = new ArrayList<>();
+    private final TreeMap<Integer, PoseNode> poses = new TreeMap<>();       //tick -> node
+    private final HashMap<Integer, Variable> landmarks = new HashMap<>();   //landmark ID handle -> centroid
+    private final ArrayList<Variable> frontier = new ArrayList<>();   //variables to solve for in the next optimize
+    private int visit = 0;
+    private int relinearized = 0;    //edges that computed new Jacobians in the last solve
+    private volatile Correction correction = Correction.NONE;
+
+    //a block of the state vector
+    private static class Variable {
+        final int offset;
+        final int dim;
+        final ArrayList<Edge> edges = new ArrayList<>();
+        int local = -1;          //offset in the arrays of the current solve, -1 when not solved for
+        boolean queued = false;  //in the frontier, or already joining the solve
+
+        Variable(int offset, int dim) {
+            this.offset = offset;
+            this.dim = dim;
+        }
+    }
+
+    //a pose variable and the raw pose the GPS/IMU reported for it
+    private static final class PoseNode extends Variable {
+        private final double rawX, rawY, rawYaw;
+
+        PoseNode(int offset, double rawX, double rawY, double rawYaw) {
+            super(offset, 3);
+            this.rawX = rawX;
+            this.rawY = rawY;
+            this.rawYaw = rawYaw;
+        }
+    }
+
+    /**
+     * The rigid transform from the raw poses to the optimized ones at the latest pose node.
+     * Immutable, so it can be handed to other threads through a volatile field.
+     */
+    private static final class Correction {
+        private static final Correction NONE = new Correction(0, 0, 0);
+        private final double yaw, cos, sin, tx, ty;
+
+        Correction(double yaw, double tx, double ty) {
+            this.yaw = yaw;
+            this.cos = Math.cos(yaw);
+            this.sin = Math.sin(yaw);
+            this.tx = tx;
+            this.ty = ty;
+        }
+    }
+
+    //a residual over some variables, with its Jacobian cached at the linearization point
+    private abstract static class Edge {
+        final Variable[] vars;
+        final double[] weights;   //diagonal information, one per residual
+        final double[] r0;        //residual at the linearization point
+        final double[][] jacobian;   //[residual][column], columns of the variables in order
+        boolean dirty = true;
+        int visit = 0;
+
+        Edge(double[] weights, Variable... vars) {
+            this.vars = vars;
+            this.weights = weights;
+            int columns = 0;
+            for (Variable var : vars) {
+                columns += var.dim;
+            }
+            this.r0 = new double[weights.length];
+            this.jacobian = new double[weights.length][columns];
+        }
+
+        //fills r0 and jacobian at the values in x
+        abstract void linearize(double[] x);
+    }
+
+    private static final class PriorEdge extends Edge {
+        private final double px, py, pyaw;
+
+        PriorEdge(PoseNode pose) {
+            super(new double[] {PRIOR_WEIGHT, PRIOR_WEIGHT, PRIOR_WEIGHT}, pose);
+            this.px = pose.rawX;
+            this.py = pose.rawY;
+            this.pyaw = pose.rawYaw;
+        }
+
+        @Override
+        void linearize(double[] x) {
+            int o = vars[0].offset;
+            r0[0] = x[o] - px;
+            r0[1] = x[o + 1] - py;
+            r0[2] = wrap(x[o + 2] - pyaw);
+            for (int i = 0; i < 3; i++) {
+                jacobian[i][i] = 1.0;
+            }
+        }
+    }
+
+    //relative motion from pose a to pose b, in the frame of a
+    private static final class OdometryEdge extends Edge {
+        private final double dx, dy, dyaw;
+
+        OdometryEdge(PoseNode a, PoseNode b) {
+            super(new double[] {ODOMETRY_XY_WEIGHT, ODOMETRY_XY_WEIGHT, ODOMETRY_YAW_WEIGHT}, a, b);
+            double c = Math.cos(a.rawYaw), s = Math.sin(a.rawYaw);
+            double ex = b.rawX - a.rawX, ey = b.rawY - a.rawY;
+            this.dx = c * ex + s * ey;
+            this.dy = -s * ex + c * ey;
+            this.dyaw = wrap(b.rawYaw - a.rawYaw);
+        }
+
+        @Override
+        void linearize(double[] x) {
+            int a = vars[0].offset, b = vars[1].offset;
+            double c = Math.cos(x[a + 2]), s = Math.sin(x[a + 2]);
+            double ex = x[b] - x[a], ey = x[b + 1] - x[a + 1];
+            double h1 = c * ex + s * ey;
+            double h2 = -s * ex + c * ey;
+            r0[0] = h1 - dx;
+            r0[1] = h2 - dy;
+            r0[2] = wrap(x[b + 2] - x[a + 2] - dyaw);
+            double[][] j = jacobian;
+            j[0][0] = -c; j[0][1] = -s; j[0][2] = h2;  j[0][3] = c;  j[0][4] = s;  j[0][5] = 0;
+            j[1][0] = s;  j[1][1] = -c; j[1][2] = -h1; j[1][3] = -s; j[1][4] = c;  j[1][5] = 0;
+            j[2][0] = 0;  j[2][1] = 0;  j[2][2] = -1;  j[2][3] = 0;  j[2][4] = 0;  j[2][5] = 1;
+        }
+    }
+
+    //a landmark centroid seen at (zx, zy) in the frame of a pose
+    private static final class ObservationEdge extends Edge {
+        private final double zx, zy;
+
+        ObservationEdge(PoseNode pose, Variable landmark, double zx, double zy) {
+            super(new double[] {OBSERVATION_WEIGHT, OBSERVATION_WEIGHT}, pose, landmark);
+            this.zx = zx;
+            this.zy = zy;
+        }
+
+        @Override
+        void linearize(double[] x) {
+            int p = vars[0].offset, l = vars[1].offset;
+            double c = Math.cos(x[p + 2]), s = Math.sin(x[p + 2]);
+            double ex = x[l] - x[p], ey = x[l + 1] - x[p + 1];
+            double h1 = c * ex + s * ey;
+            double h2 = -s * ex + c * ey;
+            r0[0] = h1 - zx;
+            r0[1] = h2 - zy;
+            double[][] j = jacobian;
+            j[0][0] = -c; j[0][1] = -s; j[0][2] = h2;  j[0][3] = c;  j[0][4] = s;
+            j[1][0] = s;  j[1][1] = -c; j[1][2] = -h1; j[1][3] = -s; j[1][4] = c;
+        }
+    }
+
+    /**
+     * Adds an observation of a landmark centroid, seen at (localX, localY) in the robot's frame
+     * at the given tick. rawPose is the uncorrected GPS/IMU pose of that tick. Returns true
+     * if the landmark was already in the graph, so the observation closes a loop.
+     */
+    public boolean addObservation(int landmarkId, Pose rawPose, double localX, double localY) {
+        PoseNode pose = poseNode(rawPose);
+        Variable landmark = landmarks.get(landmarkId);
+        boolean known = landmark != null;
+        if (!known) {
+            //start at where the optimized pose puts it
+            double c = Math.cos(x[pose.offset + 2]), s = Math.sin(x[pose.offset + 2]);
+            landmark = addVariable(new Variable(dimensions, 2),
+                    x[pose.offset] + c * localX - s * localY,
+                    x[pose.offset + 1] + s * localX + c * localY);
+            landmarks.put(landmarkId, landmark);
+        }
+        addEdge(new ObservationEdge(pose, landmark, localX, localY));
+        return known;
+    }
+
+    /**
+     * Runs Gauss-Newton on the part of the graph that changed, and publishes the new drift correction.
+     * Only the variables of the edges added since the last call are solved for, the rest are held
+     * fixed. When a step moves a variable by more than WILDFIRE_THRESHOLD, its neighbours join the
+     * solve in the next iteration, so a correction spreads only as far as it matters. If it is still
+     * spreading after MAX_ITERATIONS, the next call carries on from where it stopped.
+     * Returns the number of iterations.
+     */
+    public int optimize() {
+        if (poses.isEmpty()) {
+            return 0;
+        }
+        relinearized = 0;
+        ArrayList<Variable> active = takeFrontier();
+        ArrayList<Variable> grown = new ArrayList<>();
+        int iteration = 0;
+        while (!active.isEmpty() && iteration < MAX_ITERATIONS) {
+            iteration++;
+            int n = 0;
+            for (Variable var : active) {
+                var.local = n;
+                n += var.dim;
+            }
+            ArrayList<Edge> activeEdges = edgesOf(active);
+            linearizeDirty(activeEdges);
+            //g = sum J^T W r, with r from the first order model around x0
+            double[] gradient = new double[n];
+            double[] r = new double[3];
+            for (Edge edge : activeEdges) {
+                residual(edge, r);
+                accumulateTransposed(edge, r, gradient);
+            }
+            for (int i = 0; i < n; i++) {
+                gradient[i] = -gradient[i];
+            }
+            double[] step = new double[n];
+            solve(activeEdges, gradient, step);
+
+            double largest = 0;
+            grown.clear();
+            for (Variable var : active) {
+                double moved = 0;
+                for (int i = 0; i < var.dim; i++) {
+                    x[var.offset + i] += step[var.local + i];
+                    moved = Math.max(moved, Math.abs(step[var.local + i]));
+                }
+                if (var instanceof PoseNode) {
+                    x[var.offset + 2] = wrap(x[var.offset + 2]);
+                }
+                relinearizeIfMoved(var);
+                largest = Math.max(largest, moved);
+                if (moved > WILDFIRE_THRESHOLD) {
+                    spread(var, grown);
+                }
+            }
+            for (Variable var : active) {
+                var.local = -1;
+            }
+            for (Variable var : grown) {
+                var.queued = false;
+            }
+            active.addAll(grown);
+            if (largest < CONVERGED && grown.isEmpty()) {
+                break;
+            }
+        }
+        //the variables that joined in the last iteration were never solved for
+        for (Variable var : grown) {
+            queue(var);
+        }
+        publishCorrection();
+        return iteration;
+    }
+
+    /**
+     * Applies the latest drift correction to a raw GPS/IMU pose. Any thread may call this.
+     */
+    public Pose correct(Pose raw) {
+        Correction c = correction;
+        if (c == Correction.NONE) {
+            return raw;
+        }
+        double x = c.cos * raw.getPoseX() - c.sin * raw.getPoseY() + c.tx;
+        double y = c.sin * raw.getPoseX() + c.cos * raw.getPoseY() + c.ty;
+        double yaw = raw.getYaw() + Math.toDegrees(c.yaw);
+        return new Pose((float) x, (float) y, (float) yaw, raw.getTime());
+    }
+
+    //the optimized pose of a tick that has a node, or null
+    public Pose getOptimizedPose(int tick) {
+        PoseNode node = poses.get(tick);
+        if (node == null) {
+            return null;
+        }
+        return new Pose((float) x[node.offset], (float) x[node.offset + 1], (float) Math.toDegrees(x[node.offset + 2]), tick);
+    }
+
+    public int getPoseCount() {
+        return poses.size();
+    }
+
+    public int getEdgeCount() {
+        return edges.size();
+    }
+
+    //edges that computed new Jacobians in the last optimize
+    public int getRelinearizedEdges() {
+        return relinearized;
+    }
+
+    private PoseNode poseNode(Pose rawPose) {
+        PoseNode node = poses.get(rawPose.getTime());
+        if (node != null) {
+            return node;
+        }
+        double rawYaw = Math.toRadians(rawPose.getYaw());
+        Map.Entry<Integer, PoseNode> before = poses.lowerEntry(rawPose.getTime());
+        Map.Entry<Integer, PoseNode> after = poses.higherEntry(rawPose.getTime());
+        node = new PoseNode(dimensions, rawPose.getPoseX(), rawPose.getPoseY(), rawYaw);
+        //start from the raw pose moved by the correction of the closest node, so it agrees with its neighbours
+        Map.Entry<Integer, PoseNode> anchor = before != null ? before : after;
+        double[] start = {rawPose.getPoseX(), rawPose.getPoseY(), rawYaw};
+        if (anchor != null) {
+            start = corrected(anchor.getValue(), start);
+        }
+        addVariable(node, start);
+        poses.put(rawPose.getTime(), node);
+        if (before == null && after == null) {
+            addEdge(new PriorEdge(node));
+        }
+        if (before != null && after != null) {
+            //the motion from before to after is now split in two steps, its edge would count it twice
+            removeOdometry(before.getValue(), after.getValue());
+        }
+        if (before != null) {
+            addEdge(new OdometryEdge(before.getValue(), node));
+        }
+        if (after != null) {
+            addEdge(new OdometryEdge(node, after.getValue()));
+        }
+        return node;
+    }
+
+    private void removeOdometry(PoseNode from, PoseNode to) {
+        for (Edge edge : from.edges) {
+            if (edge instanceof OdometryEdge && edge.vars[0] == from && edge.vars[1] == to) {
+                edges.remove(edge);
+                from.edges.remove(edge);
+                to.edges.remove(edge);
+                queue(from);
+                queue(to);
+                return;
+            }
+        }
+    }
+
+    //the raw pose moved by the same rigid correction the node got from the optimization
+    private double[] corrected(PoseNode node, double[] raw) {
+        double yaw = x[node.offset + 2] - node.rawYaw;
+        double c = Math.cos(yaw), s = Math.sin(yaw);
+        double tx = x[node.offset] - (c * node.rawX - s * node.rawY);
+        double ty = x[node.offset + 1] - (s * node.rawX + c * node.rawY);
+        return new double[] {c * raw[0] - s * raw[1] + tx, s * raw[0] + c * raw[1] + ty, wrap(raw[2] + yaw)};
+    }
+
+    private void publishCorrection() {
+        PoseNode latest = poses.lastEntry().getValue();
+        double yaw = wrap(x[latest.offset + 2] - latest.rawYaw);
+        double c = Math.cos(yaw), s = Math.sin(yaw);
+        double tx = x[latest.offset] - (c * latest.rawX - s * latest.rawY);
+        double ty = x[latest.offset + 1] - (s * latest.rawX + c * latest.rawY);
+        correction = new Correction(yaw, tx, ty);
+    }
+
+    private <V extends Variable> V addVariable(V variable, double... start) {
+        if (dimensions + variable.dim > x.length) {
+            x = Arrays.copyOf(x, Math.max(x.length * 2, dimensions + variable.dim));
+            x0 = Arrays.copyOf(x0, x.length);
+        }
+        for (int i = 0; i < variable.dim; i++) {
+            x[variable.offset + i] = start[i];
+            x0[variable.offset + i] = start[i];
+        }
+        dimensions += variable.dim;
+        queue(variable);
+        return variable;
+    }
+
+    private void addEdge(Edge edge) {
+        edges.add(edge);
+        for (Variable var : edge.vars) {
+            var.edges.add(edge);
+            queue(var);
+        }
+    }
+
+    //marks a variable to be solved for in the next optimize
+    private void queue(Variable var) {
+        if (!var.queued) {
+            var.queued = true;
+            frontier.add(var);
+        }
+    }
+
+    private ArrayList<Variable> takeFrontier() {
+        ArrayList<Variable> taken = new ArrayList<>(frontier);
+        frontier.clear();
+        for (Variable var : taken) {
+            var.queued = false;
+        }
+        return taken;
+    }
+
+    //neighbours of var that are not solved for yet join grown
+    private static void spread(Variable var, ArrayList<Variable> grown) {
+        for (Edge edge : var.edges) {
+            for (Variable other : edge.vars) {
+                if (other.local < 0 && !other.queued) {
+                    other.queued = true;
+                    grown.add(other);
+                }
+            }
+        }
+    }
+
+    //every edge touching an active variable, once
+    private ArrayList<Edge> edgesOf(ArrayList<Variable> active) {
+        visit++;
+        ArrayList<Edge> result = new ArrayList<>();
+        for (Variable var : active) {
+            for (Edge edge : var.edges) {
+                if (edge.visit != visit) {
+                    edge.visit = visit;
+                    result.add(edge);
+                }
+            }
+        }
+        return result;
+    }
+
+    //a variable that moved too far from its linearization point gets a new one, and its edges new Jacobians
+    private void relinearizeIfMoved(Variable var) {
+        boolean moved = false;
+        for (int i = 0; i < var.dim && !moved; i++) {
+            moved = Math.abs(x[var.offset + i] - x0[var.offset + i]) > RELINEARIZE_THRESHOLD;
+        }
+        if (moved) {
+            System.arraycopy(x, var.offset, x0, var.offset, var.dim);
+            for (Edge edge : var.edges) {
+                edge.dirty = true;
+            }
+        }
+    }
+
+    private void linearizeDirty(ArrayList<Edge> activeEdges) {
+        for (Edge edge : activeEdges) {
+            if (edge.dirty) {
+                edge.linearize(x0);
+                edge.dirty = false;
+                relinearized++;
+            }
+        }
+    }
+
+    //r = r0 + J (x - x0)
+    private void residual(Edge edge, double[] r) {
+        for (int row = 0; row < edge.r0.length; row++) {
+            double value = edge.r0[row];
+            int column = 0;
+            for (Variable var : edge.vars) {
+                for (int i = 0; i < var.dim; i++, column++) {
+                    value += edge.jacobian[row][column] * (x[var.offset + i] - x0[var.offset + i]);
+                }
+            }
+            r[row] = value;
+        }
+    }
+
+    //out += J^T W r, on the active variables only
+    private static void accumulateTransposed(Edge edge, double[] r, double[] out) {
+        for (int row = 0; row < edge.r0.length; row++) {
+            double weighted = edge.weights[row] * r[row];
+            int column = 0;
+            for (Variable var : edge.vars) {
+                if (var.local >= 0) {
+                    for (int i = 0; i < var.dim; i++) {
+                        out[var.local + i] += edge.jacobian[row][column + i] * weighted;
+                    }
+                }
+                column += var.dim;
+            }
+        }
+    }
+
+    //out = H v = sum J^T W J v over the active variables, without building H
+    private static void multiply(ArrayList<Edge> activeEdges, double[] v, double[] out) {
+        Arrays.fill(out, 0.0);
+        double[] jv = new double[3];
+        for (Edge edge : activeEdges) {
+            for (int row = 0; row < edge.r0.length; row++) {
+                double value = 0;
+                int column = 0;
+                for (Variable var : edge.vars) {
+                    if (var.local >= 0) {
+                        for (int i = 0; i < var.dim; i++) {
+                            value += edge.jacobian[row][column + i] * v[var.local + i];
+                        }
+                    }
+                    column += var.dim;
+                }
+                jv[row] = value;
+            }
+            accumulateTransposed(edge, jv, out);
+        }
+    }
+
+    //solves H step = b by preconditioned conjugate gradients, H is positive definite thanks to the prior
+    //and the fixed variables around the active ones
+    private static void solve(ArrayList<Edge> activeEdges, double[] b, double[] step) {
+        int n = b.length;
+        double[] diagonal = new double[n];
+        for (Edge edge : activeEdges) {
+            for (int row = 0; row < edge.r0.length; row++) {
+                int column = 0;
+                for (Variable var : edge.vars) {
+                    if (var.local >= 0) {
+                        for (int i = 0; i < var.dim; i++) {
+                            double j = edge.jacobian[row][column + i];
+                            diagonal[var.local + i] += edge.weights[row] * j * j;
+                        }
+                    }
+                    column += var.dim;
+                }
+            }
+        }
+        double[] residual = b.clone();
+        double[] z = new double[n];
+        double[] direction = new double[n];
+        double[] hd = new double[n];
+        double rz = 0;
+        double bNorm = 0;
+        for (int i = 0; i < n; i++) {
+            z[i] = diagonal[i] > 0 ? residual[i] / diagonal[i] : residual[i];
+            direction[i] = z[i];
+            rz += residual[i] * z[i];
+            bNorm += b[i] * b[i];
+        }
+        double tolerance = 1e-12 * bNorm;
+        for (int iteration = 0; iteration < MAX_CG_ITERATIONS; iteration++) {
+            double rr = 0;
+            for (int i = 0; i < n; i++) {
+                rr += residual[i] * residual[i];
+            }
+            if (rr <= tolerance) {
+                break;   //early exit, the system is solved well enough
+            }
+            multiply(activeEdges, direction, hd);
+            double dhd = 0;
+            for (int i = 0; i < n; i++) {
+                dhd += direction[i] * hd[i];
+            }
+            if (dhd <= 0) {
+                break;
+            }
+            double alpha = rz / dhd;
+            double nextRz = 0;
+            for (int i = 0; i < n; i++) {
+                step[i] += alpha * direction[i];
+                residual[i] -= alpha * hd[i];
+                z[i] = diagonal[i] > 0 ? residual[i] / diagonal[i] : residual[i];
+                nextRz += residual[i] * z[i];
+            }
+            double beta = nextRz / rz;
+            rz = nextRz;
+            for (int i = 0; i < n; i++) {
+                direction[i] = z[i] + beta * direction[i];
+            }
+        }
+    }
+
+    //angle in (-pi, pi]
+    private static double wrap(double angle) {
+        double wrapped = angle % (2 * Math.PI);
+        if (wrapped > Math.PI) {
+            wrapped -= 2 * Math.PI;
+        } else if (wrapped <= -Math.PI) {
+            wrapped += 2 * Math.PI;
+        }
+        return wrapped;
+    }
+}
@@ -0,0 +1,121 @@
+package bgu.spl.mics.application.objects;
+
+/**
+ * Finds the robot's pose at a tick the pose history has no sample for.
+ * Between two samples the pose is interpolated in SE(2): x and y linearly, and the
+ * yaw along the shorter arc (so 170 to -170 degrees goes through 180, not through 0).
+ * Past the first or last sample the pose is extrapolated at the speed of the two
+ * nearest samples, but only for a few ticks, since the error grows with every tick.
+ * Two limits:
+ * - maxGap: the most ticks two samples may be apart to interpolate between them.
+ * - maxExtrapolation: the most ticks past a sample a pose may be extrapolated to.
+ */
+public class PoseInterpolator {
+    private final int maxGap;
+    private final int maxExtrapolation;
+
+    public PoseInterpolator(int maxGap, int maxExtrapolation) {
+        if (maxGap < 1 || maxExtrapolation < 0) {
+            throw new IllegalArgumentException("Pose interpolation limits must be positive.");
+        }
+        this.maxGap = maxGap;
+        this.maxExtrapolation = maxExtrapolation;
+    }
+
+    /**
+     * The pose at the given tick: the stored one, or one interpolated between the
+     * samples around it. Returns null if there is no sample on both sides within maxGap.
+     */
+    public Pose poseAt(PoseStore poses, int tick) {
+        Pose exact = poses.get(tick);
+        if (exact != null) {
+            return exact;
+        }
+        Pose before = previous(poses, tick, maxGap - 1);
+        if (before == null) {
+            return null;
+        }
+        Pose after = next(poses, tick, maxGap - (tick - before.getTime()));
+        if (after == null) {
+            return null;
+        }
+        return interpolate(before, after, tick);
+    }
+
+    /**
+     * Like poseAt, but a tick outside the samples is extrapolated if it is at most
+     * maxExtrapolation ticks past them. Use it when waiting longer for a sample is
+     * not possible, since the real pose may still arrive later.
+     */
+    public Pose estimatePoseAt(PoseStore poses, int tick) {
+        Pose pose = poseAt(poses, tick);
+        if (pose != null || maxExtrapolation == 0) {
+            return pose;
+        }
+        Pose before = previous(poses, tick, maxExtrapolation);
+        if (before != null) {
+            return extrapolate(before, previous(poses, before.getTime(), maxGap), tick);
+        }
+        Pose after = next(poses, tick, maxExtrapolation);
+        if (after != null) {
+            return extrapolate(after, next(poses, after.getTime(), maxGap), tick);
+        }
+        return null;
+    }
+
+    //the SE(2) pose a fraction of the way from a to b, for a tick between their times
+    public static Pose interpolate(Pose a, Pose b, int tick) {
+        double t = (double) (tick - a.getTime()) / (b.getTime() - a.getTime());
+        double x = a.getPoseX() + t * (b.getPoseX() - a.getPoseX());
+        double y = a.getPoseY() + t * (b.getPoseY() - a.getPoseY());
+        double yaw = a.getYaw() + t * yawDifference(a.getYaw(), b.getYaw());
+        return new Pose((float) x, (float) y, (float) normalizeYaw(yaw), tick);
+    }
+
+    //continues the motion from neighbor to anchor up to the tick. Without a neighbor the robot is taken to stand still.
+    private static Pose extrapolate(Pose anchor, Pose neighbor, int tick) {
+        if (neighbor == null) {
+            return new Pose(anchor.getPoseX(), anchor.getPoseY(), anchor.getYaw(), tick);
+        }
+        return interpolate(neighbor, anchor, tick);   //the same line, just outside [0, 1]
+    }
+
+    //signed yaw change from a to b along the shorter arc, in degrees
+    static double yawDifference(double a, double b) {
+        double difference = (b - a) % 360.0;
+        if (difference > 180.0) {
+            difference -= 360.0;
+        } else if (difference <= -180.0) {
+            difference += 360.0;
+        }
+        return difference;
+    }
+
+    //yaw in (-180, 180] degrees
+    private static double normalizeYaw(double yaw) {
+        return yawDifference(0.0, yaw);
+    }
+
+    //the nearest sample before the tick, at most range ticks back
+    private static Pose previous(PoseStore poses, int tick, int range) {
+        for (int t = tick - 1; t >= Math.max(0, tick - range); t--) {
+            Pose pose = poses.get(t);
+            if (pose != null) {
+                return pose;
+            }
+        }
+        return null;
+    }
+
+    //the nearest sample after the tick, at most range ticks ahead
+    private static Pose next(PoseStore poses, int tick, int range) {
+        int last = Math.min(poses.getLatestTick(), tick + range);
+        for (int t = tick + 1; t <= last; t++) {
+            Pose pose = poses.get(t);
+            if (pose != null) {
+                return pose;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,265 @@
+package bgu.spl.mics.application.objects;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The robot's pose history, indexed by tick. StatisticalFolder and FusionSlam share one.
+ * The last window ticks are kept in memory in a ring buffer, so lookups are O(1).
+ * Any number of threads can put and read without locking. Each slot is replaced
+ * with a compare-and-set. The first pose put for a tick wins, and putting the same
+ * tick again does nothing.
+ * A pose pushed out of the ring is spilled to a file before it is replaced.
+ * Its record goes at tick * RECORD_SIZE, so it can still be read back by tick and
+ * the full history can be listed in tick order.
+ * A store without a spill file forgets poses that leave the ring.
+ */
+public class PoseStore implements Iterable<Pose> {
+    public static final int DEFAULT_WINDOW = 1024;
+    private static final int RECORD_SIZE = 16;   //time + 1 (0 marks a hole), x, y, yaw
+    private static final int READ_BATCH = 4096;  //records read at once when listing the spilled history
+
+    private final AtomicReferenceArray<Pose> slots;
+    private final AtomicInteger latestTick = new AtomicInteger(-1);   //highest tick put so far
+    private final boolean spills;
+    private final String spillPath;   //null means a temporary file, made on the first spill
+    private volatile FileChannel spill;
+    private final AtomicInteger spilledTicks = new AtomicInteger(0);   //every tick below this may have a record in the file
+
+    //keeps the last DEFAULT_WINDOW ticks in memory and spills the rest to a temporary file
+    public PoseStore() {
+        this(DEFAULT_WINDOW, null, true);
+    }
+
+    //ring buffer that keeps the last capacity ticks and forgets older ones
+    public PoseStore(int capacity) {
+        this(capacity, null, false);
+    }
+
+    //keeps the last window ticks in memory and spills older ones to the given file (a temporary one if null)
+    public PoseStore(int window, String spillPath) {
+        this(window, spillPath, true);
+    }
+
+    private PoseStore(int window, String spillPath, boolean spills) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Pose store capacity must be positive.");
+        }
+        this.slots = new AtomicReferenceArray<>(window);
+        this.spillPath = spillPath;
+        this.spills = spills;
+    }
+
+    //any thread may call this. Returns false if the tick already had a pose.
+    public boolean put(Pose pose) {
+        int tick = pose.getTime();
+        if (tick < 0) {
+            throw new IllegalArgumentException("Pose time cannot be negative: " + tick);
+        }
+        int slot = tick % slots.length();
+        while (true) {
+            Pose current = slots.get(slot);
+            if (current != null && current.getTime() == tick) {
+                return false;
+            }
+            if (current != null && current.getTime() > tick) {
+                //the ring has moved past this tick already
+                if (!spills || readSpilled(tick) != null) {
+                    return false;
+                }
+                writeSpilled(pose);
+                break;
+            }
+            if (current != null && spills) {
+                writeSpilled(current);   //before it leaves the ring, so readers always find it somewhere
+            }
+            if (slots.compareAndSet(slot, current, pose)) {
+                break;
+            }
+        }
+        latestTick.accumulateAndGet(tick, Math::max);
+        return true;
+    }
+
+    //returns the pose at the given tick, or null if there is none (or it left a ring that does not spill)
+    public Pose get(int tick) {
+        if (tick < 0 || tick > latestTick.get()) {
+            return null;
+        }
+        Pose pose = slots.get(tick % slots.length());
+        if (pose != null && pose.getTime() == tick) {
+            return pose;
+        }
+        if (spills && tick < spilledTicks.get()) {
+            return readSpilled(tick);
+        }
+        return null;
+    }
+
+    public Pose getLatest() {
+        return get(latestTick.get());
+    }
+
+    public int getLatestTick() {
+        return latestTick.get();
+    }
+
+    //how many ticks are kept in memory
+    public int getWindow() {
+        return slots.length();
+    }
+
+    /**
+     * Every pose stored, in tick order: the spilled ones read back from the file,
+     * then the ones still in the ring. Poses put while iterating may be missed.
+     */
+    @Override
+    public Iterator<Pose> iterator() {
+        return new Iterator<Pose>() {
+            private final int last = latestTick.get();
+            private final ByteBuffer batch = ByteBuffer.allocate(READ_BATCH * RECORD_SIZE);
+            private int batchStart = -1;   //tick of the first record in batch
+            private int tick = -1;
+            private Pose next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Pose next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Pose current = next;
+                next = advance();
+                return current;
+            }
+
+            private Pose advance() {
+                while (++tick <= last) {
+                    Pose pose = slots.get(tick % slots.length());
+                    if (pose != null && pose.getTime() == tick) {
+                        return pose;
+                    }
+                    if (spills && tick < spilledTicks.get()) {
+                        pose = fromBatch(tick);
+                        if (pose != null) {
+                            return pose;
+                        }
+                    }
+                }
+                return null;
+            }
+
+            //reads the spill file in batches instead of one record at a time
+            private Pose fromBatch(int t) {
+                if (batchStart < 0 || t >= batchStart + READ_BATCH) {
+                    batch.clear();
+                    readFully(batch, (long) t * RECORD_SIZE);
+                    batch.flip();
+                    batchStart = t;
+                }
+                int offset = (t - batchStart) * RECORD_SIZE;
+                if (offset + RECORD_SIZE > batch.limit()) {
+                    return null;
+                }
+                return decode(batch, offset);
+            }
+        };
+    }
+
+    //closes the spill file. A temporary spill file is deleted when the JVM exits.
+    public void close() {
+        FileChannel channel = spill;
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close pose spill file: " + e.getMessage());
+        }
+    }
+
+    private void writeSpilled(Pose pose) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putInt(pose.getTime() + 1).putFloat(pose.getPoseX()).putFloat(pose.getPoseY()).putFloat(pose.getYaw());
+        record.flip();
+        long position = (long) pose.getTime() * RECORD_SIZE;
+        try {
+            FileChannel channel = spillChannel();
+            while (record.hasRemaining()) {
+                //positional writes do not move the channel position, so writers do not need a lock
+                position += channel.write(record, position);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to spill pose of tick " + pose.getTime(), e);
+        }
+        spilledTicks.accumulateAndGet(pose.getTime() + 1, Math::max);
+    }
+
+    private Pose readSpilled(int tick) {
+        if (spill == null) {
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        readFully(record, (long) tick * RECORD_SIZE);
+        record.flip();
+        return record.limit() < RECORD_SIZE ? null : decode(record, 0);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) {
+        try {
+            FileChannel channel = spillChannel();
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    break;   //past the last record
+                }
+                position += read;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read spilled poses", e);
+        }
+    }
+
+    private static Pose decode(ByteBuffer buffer, int offset) {
+        int time = buffer.getInt(offset) - 1;
+        if (time < 0) {
+            return null;   //a hole, no pose was spilled for this tick
+        }
+        return new Pose(buffer.getFloat(offset + 4), buffer.getFloat(offset + 8), buffer.getFloat(offset + 12), time);
+    }
+
+    //the file is only made when the first pose leaves the ring, short runs never touch the disk
+    private FileChannel spillChannel() throws IOException {
+        FileChannel channel = spill;
+        if (channel != null) {
+            return channel;
+        }
+        synchronized (this) {
+            if (spill == null) {
+                File file;
+                if (spillPath != null) {
+                    file = new File(spillPath);
+                } else {
+                    file = File.createTempFile("poses", ".spill");
+                    file.deleteOnExit();
+                }
+                spill = FileChannel.open(Paths.get(file.getPath()), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            return spill;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package bgu.spl.mics.application.objects;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Holds tracked objects that reached FusionSlam before the pose of their detection time.
+ * Objects are kept by tick and released when the matching pose arrives.
+ * Two limits keep it from growing forever when a pose never comes:
+ * - maxSize: the most objects held at once, the oldest ticks are dropped first.
+ * - maxLateness: how many ticks an object may wait for its pose.
+ * Used only from the FusionSlam service thread, so it is not synchronized.
+ */
+public class ReorderBuffer {
+    private final TreeMap<Integer, ArrayList<TrackedObject>> waiting;   //detection time -> objects waiting for that pose
+    private final int maxSize;
+    private final int maxLateness;
+    private int size;
+    private int dropped;
+
+    public ReorderBuffer(int maxSize, int maxLateness) {
+        if (maxSize < 0 || maxLateness < 0) {
+            throw new IllegalArgumentException("Reorder buffer limits cannot be negative.");
+        }
+        this.waiting = new TreeMap<>();
+        this.maxSize = maxSize;
+        this.maxLateness = maxLateness;
+        this.size = 0;
+        this.dropped = 0;
+    }
+
+    //holds an object until its pose arrives. Returns false if it was dropped right away.
+    public boolean add(TrackedObject trackedObject, int currentTick) {
+        if (maxSize == 0 || isTooLate(trackedObject.getTime(), currentTick)) {
+            drop(1);
+            return false;
+        }
+        while (size >= maxSize) {
+            Map.Entry<Integer, ArrayList<TrackedObject>> oldest = waiting.pollFirstEntry();
+            size -= oldest.getValue().size();
+            drop(oldest.getValue().size());
+        }
+        waiting.computeIfAbsent(trackedObject.getTime(), k -> new ArrayList<>()).add(trackedObject);
+        size++;
+        return true;
+    }
+
+    //removes and returns the objects that were waiting for the pose of the given tick
+    public ArrayList<TrackedObject> release(int tick) {
+        ArrayList<TrackedObject> ready = waiting.remove(tick);
+        if (ready == null) {
+            return new ArrayList<>();
+        }
+        size -= ready.size();
+        return ready;
+    }
+
+    //ticks up to the given one (inclusive) that have objects waiting, oldest first
+    public ArrayList<Integer> waitingTicksUpTo(int tick) {
+        return new ArrayList<>(waiting.headMap(tick, true).keySet());
+    }
+
+    //ticks whose objects expire at the given tick, oldest first
+    public ArrayList<Integer> expiringTicks(int currentTick) {
+        return waitingTicksUpTo(currentTick - maxLateness - 1);
+    }
+
+    //drops every object that waited longer than maxLateness. Returns how many were dropped.
+    public int expire(int currentTick) {
+        int expired = 0;
+        Iterator<Map.Entry<Integer, ArrayList<TrackedObject>>> it = waiting.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, ArrayList<TrackedObject>> entry = it.next();
+            if (!isTooLate(entry.getKey(), currentTick)) {
+                break;   //ticks are sorted, the rest are newer
+            }
+            expired += entry.getValue().size();
+            it.remove();
+        }
+        size -= expired;
+        drop(expired);
+        return expired;
+    }
+
+    //every object still waiting, oldest tick first. Used by SimulationSnapshot.
+    ArrayList<TrackedObject> getWaiting() {
+        ArrayList<TrackedObject> objects = new ArrayList<>(size);
+        for (ArrayList<TrackedObject> atTick : waiting.values()) {
+            objects.addAll(atTick);
+        }
+        return objects;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    //total number of objects that never got a pose
+    public int getDropped() {
+        return dropped;
+    }
+
+    private boolean isTooLate(int time, int currentTick) {
+        return currentTick - time > maxLateness;
+    }
+
+    private void drop(int count) {
+        if (count > 0) {
+            dropped += count;
+            System.err.println("Reorder buffer dropped " + count + " tracked objects with no pose");
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package bgu.spl.mics.application.objects;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves and restores the state of the whole simulation at a tick boundary:
+ * the cameras' progress, the LiDAR workers' pending objects, the LiDAR database's
+ * objects left to track, the GPSIMU tick, the statistics (counters, last frames,
+ * the pose history and sensor statuses), the FusionSlam map, and the tracked objects
+ * still waiting for a pose.
+ * Snapshots are only taken while every service is idle (see SnapshotBarrier), and are
+ * written as one compact binary file per tick: tick_<tick>.snapshot in the snapshot directory.
+ * Every string is written once and then referred to by its index in the file.
+ * The sensor data itself is not saved, it is loaded from the input files as usual.
+ */
+public class SimulationSnapshot {
+    private static final int MAGIC = 0x534c4d53;   //"SLMS"
+    private static final int FORMAT_VERSION = 2;
+    private static final int NO_SYMBOL = -2;
+    private static final int NEW_SYMBOL = -1;
+
+    private final File directory;
+    private final List<Camera> cameras;
+    private final List<LiDarWorkerTracker> lidars;
+    private final GPSIMU gpsimu;
+    private final StatisticalFolder stats;
+    private final FusionSlam fusionSlam;
+    private final ReorderBuffer reorderBuffer;
+
+    public SimulationSnapshot(String directory, List<Camera> cameras, List<LiDarWorkerTracker> lidars, GPSIMU gpsimu,
+                              StatisticalFolder stats, FusionSlam fusionSlam, ReorderBuffer reorderBuffer) {
+        this.directory = new File(directory);
+        this.cameras = cameras;
+        this.lidars = lidars;
+        this.gpsimu = gpsimu;
+        this.stats = stats;
+        this.fusionSlam = fusionSlam;
+        this.reorderBuffer = reorderBuffer;
+    }
+
+    public File fileFor(int tick) {
+        return new File(directory, "tick_" + tick + ".snapshot");
+    }
+
+    //saves the state after the given tick. Only call while the services are idle.
+    public void write(int tick) throws IOException {
+        directory.mkdirs();
+        File file = fileFor(tick);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            Writer w = new Writer(out);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(tick);
+
+            out.writeInt(stats.getSystemRuntime());
+            out.writeInt(stats.getNumDetectedObjects());
+            out.writeInt(stats.getNumTrackedObjects());
+            out.writeInt(stats.getNumLandmarks());
+            Map<String, STATUS> statuses = stats.getSensorStatuses();
+            out.writeInt(statuses.size());
+            for (Map.Entry<String, STATUS> entry : statuses.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeByte(entry.getValue().ordinal());
+            }
+            w.poses(stats.getPoses());
+
+            out.writeInt(cameras.size());
+            for (Camera camera : cameras) {
+                out.writeInt(camera.getID());
+                out.writeByte(camera.getStatus().ordinal());
+                out.writeInt(camera.getLastProcessedTick());
+                out.writeInt(camera.getProcessedDetections());
+                StampedDetectedObjects lastFrame = stats.getCamerasLastFrame().get(camera);
+                out.writeBoolean(lastFrame != null);
+                if (lastFrame != null) {
+                    out.writeInt(lastFrame.getTime());
+                    out.writeInt(lastFrame.getDetectedObjects().size());
+                    for (DetectedObject object : lastFrame.getDetectedObjects()) {
+                        w.symbol(object.getIdHandle());
+                        w.symbol(object.getDescriptionHandle());
+                    }
+                }
+            }
+
+            out.writeInt(lidars.size());
+            for (LiDarWorkerTracker lidar : lidars) {
+                out.writeInt(lidar.getID());
+                out.writeByte(lidar.getStatus().ordinal());
+                w.trackedObjects(lidar.getPendingObjects());
+                TrackedObject lastFrame = stats.getLidarsLastFrame().get(lidar);
+                out.writeBoolean(lastFrame != null);
+                if (lastFrame != null) {
+                    w.trackedObject(lastFrame);
+                }
+            }
+            out.writeInt(lidars.isEmpty() ? 0 : lidars.get(0).getDatabase().getLeftToTrack());
+
+            out.writeInt(gpsimu.getCurrentTick());
+            out.writeByte(gpsimu.getStatus().ordinal());
+
+            out.writeInt(fusionSlam.getGeneratedLandmarks());
+            ArrayList<LandmarkView> landmarks = fusionSlam.viewLandmarks();
+            out.writeInt(landmarks.size());
+            for (LandmarkView view : landmarks) {
+                w.symbol(view.getLandmarkIdHandle());
+                w.symbol(view.getDescriptionHandle());
+                out.writeInt(view.size());
+                for (int i = 0; i < view.size(); i++) {
+                    out.writeDouble(view.getX(i));
+                    out.writeDouble(view.getY(i));
+                    out.writeInt(view.getObservations(i));
+                }
+            }
+            w.trackedObjects(reorderBuffer.getWaiting());
+        }
+        System.out.println("Simulation snapshot at tick " + tick + " written to " + file.getPath());
+    }
+
+    /**
+     * Loads the snapshot of the given tick into freshly created simulation objects,
+     * before any service starts. Returns the tick to continue from.
+     */
+    public int restore(int tick) throws IOException {
+        File file = fileFor(tick);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            Reader r = new Reader(in);
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException(file.getPath() + " is not a simulation snapshot");
+            }
+            int savedTick = in.readInt();
+
+            int runtime = in.readInt();
+            int detected = in.readInt();
+            int tracked = in.readInt();
+            int landmarkCount = in.readInt();
+            stats.restoreCounters(runtime, detected, tracked, landmarkCount);
+            int statusCount = in.readInt();
+            for (int i = 0; i < statusCount; i++) {
+                stats.updateSensorStatus(in.readUTF(), r.status());
+            }
+            r.poses(stats);
+
+            HashMap<Integer, Camera> camerasById = new HashMap<>();
+            for (Camera camera : cameras) {
+                camerasById.put(camera.getID(), camera);
+            }
+            int cameraCount = in.readInt();
+            for (int c = 0; c < cameraCount; c++) {
+                Camera camera = camerasById.get(in.readInt());
+                STATUS status = r.status();
+                int lastProcessedTick = in.readInt();
+                int processedDetections = in.readInt();
+                StampedDetectedObjects lastFrame = null;
+                if (in.readBoolean()) {
+                    int time = in.readInt();
+                    int n = in.readInt();
+                    ArrayList<DetectedObject> objects = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++) {
+                        objects.add(new DetectedObject(r.symbol(), r.symbol()));
+                    }
+                    lastFrame = new StampedDetectedObjects(time, objects);
+                }
+                if (camera == null) {
+                    System.err.println("Snapshot has a camera that is not in the configuration, skipping it");
+                    continue;
+                }
+                camera.restoreProgress(status, lastProcessedTick, processedDetections);
+                if (lastFrame != null) {
+                    stats.updateCameraLastFrame(camera, lastFrame);
+                }
+            }
+
+            HashMap<Integer, LiDarWorkerTracker> lidarsById = new HashMap<>();
+            for (LiDarWorkerTracker lidar : lidars) {
+                lidarsById.put(lidar.getID(), lidar);
+            }
+            int lidarCount = in.readInt();
+            for (int l = 0; l < lidarCount; l++) {
+                LiDarWorkerTracker lidar = lidarsById.get(in.readInt());
+                STATUS status = r.status();
+                ArrayList<TrackedObject> pending = r.trackedObjects();
+                TrackedObject lastFrame = in.readBoolean() ? r.trackedObject() : null;
+                if (lidar == null) {
+                    System.err.println("Snapshot has a LiDAR that is not in the configuration, skipping it");
+                    continue;
+                }
+                lidar.restorePending(status, pending);
+                if (lastFrame != null) {
+                    stats.updateLidarLastFrame(lidar, lastFrame);
+                }
+            }
+            int leftToTrack = in.readInt();
+            if (!lidars.isEmpty()) {
+                lidars.get(0).getDatabase().restoreLeftToTrack(leftToTrack);
+            }
+
+            gpsimu.setCurrentTick(in.readInt());
+            gpsimu.setStatus(r.status());
+
+            fusionSlam.restoreGeneratedLandmarks(in.readInt());
+            int count = in.readInt();
+            ArrayList<LandmarkView> landmarks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int id = r.symbol();
+                int description = r.symbol();
+                int n = in.readInt();
+                double[] xs = new double[n];
+                double[] ys = new double[n];
+                int[] observations = new int[n];
+                for (int p = 0; p < n; p++) {
+                    xs[p] = in.readDouble();
+                    ys[p] = in.readDouble();
+                    observations[p] = in.readInt();
+                }
+                landmarks.add(new LandmarkView(id, description, xs, ys, observations, 0));
+            }
+            fusionSlam.restoreMap(landmarks);
+            for (TrackedObject waiting : r.trackedObjects()) {
+                reorderBuffer.add(waiting, savedTick);
+            }
+            System.out.println("Restored the simulation snapshot of tick " + savedTick);
+            return savedTick;
+        }
+    }
+
+    //writes strings once, then by their index in the file
+    private static class Writer {
+        private final DataOutputStream out;
+        private final HashMap<Integer, Integer> written = new HashMap<>();   //symbol handle -> index in the file
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void symbol(int handle) throws IOException {
+            if (handle == SymbolTable.NONE) {
+                out.writeInt(NO_SYMBOL);
+                return;
+            }
+            Integer index = written.get(handle);
+            if (index != null) {
+                out.writeInt(index);
+                return;
+            }
+            written.put(handle, written.size());
+            out.writeInt(NEW_SYMBOL);
+            out.writeUTF(SymbolTable.nameOf(handle));
+        }
+
+        //streamed from the pose history, so a spilled history is never loaded into memory at once
+        void poses(Iterable<Pose> poses) throws IOException {
+            for (Pose pose : poses) {
+                out.writeInt(pose.getTime());
+                out.writeFloat(pose.getPoseX());
+                out.writeFloat(pose.getPoseY());
+                out.writeFloat(pose.getYaw());
+            }
+            out.writeInt(-1);
+        }
+
+        void trackedObjects(List<TrackedObject> objects) throws IOException {
+            out.writeInt(objects.size());
+            for (TrackedObject object : objects) {
+                trackedObject(object);
+            }
+        }
+
+        void trackedObject(TrackedObject object) throws IOException {
+            symbol(object.getIDHandle());
+            out.writeInt(object.getTime());
+            symbol(object.getDescriptionHandle());
+            ArrayList<CloudPoint> coordinates = object.getCoordinates();
+            out.writeInt(coordinates == null ? -1 : coordinates.size());
+            if (coordinates != null) {
+                for (CloudPoint point : coordinates) {
+                    out.writeDouble(point.getCloudPointX());
+                    out.writeDouble(point.getCloudPointY());
+                }
+            }
+        }
+    }
+
+    //reads what Writer wrote
+    private static class Reader {
+        private final DataInputStream in;
+        private final ArrayList<Integer> symbols = new ArrayList<>();   //index in the file -> symbol handle
+
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        int symbol() throws IOException {
+            int index = in.readInt();
+            if (index == NO_SYMBOL) {
+                return SymbolTable.NONE;
+            }
+            if (index == NEW_SYMBOL) {
+                int handle = SymbolTable.intern(in.readUTF());
+                symbols.add(handle);
+                return handle;
+            }
+            return symbols.get(index);
+        }
+
+        STATUS status() throws IOException {
+            return STATUS.values()[in.readByte()];
+        }
+
+        //reads poses until the end marker, straight into the history
+        void poses(StatisticalFolder stats) throws IOException {
+            int time;
+            while ((time = in.readInt()) >= 0) {
+                float x = in.readFloat();
+                float y = in.readFloat();
+                float yaw = in.readFloat();
+                stats.updatePoses(new Pose(x, y, yaw, time));
+            }
+        }
+
+        ArrayList<TrackedObject> trackedObjects() throws IOException {
+            int n = in.readInt();
+            ArrayList<TrackedObject> objects = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                objects.add(trackedObject());
+            }
+            return objects;
+        }
+
+        TrackedObject trackedObject() throws IOException {
+            int id = symbol();
+            int time = in.readInt();
+            int description = symbol();
+            int n = in.readInt();
+            ArrayList<CloudPoint> coordinates = null;
+            if (n >= 0) {
+                coordinates = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    double x = in.readDouble();
+                    double y = in.readDouble();
+                    coordinates.add(new CloudPoint(x, y));
+                }
+            }
+            return new TrackedObject(id, time, description, coordinates);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package bgu.spl.mics.application.objects;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Brings the services to a quiet point between two ticks, so SimulationSnapshot can read their state.
+ * TimeService starts a round and sends a SnapshotBroadcast, and each service thread
+ * arrives when it handles it. A round is over when every registered service thread
+ * arrived or has ended.
+ * Two rounds make a quiet point: after the first one, every message sent while handling
+ * the last tick is already queued. The second broadcast is queued behind those messages,
+ * so when the second round ends they have all been handled.
+ */
+public class SnapshotBarrier {
+    private final ArrayList<Thread> services = new ArrayList<>();
+    private final HashSet<Thread> arrived = new HashSet<>();
+
+    //registers a service thread. Call before the simulation starts.
+    public synchronized void register(Thread service) {
+        services.add(service);
+    }
+
+    public synchronized void startRound() {
+        arrived.clear();
+    }
+
+    //called by a service thread while it handles the SnapshotBroadcast
+    public synchronized void arrive() {
+        arrived.add(Thread.currentThread());
+        notifyAll();
+    }
+
+    //waits until the round is over. Returns false if it timed out.
+    public synchronized boolean awaitRound(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!roundOver()) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(Math.min(left, 10));   //also wakes up to notice threads that ended
+        }
+        return true;
+    }
+
+    private boolean roundOver() {
+        for (Thread service : services) {
+            if (service.isAlive() && !arrived.contains(service)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
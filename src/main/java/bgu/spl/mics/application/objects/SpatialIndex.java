@@ -0,0 +1,245 @@
+package bgu.spl.mics.application.objects;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Uniform grid over landmark centroids, for radius and nearest neighbour queries.
+ * Each landmark sits in the cell that holds its centroid. The index is updated
+ * incrementally by the single map writer (FusionSlam's merge stage), and a landmark
+ * only moves between cells when its centroid crosses a cell border.
+ * Queries only look at the cells around the query point, so their cost depends on
+ * the local landmark density and not on the size of the map. Any thread may query.
+ */
+public class SpatialIndex {
+    private final double cellSize;
+    private final ConcurrentHashMap<Long, Set<Entry>> cells;
+    private final ConcurrentHashMap<Integer, Entry> entries;   //landmark ID handle -> entry
+    //bounds of the cells in use, so a nearest search knows when to stop
+    private volatile int minCellX = Integer.MAX_VALUE;
+    private volatile int maxCellX = Integer.MIN_VALUE;
+    private volatile int minCellY = Integer.MAX_VALUE;
+    private volatile int maxCellY = Integer.MIN_VALUE;
+
+    //a landmark and the centroid it was indexed with
+    private static final class Entry {
+        private final LandMark landmark;
+        private volatile double[] centroid;   //{x, y}, never changed once published, so readers see both of one update
+        private volatile long cell;
+
+        Entry(LandMark landmark) {
+            this.landmark = landmark;
+        }
+    }
+
+    public SpatialIndex(double cellSize) {
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException("Cell size must be positive.");
+        }
+        this.cellSize = cellSize;
+        this.cells = new ConcurrentHashMap<>();
+        this.entries = new ConcurrentHashMap<>();
+    }
+
+    //inserts the landmark, or moves it if its centroid changed. Only the map writer calls this.
+    public void update(LandMark landmark) {
+        if (landmark.size() == 0) {
+            return;
+        }
+        double x = landmark.getCentroidX();
+        double y = landmark.getCentroidY();
+        int cx = cellOf(x);
+        int cy = cellOf(y);
+        long cell = key(cx, cy);
+        Entry entry = entries.get(landmark.getLandmarkIdHandle());
+        if (entry == null) {
+            entry = new Entry(landmark);
+            entry.centroid = new double[] {x, y};
+            entry.cell = cell;
+            entries.put(landmark.getLandmarkIdHandle(), entry);
+            addToCell(entry, cell, cx, cy);
+            return;
+        }
+        entry.centroid = new double[] {x, y};
+        if (entry.cell != cell) {
+            long oldCell = entry.cell;
+            entry.cell = cell;
+            addToCell(entry, cell, cx, cy);   //added first, so queries always find it somewhere
+            removeFromCell(entry, oldCell);
+        }
+    }
+
+    //all landmarks whose centroid is within radius of (x, y)
+    public ArrayList<LandMark> queryRadius(double x, double y, double radius) {
+        ArrayList<LandMark> result = new ArrayList<>();
+        double radiusSquared = radius * radius;
+        //no need to look past the cells that were ever used
+        int fromX = Math.max(cellOf(x - radius), minCellX), toX = Math.min(cellOf(x + radius), maxCellX);
+        int fromY = Math.max(cellOf(y - radius), minCellY), toY = Math.min(cellOf(y + radius), maxCellY);
+        for (int cx = fromX; cx <= toX; cx++) {
+            for (int cy = fromY; cy <= toY; cy++) {
+                Set<Entry> cell = cells.get(key(cx, cy));
+                if (cell == null) {
+                    continue;
+                }
+                for (Entry entry : cell) {
+                    if (distanceSquared(entry, x, y) <= radiusSquared) {
+                        result.add(entry.landmark);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    //the landmark with the closest centroid within maxDistance of (x, y), or null.
+    //searches rings of cells outwards and stops once no closer landmark can exist.
+    //once the rings cover more cells than there are landmarks, scanning the landmarks is cheaper.
+    public LandMark nearest(double x, double y, double maxDistance) {
+        if (entries.isEmpty()) {
+            return null;
+        }
+        int cx = cellOf(x);
+        int cy = cellOf(y);
+        int maxRing = ringsToCover(cx, cy);
+        double ringsInRange = Math.ceil(maxDistance / cellSize) + 1;
+        if (ringsInRange < maxRing) {
+            maxRing = (int) ringsInRange;
+        }
+        Best best = new Best(maxDistance);
+        for (int ring = 0; ring <= maxRing; ring++) {
+            //every point in ring r is at least (r - 1) cells away from the query point
+            double ringDistance = Math.max(0, ring - 1) * cellSize;
+            if (best.entry != null && ringDistance * ringDistance > best.distanceSquared) {
+                break;
+            }
+            long side = 2L * ring + 1;
+            if (side * side > entries.size()) {
+                return nearestByScan(x, y, maxDistance);
+            }
+            if (ring == 0) {
+                searchCell(cx, cy, x, y, best);
+                continue;
+            }
+            //only the border of the ring, the inner cells were searched in earlier rings
+            for (int d = -ring; d <= ring; d++) {
+                searchCell(cx + d, cy - ring, x, y, best);
+                searchCell(cx + d, cy + ring, x, y, best);
+            }
+            for (int d = -ring + 1; d < ring; d++) {
+                searchCell(cx - ring, cy + d, x, y, best);
+                searchCell(cx + ring, cy + d, x, y, best);
+            }
+        }
+        return best.entry == null ? null : best.entry.landmark;
+    }
+
+    //the closest entry found so far by a nearest search
+    private static final class Best {
+        private Entry entry;
+        private double distanceSquared;
+
+        Best(double maxDistance) {
+            this.distanceSquared = maxDistance * maxDistance;
+        }
+    }
+
+    private void searchCell(int cx, int cy, double x, double y, Best best) {
+        Set<Entry> cell = cells.get(key(cx, cy));
+        if (cell == null) {
+            return;
+        }
+        for (Entry entry : cell) {
+            double d = distanceSquared(entry, x, y);
+            if (d <= best.distanceSquared) {
+                best.distanceSquared = d;
+                best.entry = entry;
+            }
+        }
+    }
+
+    private LandMark nearestByScan(double x, double y, double maxDistance) {
+        Best best = new Best(maxDistance);
+        for (Entry entry : entries.values()) {
+            double d = distanceSquared(entry, x, y);
+            if (d <= best.distanceSquared) {
+                best.distanceSquared = d;
+                best.entry = entry;
+            }
+        }
+        return best.entry == null ? null : best.entry.landmark;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    private void addToCell(Entry entry, long cell, int cx, int cy) {
+        cells.computeIfAbsent(cell, k -> ConcurrentHashMap.newKeySet()).add(entry);
+        if (cx < minCellX) minCellX = cx;
+        if (cx > maxCellX) maxCellX = cx;
+        if (cy < minCellY) minCellY = cy;
+        if (cy > maxCellY) maxCellY = cy;
+    }
+
+    //an emptied cell is dropped, and if it was on the border of the used cells the bounds shrink
+    private void removeFromCell(Entry entry, long cell) {
+        Set<Entry> old = cells.get(cell);
+        if (old == null) {
+            return;
+        }
+        old.remove(entry);
+        if (old.isEmpty()) {
+            cells.remove(cell);
+            int cx = (int) (cell >> 32);
+            int cy = (int) cell;
+            if (cx == minCellX || cx == maxCellX || cy == minCellY || cy == maxCellY) {
+                recomputeBounds();
+            }
+        }
+    }
+
+    //only the writer changes the cells, so the bounds can be rebuilt from them
+    private void recomputeBounds() {
+        int fromX = Integer.MAX_VALUE, toX = Integer.MIN_VALUE;
+        int fromY = Integer.MAX_VALUE, toY = Integer.MIN_VALUE;
+        for (long cell : cells.keySet()) {
+            int cx = (int) (cell >> 32);
+            int cy = (int) cell;
+            fromX = Math.min(fromX, cx);
+            toX = Math.max(toX, cx);
+            fromY = Math.min(fromY, cy);
+            toY = Math.max(toY, cy);
+        }
+        minCellX = fromX;
+        maxCellX = toX;
+        minCellY = fromY;
+        maxCellY = toY;
+    }
+
+    //how many rings around (cx, cy) reach every used cell
+    private int ringsToCover(int cx, int cy) {
+        long rx = Math.max(Math.abs((long) cx - minCellX), Math.abs((long) maxCellX - cx));
+        long ry = Math.max(Math.abs((long) cy - minCellY), Math.abs((long) maxCellY - cy));
+        return (int) Math.min(Integer.MAX_VALUE - 1, Math.max(rx, ry));
+    }
+
+    private int cellOf(double coordinate) {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    private static long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    private static double distanceSquared(Entry entry, double x, double y) {
+        double[] centroid = entry.centroid;
+        double dx = centroid[0] - x;
+        double dy = centroid[1] - y;
+        return dx * dx + dy * dy;
+    }
+}
@@ -9,12 +9,16 @@ import java.util.ArrayList;
 
 public class StampedCloudPoints {
     //fields  
-   private final String id;
+   private final int id;   //SymbolTable handle
    private int time;
    private ArrayList<ArrayList<Double>> cloudPoints;
 
     //bulder
     public StampedCloudPoints (String id, int time, ArrayList<ArrayList<Double>> cloudPoints){
+        this(SymbolTable.intern(id), time, cloudPoints);
+    }
+
+    public StampedCloudPoints (int id, int time, ArrayList<ArrayList<Double>> cloudPoints){
         this.id = id;
         this.time = time;
         this.cloudPoints = cloudPoints;
@@ -22,6 +26,9 @@ public class StampedCloudPoints {
 
     //getters
     public String getId(){
+        return SymbolTable.nameOf(this.id);
+    }
+    public int getIdHandle(){
         return this.id;
     }
     public int getTime(){
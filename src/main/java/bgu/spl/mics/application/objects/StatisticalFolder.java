@@ -1,5 +1,4 @@
 package bgu.spl.mics.application.objects;
-import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 /**
@@ -16,20 +15,25 @@ public class StatisticalFolder {
     private final AtomicInteger numLandmarks;        // Total number of unique landmarks identified
     private final ConcurrentHashMap<Camera, StampedDetectedObjects> camerasLastFrame;
     private final ConcurrentHashMap<LiDarWorkerTracker, TrackedObject> lidarsLastFrame;
-    private final ArrayList<Pose> poses;
+    private final PoseStore poses;   //pose history, shared with FusionSlam
     private final ConcurrentHashMap<String, STATUS> sensorStatuses = new ConcurrentHashMap<>();
     private final AtomicInteger activeSensors = new AtomicInteger(0);
 
 
     //constarctor
     public StatisticalFolder() {
+        this(new PoseStore());
+    }
+
+    //keeps the pose history in the given store, see PoseStore for the retention window
+    public StatisticalFolder(PoseStore poses) {
         this.systemRuntime = new AtomicInteger(0);
         this.numDetectedObjects = new AtomicInteger(0);
         this.numTrackedObjects = new AtomicInteger(0);
         this.numLandmarks = new AtomicInteger(0);
         this.camerasLastFrame = new ConcurrentHashMap<>();
         this.lidarsLastFrame = new ConcurrentHashMap<>();
-        this.poses = new ArrayList<>();
+        this.poses = poses;
 
     }
 
@@ -99,15 +103,28 @@ public class StatisticalFolder {
         return lidarsLastFrame;
     }
 
+    //lock-free, the GPSIMU and FusionSlam threads both add to the same history
     public void updatePoses (Pose pose){
-        poses.add(pose);
+        poses.put(pose);
     }
 
-    public ArrayList<Pose> getPoses(){
+    public PoseStore getPoses(){
         return poses;
     }
 
 
+    //sensor statuses and the counters, saved and restored by SimulationSnapshot
+    ConcurrentHashMap<String, STATUS> getSensorStatuses() {
+        return sensorStatuses;
+    }
+
+    void restoreCounters(int runtime, int detected, int tracked, int landmarks) {
+        systemRuntime.set(runtime);
+        numDetectedObjects.set(detected);
+        numTrackedObjects.set(tracked);
+        numLandmarks.set(landmarks);
+    }
+
     //the next 3 methods are to shut doen if all sensors are DOWN
     public synchronized void registerSensor(String sensorId) {
         sensorStatuses.put(sensorId, STATUS.UP);
@@ -0,0 +1,68 @@
+package bgu.spl.mics.application.objects;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Global symbol table for object IDs and descriptions.
+ * Every distinct string gets a compact int handle the first time it is seen (at load time),
+ * so the rest of the pipeline can store and compare handles instead of strings.
+ * The string is only looked up again when it is needed for output.
+ */
+public final class SymbolTable {
+    public static final int NONE = -1;   //handle used for a missing (null) string
+
+    private static final ConcurrentHashMap<String, Integer> handles = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[64];
+    private static int size = 0;   //guarded by the class lock
+
+    //handle of the "ERROR" id that the sensors report on failure
+    public static final int ERROR = intern("ERROR");
+    //handle of the empty string, which like a missing id means the object has no stable ID
+    public static final int EMPTY = intern("");
+
+    private SymbolTable() {}
+
+    //returns the handle of the given string, assigning a new one if needed
+    public static int intern(String name) {
+        if (name == null) {
+            return NONE;
+        }
+        Integer handle = handles.get(name);
+        if (handle != null) {
+            return handle;
+        }
+        return internSlow(name);
+    }
+
+    private static synchronized int internSlow(String name) {
+        Integer handle = handles.get(name);
+        if (handle != null) {
+            return handle;
+        }
+        String[] current = names;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+        }
+        current[size] = name;
+        names = current;    //publish the slot before the handle becomes visible through the map
+        handles.put(name, size);
+        return size++;
+    }
+
+    //returns the string for a handle, used when writing output
+    public static String nameOf(int handle) {
+        if (handle == NONE) {
+            return null;
+        }
+        return names[handle];
+    }
+
+    //true for IDs that cannot be used to match an object to a landmark
+    public static boolean isUnlabelled(int handle) {
+        return handle == NONE || handle == EMPTY;
+    }
+
+    public static int size() {
+        return handles.size();
+    }
+}
@@ -0,0 +1,193 @@
+package bgu.spl.mics.application.objects;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Splits the landmark map into square tiles and keeps only some of them in memory.
+ * A landmark belongs to the tile that held its centroid when it was first added.
+ * Resident tiles are kept in LRU order. When there are more than maxResidentTiles,
+ * the least recently used tile is evicted: the points of its landmarks are written
+ * to a memory-mapped file, tile_<x>_<y>.tile, and their arrays are dropped.
+ * The tiles around the robot (see focus) are never evicted.
+ * A landmark of an evicted tile loads its whole tile back the first time its points
+ * are needed again, so callers never see the difference.
+ * Only the landmark shells (id, description, point count) of cold tiles stay on the heap.
+ * Tiles are added by the map writer, but any reader of a landmark can load (and so evict)
+ * tiles. The map is synchronized, and its monitor also guards the points of its landmarks
+ * (see LandMark), so a tile is never loaded or evicted while a landmark of it is in use.
+ */
+public class TiledMap {
+    private final File directory;
+    private final double tileSize;
+    private final int maxResidentTiles;
+    private final HashMap<Long, Tile> tiles = new HashMap<>();
+    private final LinkedHashMap<Long, Tile> resident = new LinkedHashMap<>(16, 0.75f, true);   //access order, oldest first
+    private int focusX;
+    private int focusY;
+    private boolean focused = false;
+    private int evictions = 0;
+    private int loads = 0;
+
+    private static final class Tile {
+        private final long key;
+        private final ArrayList<LandMark> landmarks = new ArrayList<>();
+        private boolean evicted = false;
+
+        Tile(long key) {
+            this.key = key;
+        }
+    }
+
+    public TiledMap(String directory, double tileSize, int maxResidentTiles) {
+        if (tileSize <= 0 || maxResidentTiles <= 0) {
+            throw new IllegalArgumentException("Tile size and resident tiles must be positive.");
+        }
+        this.directory = new File(directory);
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create the tile directory " + directory);
+        }
+        this.tileSize = tileSize;
+        this.maxResidentTiles = maxResidentTiles;
+    }
+
+    //puts a new landmark into the tile of its centroid
+    public synchronized void add(LandMark landmark) {
+        int tx = tileOf(landmark.getCentroidX());
+        int ty = tileOf(landmark.getCentroidY());
+        long key = key(tx, ty);
+        Tile tile = tiles.get(key);
+        if (tile == null) {
+            tile = new Tile(key);
+            tiles.put(key, tile);
+        } else if (tile.evicted) {
+            loadTile(tile);
+        }
+        landmark.tile = key;
+        landmark.tiledMap = this;
+        tile.landmarks.add(landmark);
+        use(tile);
+    }
+
+    //marks the landmark's tile as just used
+    public synchronized void touch(LandMark landmark) {
+        Tile tile = tiles.get(landmark.tile);
+        if (tile != null && !tile.evicted) {
+            resident.get(tile.key);
+        }
+    }
+
+    //the robot is at (x, y), so the tiles around it stay in memory
+    public synchronized void focus(double x, double y) {
+        focusX = tileOf(x);
+        focusY = tileOf(y);
+        focused = true;
+    }
+
+    //loads the tile of a landmark whose points were evicted. Called by the landmark itself.
+    synchronized void load(LandMark landmark) {
+        Tile tile = tiles.get(landmark.tile);
+        if (tile == null || !tile.evicted) {
+            throw new IllegalStateException("Landmark " + landmark.getLandmarkId() + " has no points and no evicted tile");
+        }
+        loadTile(tile);
+        use(tile);
+    }
+
+    public synchronized int getTileCount() {
+        return tiles.size();
+    }
+
+    public synchronized int getResidentTiles() {
+        return resident.size();
+    }
+
+    public synchronized int getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int getLoads() {
+        return loads;
+    }
+
+    private void use(Tile tile) {
+        resident.put(tile.key, tile);
+        if (resident.size() <= maxResidentTiles) {
+            return;
+        }
+        Iterator<Tile> oldest = resident.values().iterator();
+        while (resident.size() > maxResidentTiles && oldest.hasNext()) {
+            Tile candidate = oldest.next();
+            if (candidate == tile || isHot(candidate.key)) {
+                continue;
+            }
+            oldest.remove();
+            evict(candidate);
+        }
+    }
+
+    private boolean isHot(long key) {
+        if (!focused) {
+            return false;
+        }
+        int tx = (int) (key >> 32);
+        int ty = (int) key;
+        return Math.abs(tx - focusX) <= 1 && Math.abs(ty - focusY) <= 1;
+    }
+
+    private void evict(Tile tile) {
+        int bytes = 4;
+        for (LandMark landmark : tile.landmarks) {
+            bytes += landmark.pointBytes();
+        }
+        try (FileChannel channel = FileChannel.open(fileOf(tile).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            out.putInt(tile.landmarks.size());
+            for (LandMark landmark : tile.landmarks) {
+                landmark.writePoints(out);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to evict map tile " + fileOf(tile).getName(), e);
+        }
+        tile.evicted = true;
+        evictions++;
+    }
+
+    private void loadTile(Tile tile) {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileOf(tile).getPath()), StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int count = in.getInt();
+            if (count != tile.landmarks.size()) {
+                throw new IOException("expected " + tile.landmarks.size() + " landmarks, found " + count);
+            }
+            for (LandMark landmark : tile.landmarks) {
+                landmark.readPoints(in);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load map tile " + fileOf(tile).getName(), e);
+        }
+        tile.evicted = false;
+        loads++;
+    }
+
+    private File fileOf(Tile tile) {
+        return new File(directory, "tile_" + (int) (tile.key >> 32) + "_" + (int) tile.key + ".tile");
+    }
+
+    private int tileOf(double coordinate) {
+        return (int) Math.floor(coordinate / tileSize);
+    }
+
+    private static long key(int tx, int ty) {
+        return ((long) tx << 32) | (ty & 0xffffffffL);
+    }
+}
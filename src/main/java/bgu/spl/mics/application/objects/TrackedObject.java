@@ -6,16 +6,21 @@ import java.util.ArrayList;
  * Represents an object tracked by the LiDAR.
  * This object includes information about the tracked object's ID, description, 
  * time of tracking, and coordinates in the environment.
+ * The ID and description are kept as SymbolTable handles.
  */
 public class TrackedObject {
     // fields
-    private final String id;
+    private final int id;
     private final int time;
-    private final String description;
+    private final int description;
     private final ArrayList<CloudPoint> coordinates;
 
     //constractur
     public TrackedObject(String id, int time, String description, ArrayList<CloudPoint> coordinates){
+        this(SymbolTable.intern(id), time, SymbolTable.intern(description), coordinates);
+    }
+
+    public TrackedObject(int id, int time, int description, ArrayList<CloudPoint> coordinates){
         this.id = id;
         this.time = time;
         this.description = description;
@@ -23,6 +28,10 @@ public class TrackedObject {
     }
 
     public String getID(){
+        return SymbolTable.nameOf(id);
+    }
+
+    public int getIDHandle(){
         return id;
     }
 
@@ -31,6 +40,10 @@ public class TrackedObject {
     }
 
     public String getDescription(){
+        return SymbolTable.nameOf(description);
+    }
+
+    public int getDescriptionHandle(){
         return description;
     }
 
@@ -38,8 +51,17 @@ public class TrackedObject {
         return coordinates;
     }
 
+    //true if the sensor gave no stable ID, so FusionSlam matches the object by geometry
+    public boolean isUnlabelled(){
+        return SymbolTable.isUnlabelled(id);
+    }
+
+    public boolean isError(){
+        return id == SymbolTable.ERROR;
+    }
+
     public String toString(){
-        return "Object ID: "+id+", Object Time: "+time+", Description: "+description;
+        return "Object ID: "+getID()+", Object Time: "+time+", Description: "+getDescription();
     }
 
 }
@@ -0,0 +1,33 @@
+package bgu.spl.mics.application.objects;
+
+/**
+ * Transforms points from the robot's frame to the global (charging station) frame.
+ * The rotation is computed once per pose, and the inner loop is a plain
+ * multiply-add over primitive arrays that the JIT can auto-vectorize.
+ */
+public final class TransformKernel {
+
+    private TransformKernel() {}
+
+    //transforms count points of xs/ys into outX/outY (which may be the input arrays)
+    public static void transform(double[] xs, double[] ys, int count, Pose pose, double[] outX, double[] outY) {
+        double yaw = Math.toRadians(pose.getYaw());
+        transform(xs, ys, count, Math.cos(yaw), Math.sin(yaw), pose.getPoseX(), pose.getPoseY(), outX, outY);
+    }
+
+    public static void transform(double[] xs, double[] ys, int count, double cos, double sin,
+                                 double tx, double ty, double[] outX, double[] outY) {
+        for (int i = 0; i < count; i++) {
+            double x = xs[i];
+            double y = ys[i];
+            outX[i] = cos * x - sin * y + tx;
+            outY[i] = sin * x + cos * y + ty;
+        }
+    }
+
+    //transforms a whole buffer into a reusable output buffer
+    public static void transform(PointBuffer local, Pose pose, PointBuffer global) {
+        global.setSize(local.size());
+        transform(local.getXs(), local.getYs(), local.size(), pose, global.getXs(), global.getYs());
+    }
+}
@@ -0,0 +1,117 @@
+package bgu.spl.mics.application.objects;
+import java.util.Arrays;
+
+/**
+ * Voxel-grid downsampling of point clouds.
+ * The plane is split into square cells of the given resolution, and all the points
+ * that fall into one cell are replaced by their centroid. The cells keep the order in
+ * which their first point appeared, so a landmark seen twice gets its points in the
+ * same order both times and index-paired fusion still matches them up.
+ * An observation then holds at most one point per cell it covers, however dense the scan is.
+ * Fusion keeps a landmark at most as big as its largest observation (see LandMark), so a
+ * landmark never holds more points than the cells its largest downsampled observation covered.
+ * Cells are found with an open-addressing hash of primitive keys, kept per thread and
+ * reused, so filtering allocates nothing once the tables are big enough.
+ */
+public final class VoxelFilter {
+    private final double resolution;
+    private final ThreadLocal<CellTable> tables = ThreadLocal.withInitial(CellTable::new);
+
+    public VoxelFilter(double resolution) {
+        if (!(resolution > 0)) {
+            throw new IllegalArgumentException("Voxel resolution must be positive.");
+        }
+        this.resolution = resolution;
+    }
+
+    public double getResolution() {
+        return resolution;
+    }
+
+    //replaces the points of the buffer with one centroid per occupied cell, in place
+    public void downsample(PointBuffer points) {
+        int n = points.size();
+        if (n < 2) {
+            return;
+        }
+        double[] xs = points.getXs();
+        double[] ys = points.getYs();
+        CellTable table = tables.get();
+        table.reset(n);
+        int[] counts = table.counts;
+        int cells = 0;
+        //cells <= i at every step, so the sums can be kept in the same arrays
+        for (int i = 0; i < n; i++) {
+            double x = xs[i];
+            double y = ys[i];
+            long key = key(Math.floor(x / resolution), Math.floor(y / resolution));
+            int cell = table.find(key, cells);
+            if (cell == cells) {
+                xs[cells] = x;
+                ys[cells] = y;
+                counts[cells] = 1;
+                cells++;
+            } else {
+                xs[cell] += x;
+                ys[cell] += y;
+                counts[cell]++;
+            }
+        }
+        for (int c = 0; c < cells; c++) {
+            if (counts[c] > 1) {
+                xs[c] /= counts[c];
+                ys[c] /= counts[c];
+            }
+        }
+        points.setSize(cells);
+    }
+
+    private static long key(double cellX, double cellY) {
+        return ((long) cellX << 32) ^ ((long) cellY & 0xffffffffL);
+    }
+
+    //cell key -> cell index, cleared between calls by bumping a stamp instead of refilling
+    private static final class CellTable {
+        private long[] keys = new long[64];
+        private int[] cells = new int[64];
+        private int[] stamps = new int[64];
+        private int[] counts = new int[32];
+        private int stamp = 0;
+
+        void reset(int points) {
+            if (counts.length < points) {
+                counts = new int[Math.max(points, counts.length * 2)];
+            }
+            int capacity = keys.length;
+            while (capacity < points * 2) {
+                capacity <<= 1;
+            }
+            if (capacity != keys.length) {
+                keys = new long[capacity];
+                cells = new int[capacity];
+                stamps = new int[capacity];
+                stamp = 0;
+            }
+            if (++stamp == 0) {   //wrapped around, the old stamps could match again
+                Arrays.fill(stamps, 0);
+                stamp = 1;
+            }
+        }
+
+        //the index of the key's cell, or next (after adding it) if the key is new
+        int find(long key, int next) {
+            int mask = keys.length - 1;
+            int slot = (int) (key ^ (key >>> 29)) * 0x9E3779B9 & mask;
+            while (stamps[slot] == stamp) {
+                if (keys[slot] == key) {
+                    return cells[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            stamps[slot] = stamp;
+            keys[slot] = key;
+            cells[slot] = next;
+            return next;
+        }
+    }
+}
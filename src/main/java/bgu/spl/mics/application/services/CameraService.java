@@ -1,7 +1,10 @@
 package bgu.spl.mics.application.services;
+import java.util.concurrent.CountDownLatch;
+
 import bgu.spl.mics.MicroService;
 import bgu.spl.mics.application.messages.CrashedBroadcast;
 import bgu.spl.mics.application.messages.DetectObjectsEvent;
+import bgu.spl.mics.application.messages.SnapshotBroadcast;
 import bgu.spl.mics.application.messages.TerminatedBroadcast;
 import bgu.spl.mics.application.messages.TickBroadcast;
 import bgu.spl.mics.application.objects.Camera;
@@ -19,6 +22,7 @@ import bgu.spl.mics.application.objects.StatisticalFolder;
  */
 public class CameraService extends MicroService {
     private final Camera camera;
+    private CountDownLatch ready;   //counted down once every subscription is made
     // private final StatisticalFolder stats;
 
     /**
@@ -49,6 +53,9 @@ public class CameraService extends MicroService {
             
         });
 
+        //Subscribe to snapshot requests, everything of the last tick is done by now
+        subscribeBroadcast(SnapshotBroadcast.class, broadcast -> broadcast.getBarrier().arrive());
+
         // Subscribe to termination messages
         subscribeBroadcast(TerminatedBroadcast.class, (broadcast) -> {    
             System.out.println(getName() + " received TerminatedBroadcast. Terminating...");
@@ -60,6 +67,14 @@ public class CameraService extends MicroService {
             System.out.println(getName() + " received CrashedBroadcast. Terminating...");
             terminate();
         });
+        if (ready != null) {
+            ready.countDown();
+        }
+    }
+
+    //counted down when initialize is done, so the first tick is not missed
+    public void setReadySignal(CountDownLatch ready) {
+        this.ready = ready;
     }
 
     private void handleTick(TickBroadcast tick) {
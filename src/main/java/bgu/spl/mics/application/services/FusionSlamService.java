@@ -3,14 +3,19 @@ package bgu.spl.mics.application.services;
 
 import bgu.spl.mics.MicroService;
 import bgu.spl.mics.application.messages.CrashedBroadcast;
+import bgu.spl.mics.application.messages.SnapshotBroadcast;
 import bgu.spl.mics.application.messages.TerminatedBroadcast;
 import bgu.spl.mics.application.messages.TickBroadcast;
 import bgu.spl.mics.application.messages.TrackedObjectsEvent;
+import bgu.spl.mics.application.objects.FusionPipeline;
 import bgu.spl.mics.application.objects.FusionSlam;
 import bgu.spl.mics.application.objects.Pose;
+import bgu.spl.mics.application.objects.ReorderBuffer;
 import bgu.spl.mics.application.objects.TrackedObject;
 import bgu.spl.mics.application.messages.PoseEvent;
 import java.io.*;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * FusionSlamService integrates data from multiple sensors to build and update
@@ -22,6 +27,12 @@ import java.io.*;
 public class FusionSlamService extends MicroService {
 
     private final FusionSlam fusionSlam; 
+    private final int fusionWorkers;      //transform threads, 0 means fuse on the service thread
+    private final int pipelineCapacity;   //size of the ring between the transform and merge stages
+    private FusionPipeline pipeline;
+    private final ReorderBuffer reorderBuffer;   //tracked objects that arrived before their pose
+    private int currentTick = 0;
+    private CountDownLatch ready;
 
     /**
      * Constructor for FusionSlamService.
@@ -29,8 +40,26 @@ public class FusionSlamService extends MicroService {
      * @param fusionSlam The FusionSLAM object responsible for managing the global map.
      */
     public FusionSlamService(FusionSlam fusionSlam) {
+        this(fusionSlam, 0, 1, new ReorderBuffer(DEFAULT_REORDER_SIZE, DEFAULT_REORDER_LATENESS));
+    }
+
+    public static final int DEFAULT_REORDER_SIZE = 10000;
+    public static final int DEFAULT_REORDER_LATENESS = 10;
+
+    /**
+     * Constructor for FusionSlamService with a fusion pipeline.
+     *
+     * @param fusionSlam       The FusionSLAM object responsible for managing the global map.
+     * @param fusionWorkers    Number of threads transforming point clouds (0 to fuse on the service thread).
+     * @param pipelineCapacity Number of tracked objects that can wait between the transform and merge stages.
+     * @param reorderBuffer    Holds tracked objects that arrive before the pose of their detection time.
+     */
+    public FusionSlamService(FusionSlam fusionSlam, int fusionWorkers, int pipelineCapacity, ReorderBuffer reorderBuffer) {
         super("FusionSlam Service");
         this.fusionSlam = FusionSlam.getInstance();
+        this.fusionWorkers = fusionWorkers;
+        this.pipelineCapacity = pipelineCapacity;
+        this.reorderBuffer = reorderBuffer;
     }
 
     /**
@@ -41,10 +70,35 @@ public class FusionSlamService extends MicroService {
     @Override
     protected void initialize() {
         System.out.println(getName() + "statring up...");
+        if (fusionWorkers > 0) {
+            pipeline = new FusionPipeline(fusionSlam, fusionWorkers, pipelineCapacity);
+        }
 
         //Subscribe to TickBroadcast
         subscribeBroadcast(TickBroadcast.class, (broadcast)->{
             fusionSlam.updateTime();
+            currentTick = broadcast.getCurrentTime();
+            try {
+                //last chance for objects that waited too long, with an extrapolated pose
+                fuseWaiting(reorderBuffer.expiringTicks(currentTick), true);
+                publishSnapshot();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            reorderBuffer.expire(currentTick);
+            fusionSlam.checkpointIfDue(currentTick);
+        });
+
+        //Subscribe to snapshot requests. The pipeline is drained first, so the map holds everything received so far.
+        subscribeBroadcast(SnapshotBroadcast.class, broadcast -> {
+            try {
+                if (pipeline != null) {
+                    pipeline.drain();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            broadcast.getBarrier().arrive();
         });
 
         //Subscribe to TerminatedBroadcast
@@ -54,6 +108,7 @@ public class FusionSlamService extends MicroService {
             // fusionSlam.handleTermination();
 
             try {
+                stopPipeline();
                 fusionSlam.writeOutputFile();
             } catch (IOException e) {
                 e.printStackTrace();
@@ -65,6 +120,7 @@ public class FusionSlamService extends MicroService {
         subscribeBroadcast(CrashedBroadcast.class, (broadcast)->{
             System.out.println(getName() + " received CrashedBroadcast. Terminating...");
             try {
+                stopPipeline();
                 fusionSlam.writeErrorOutputFile(broadcast.getSource(), broadcast.getError());
             } catch (IOException e) {
                 e.printStackTrace();
@@ -76,6 +132,9 @@ public class FusionSlamService extends MicroService {
         subscribeEvent(PoseEvent.class, event -> {
             try {
                 fusionSlam.updatePose(event.getPose());
+                //fuse the objects that were waiting for this pose, or for a pose that can now be interpolated
+                fuseWaiting(reorderBuffer.waitingTicksUpTo(event.getPose().getTime()), false);
+                publishSnapshot();
             } catch (Exception e) {
                 System.err.println("Error updating pose: " + e.getMessage());
             }
@@ -90,18 +149,82 @@ public class FusionSlamService extends MicroService {
                     // Get pose from the same time as the detection
                     Pose poseAtDetection = fusionSlam.getPose(trackedObject.getTime());
                     if (poseAtDetection != null) {
-                        fusionSlam.processTrackedObject(trackedObject, poseAtDetection);
+                        fuse(trackedObject, poseAtDetection);
                     } else {
-                        System.err.println("No pose found for time: " + trackedObject.getTime());
+                        System.out.println("No pose yet for time: " + trackedObject.getTime() + ", holding object " + trackedObject.getID());
+                        reorderBuffer.add(trackedObject, currentTick);
                     }
                 }
+                publishSnapshot();
             } catch (Exception e) {
                 System.err.println("Error processing tracked objects: " + e.getMessage());
             }
         });
             
+        //everything is subscribed, the simulation may start
+        if (ready != null) {
+            ready.countDown();
+        }
     }
 
+    /**
+     * Sets the latch the runner waits on before starting the TimeService. It is counted down
+     * at the end of initialize, so no TrackedObjectsEvent or PoseEvent is sent before this
+     * service subscribed to it (an event with no subscriber is dropped by the MessageBus).
+     */
+    public void setReadySignal(CountDownLatch ready) {
+        this.ready = ready;
+    }
+
+    private void fuse(TrackedObject trackedObject, Pose pose) throws InterruptedException {
+        if (pipeline != null) {
+            pipeline.submit(trackedObject, pose);
+        } else {
+            fusionSlam.processTrackedObject(trackedObject, pose);
+        }
+    }
 
+    //fuses the objects waiting for the given ticks whose pose is known now (or can be estimated)
+    private void fuseWaiting(List<Integer> ticks, boolean estimate) throws InterruptedException {
+        for (int tick : ticks) {
+            Pose pose = estimate ? fusionSlam.estimatePose(tick) : fusionSlam.getPose(tick);
+            if (pose != null) {
+                for (TrackedObject trackedObject : reorderBuffer.release(tick)) {
+                    fuse(trackedObject, pose);
+                }
+            }
+        }
+    }
+
+    //without a pipeline this thread is the map writer, so it publishes the map versions
+    private void publishSnapshot() {
+        if (pipeline == null) {
+            fusionSlam.publishSnapshot();
+        }
+    }
+
+    //lets the pipeline finish every queued object before the map is written,
+    //and writes out the rest of the change log and the last checkpoint
+    private void stopPipeline() {
+        try {
+            fuseWaiting(reorderBuffer.waitingTicksUpTo(Integer.MAX_VALUE), true);
+            publishSnapshot();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (reorderBuffer.size() > 0) {
+            System.err.println(reorderBuffer.size() + " tracked objects never got a pose");
+        }
+        if (pipeline != null) {
+            try {
+                pipeline.shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            pipeline = null;
+        }
+        fusionSlam.closeChangeLog();
+        fusionSlam.closeCheckpointer();
+    }
     
 }
@@ -1,10 +1,12 @@
 package bgu.spl.mics.application.services;
 import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.stream.Collectors;
 
 import bgu.spl.mics.MicroService;
 import bgu.spl.mics.application.messages.CrashedBroadcast;
 import bgu.spl.mics.application.messages.DetectObjectsEvent;
+import bgu.spl.mics.application.messages.SnapshotBroadcast;
 import bgu.spl.mics.application.messages.TerminatedBroadcast;
 import bgu.spl.mics.application.messages.TickBroadcast;
 import bgu.spl.mics.application.messages.TrackedObjectsEvent;
@@ -23,6 +25,7 @@ import bgu.spl.mics.application.objects.StatisticalFolder;
  */
 public class LiDarService extends MicroService { 
     private final LiDarWorkerTracker liDar;
+    private CountDownLatch ready;   //counted down once every subscription is made
     
     /**
      * Constructor for LiDarService.
@@ -47,6 +50,9 @@ public class LiDarService extends MicroService {
         subscribeBroadcast(TickBroadcast.class, tick -> {
             handleTick(tick);
         });
+
+        //Subscribe to snapshot requests, everything of the last tick is done by now
+        subscribeBroadcast(SnapshotBroadcast.class, broadcast -> broadcast.getBarrier().arrive());
         
         // Subscribe to termination messages
         subscribeBroadcast(TerminatedBroadcast.class, (broadcast) -> {
@@ -63,6 +69,14 @@ public class LiDarService extends MicroService {
         subscribeEvent(DetectObjectsEvent.class, event -> {
             handleDetection(event);
         });
+        if (ready != null) {
+            ready.countDown();
+        }
+    }
+
+    //counted down after the subscriptions, including DetectObjectsEvent
+    public void setReadySignal(CountDownLatch ready) {
+        this.ready = ready;
     }
 
 
@@ -1,7 +1,11 @@
 package bgu.spl.mics.application.services;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
 import bgu.spl.mics.MicroService;
 import bgu.spl.mics.application.messages.CrashedBroadcast;
 import bgu.spl.mics.application.messages.PoseEvent;
+import bgu.spl.mics.application.messages.SnapshotBroadcast;
 import bgu.spl.mics.application.messages.TerminatedBroadcast;
 import bgu.spl.mics.application.messages.TickBroadcast;
 import bgu.spl.mics.application.objects.GPSIMU;
@@ -17,6 +21,7 @@ public class PoseService extends MicroService {
     private final GPSIMU gpsimu;
     private Pose lastValidPose;
     private boolean gotPose = true;
+    private CountDownLatch ready;   //counted down once every subscription is made
 
     /**
      * Constructor for PoseService.
@@ -40,6 +45,9 @@ public class PoseService extends MicroService {
             
         });
 
+        //Subscribe to snapshot requests, everything of the last tick is done by now
+        subscribeBroadcast(SnapshotBroadcast.class, broadcast -> broadcast.getBarrier().arrive());
+
         //Subscribe to crash notifications
         subscribeBroadcast(CrashedBroadcast.class, broadcast -> {
             System.out.println(getName() + " shutting down due to system crash.");
@@ -51,6 +59,14 @@ public class PoseService extends MicroService {
             System.out.println(getName() + " received TerminatedBroadcast. Terminating...");
             terminate();
         });
+        if (ready != null) {
+            ready.countDown();
+        }
+    }
+
+    //counted down once the service listens to ticks
+    public void setReadySignal(CountDownLatch ready) {
+        this.ready = ready;
     }
     
     //handles incoming time ticks by updating the current pose
@@ -92,6 +108,11 @@ public class PoseService extends MicroService {
             sendEvent(poseEvent);
             
         } catch (IndexOutOfBoundsException e) {
+            if (hasPoseAfter(tick.getCurrentTime())) {
+                //a gap in the recording, FusionSlam interpolates over it
+                System.out.println(getName() + " - No pose sample for tick: " + tick.getCurrentTime());
+                return;
+            }
             if(lastValidPose != null) {
                 System.out.println(getName() + "- Using last valid pose for tick: " + tick.getCurrentTime());
                 PoseEvent poseEvent = new PoseEvent(lastValidPose, tick.getCurrentTime());
@@ -99,5 +120,11 @@ public class PoseService extends MicroService {
                 gotPose = false;
             }
         }
-    }           
+    }
+
+    //the recording is in time order, so only its last pose can tell
+    private boolean hasPoseAfter(int tick) {
+        List<Pose> poses = gpsimu.getPoseList();
+        return !poses.isEmpty() && poses.get(poses.size() - 1).getTime() > tick;
+    }
 }
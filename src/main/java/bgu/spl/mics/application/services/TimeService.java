@@ -1,7 +1,10 @@
 package bgu.spl.mics.application.services;
 
+import java.util.function.IntConsumer;
+
 import bgu.spl.mics.MicroService;
 import bgu.spl.mics.application.messages.*;
+import bgu.spl.mics.application.objects.SnapshotBarrier;
 
 
 /**
@@ -11,7 +14,13 @@ import bgu.spl.mics.application.messages.*;
 public class TimeService extends MicroService {
     private final int tickTime;
     private final int duration;
+    private final int startTick;
     private volatile boolean shouldRun = true;
+    // simulation snapshots, off unless setSnapshots is called
+    private int snapshotInterval = 0;
+    private SnapshotBarrier snapshotBarrier;
+    private IntConsumer snapshotWriter;
+    private static final long SNAPSHOT_TIMEOUT = 10000;   //ms to wait for the services to go quiet
 
     /**
      * Constructor for TimeService.
@@ -20,9 +29,29 @@ public class TimeService extends MicroService {
      * @param Duration  The total number of ticks before the service terminates.
      */
     public TimeService(int tickTime, int duration) {
+        this(tickTime, duration, 1);
+    }
+
+    /**
+     * Constructor for a TimeService that starts in the middle of the run (when resuming from a checkpoint).
+     *
+     * @param startTick The first tick to broadcast.
+     */
+    public TimeService(int tickTime, int duration, int startTick) {
         super("TimeService");
         this.tickTime = tickTime;
         this.duration = duration;
+        this.startTick = startTick;
+    }
+
+    /**
+     * Takes a simulation snapshot every interval ticks. Between the tick and the next one,
+     * the services are brought to a quiet point with the barrier, then the writer is called with the tick.
+     */
+    public void setSnapshots(int interval, SnapshotBarrier barrier, IntConsumer writer) {
+        this.snapshotInterval = interval;
+        this.snapshotBarrier = barrier;
+        this.snapshotWriter = writer;
     }
 
     /**
@@ -44,8 +73,8 @@ public class TimeService extends MicroService {
         });
         Thread timerThread = new Thread(() -> {
             try {
-                // Run from 1 to duration inclusive
-                for (int currentTick = 1; currentTick <= duration && shouldRun; currentTick++) {
+                // Run from startTick (normally 1) to duration inclusive
+                for (int currentTick = startTick; currentTick <= duration && shouldRun; currentTick++) {
                     // Send tick broadcast with current time
                     TickBroadcast tick = new TickBroadcast(currentTick);
                     sendBroadcast(tick);
@@ -53,6 +82,9 @@ public class TimeService extends MicroService {
                     
                     // Wait for next tick
                     Thread.sleep(tickTime);
+                    if (snapshotInterval > 0 && currentTick % snapshotInterval == 0 && currentTick < duration && shouldRun) {
+                        takeSnapshot(currentTick);
+                    }
                 }      
                 // After all ticks are done, send termination
                 if(shouldRun){
@@ -67,4 +99,17 @@ public class TimeService extends MicroService {
         });      
         timerThread.start();
     }
+
+    //two barrier rounds (see SnapshotBarrier), then the state is saved while everyone is idle
+    private void takeSnapshot(int tick) throws InterruptedException {
+        for (int round = 0; round < 2; round++) {
+            snapshotBarrier.startRound();
+            sendBroadcast(new SnapshotBroadcast(tick, snapshotBarrier));
+            if (!snapshotBarrier.awaitRound(SNAPSHOT_TIMEOUT)) {
+                System.err.println(getName() + ": services did not go quiet, no snapshot at tick " + tick);
+                return;
+            }
+        }
+        snapshotWriter.accept(tick);
+    }
 }
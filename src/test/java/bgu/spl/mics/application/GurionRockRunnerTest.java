@@ -0,0 +1,179 @@
+package bgu.spl.mics.application;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs whole simulations on a small data set. Every run gets its own JVM, since the runner
+ * exits the process and FusionSlam and the LiDAR database are singletons.
+ */
+public class GurionRockRunnerTest {
+    private static final String CAMERA_DATA = "{\"camera1\": ["
+            + "{\"time\": 2, \"detectedObjects\": [{\"id\": \"Wall_1\", \"description\": \"Wall\"}, {\"id\": \"Door\", \"description\": \"Door\"}]},"
+            + "{\"time\": 4, \"detectedObjects\": [{\"id\": \"Wall_1\", \"description\": \"Wall\"}, {\"id\": \"Chair_Base_1\", \"description\": \"Chair Base\"}]},"
+            + "{\"time\": 6, \"detectedObjects\": [{\"id\": \"Wall_3\", \"description\": \"Wall\"}]},"
+            + "{\"time\": 8, \"detectedObjects\": [{\"id\": \"Wall_4\", \"description\": \"Wall\"}, {\"id\": \"Circular_Base_1\", \"description\": \"Circular Base\"}]}],"
+            + "\"camera2\": ["
+            + "{\"time\": 3, \"detectedObjects\": [{\"id\": \"Wall_2\", \"description\": \"Wall\"}]},"
+            + "{\"time\": 5, \"detectedObjects\": [{\"id\": \"Wall_1\", \"description\": \"Wall\"}]}]}";
+    private static final String LIDAR_DATA = "["
+            + "{\"time\": 2, \"id\": \"Wall_1\", \"cloudPoints\": [[0.1176, 3.6969, 0.1], [0.11362, 3.6039, 0.1]]},"
+            + "{\"time\": 2, \"id\": \"Door\", \"cloudPoints\": [[0.5, 3.9, 0.1], [0.2, 3.7, 0.1]]},"
+            + "{\"time\": 3, \"id\": \"Wall_2\", \"cloudPoints\": [[1.0, 2.0, 0.1], [1.5, 2.5, 0.1], [2.0, 3.0, 0.1]]},"
+            + "{\"time\": 4, \"id\": \"Wall_1\", \"cloudPoints\": [[0.5, 3.5, 0.1], [0.6, 3.3, 0.1], [0.7, 3.1, 0.1]]},"
+            + "{\"time\": 4, \"id\": \"Chair_Base_1\", \"cloudPoints\": [[2.5, -0.8, 0.1], [2.9, -0.3, 0.1]]},"
+            + "{\"time\": 5, \"id\": \"Wall_1\", \"cloudPoints\": [[0.4, 3.4, 0.1]]},"
+            + "{\"time\": 6, \"id\": \"Wall_3\", \"cloudPoints\": [[3.0, 1.0, 0.1], [3.1, 1.1, 0.1]]},"
+            + "{\"time\": 8, \"id\": \"Wall_4\", \"cloudPoints\": [[4.0, 0.0, 0.1], [4.1, 0.5, 0.1]]},"
+            + "{\"time\": 8, \"id\": \"Circular_Base_1\", \"cloudPoints\": [[5.0, 5.0, 0.1], [5.1, 5.1, 0.1]]}]";
+    private static final String[] ALL_LANDMARKS = {"Chair_Base_1", "Circular_Base_1", "Door", "Wall_1", "Wall_2", "Wall_3", "Wall_4"};
+
+    private File directory;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("simulation").toFile();
+        write("camera_data.json", CAMERA_DATA);
+        write("lidar_data.json", LIDAR_DATA);
+        StringBuilder poses = new StringBuilder("[");
+        for (int time = 1; time <= 30; time++) {
+            poses.append(time > 1 ? "," : "").append("{\"time\": ").append(time).append(", \"x\": ").append(0.1 * time)
+                 .append(", \"y\": ").append(-0.05 * time).append(", \"yaw\": ").append(3.5 * time).append("}");
+        }
+        write("pose_data.json", poses.append("]").toString());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        delete(directory);
+    }
+
+    private void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void write(String name, String content) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    //the sample configuration: two cameras, two LiDARs, 12 ticks of 20 ms
+    private JsonObject config() {
+        return JsonParser.parseString("{"
+                + "\"Cameras\": {\"CamerasConfigurations\": [{\"id\": 1, \"frequency\": 0, \"camera_key\": \"camera1\"},"
+                + "{\"id\": 2, \"frequency\": 1, \"camera_key\": \"camera2\"}], \"camera_datas_path\": \"./camera_data.json\"},"
+                + "\"LiDarWorkers\": {\"LidarConfigurations\": [{\"id\": 1, \"frequency\": 0}, {\"id\": 2, \"frequency\": 2}],"
+                + "\"lidars_data_path\": \"./lidar_data.json\"},"
+                + "\"poseJsonFile\": \"./pose_data.json\", \"TickTime\": 20, \"Duration\": 12}").getAsJsonObject();
+    }
+
+    //runs the simulation in a new JVM and returns its output file
+    private JsonObject run(JsonObject config) throws IOException, InterruptedException {
+        write("configuration_file.json", config.toString());
+        File output = new File(directory, "output_file.json");
+        output.delete();
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String classPath = System.getProperty("surefire.test.class.path", System.getProperty("java.class.path"));
+        Process process = new ProcessBuilder(java, "-cp", classPath, GurionRockRunner.class.getName(),
+                new File(directory, "configuration_file.json").getPath())
+                .redirectErrorStream(true)
+                .redirectOutput(new File(directory, "run.log"))
+                .start();
+        assertTrue(process.waitFor(60, TimeUnit.SECONDS), "The simulation did not finish");
+        assertTrue(output.exists(), "No output file, see " + new File(directory, "run.log"));
+        try (Reader reader = Files.newBufferedReader(output.toPath())) {
+            return JsonParser.parseReader(reader).getAsJsonObject();
+        }
+    }
+
+    private TreeSet<String> landmarkIds(JsonObject output) {
+        return new TreeSet<>(output.getAsJsonObject("landMarks").keySet());
+    }
+
+    @Test //restoring from a snapshot keeps the objects that were still pending at the LiDARs
+    public void testRestoreFromSnapshot() throws IOException, InterruptedException {
+        System.out.println("Starting testRestoreFromSnapshot...");
+        JsonObject config = config();
+        config.addProperty("SimulationSnapshotDir", "snaps");
+        config.addProperty("SimulationSnapshotInterval", 2);
+        JsonObject full = run(config);
+        assertEquals(new TreeSet<>(Arrays.asList(ALL_LANDMARKS)), landmarkIds(full));
+
+        for (int tick : new int[] {4, 6}) {
+            JsonObject restore = config();
+            restore.addProperty("SimulationSnapshotDir", "snaps");
+            restore.addProperty("RestoreFromTick", tick);
+            JsonObject restored = run(restore);
+            assertEquals(landmarkIds(full), landmarkIds(restored), "Restored from tick " + tick);
+            assertEquals(ALL_LANDMARKS.length, restored.get("numLandmarks").getAsInt());
+        }
+    }
+
+    @Test //a run that stops after a checkpoint resumes with every detection, also the ones in flight at the checkpoint
+    public void testResumeFromCheckpoint() throws IOException, InterruptedException {
+        System.out.println("Starting testResumeFromCheckpoint...");
+        JsonObject full = run(config());
+
+        JsonObject crashed = config();
+        crashed.addProperty("Checkpoint", "fusion.checkpoint");
+        crashed.addProperty("CheckpointInterval", 3);
+        crashed.addProperty("Duration", 6);   //stops right after the checkpoint of tick 6
+        run(crashed);
+        JsonObject resume = config();
+        resume.addProperty("Checkpoint", "fusion.checkpoint");
+        resume.addProperty("CheckpointInterval", 3);
+        resume.addProperty("Resume", true);
+        JsonObject resumed = run(resume);
+
+        assertEquals(landmarkIds(full), landmarkIds(resumed));
+        for (String counter : new String[] {"numDetectedObjects", "numTrackedObjects", "numLandmarks"}) {
+            assertEquals(full.get(counter).getAsInt(), resumed.get(counter).getAsInt(), counter);
+        }
+        assertTrue(resumed.get("systemRuntime").getAsInt() < 12, "The sensors finished before the duration ran out");
+    }
+
+    @Test //objects without an ID get the LiDAR records without an ID in order, and are matched to landmarks by position
+    public void testUnlabelledObjects() throws IOException, InterruptedException {
+        System.out.println("Starting testUnlabelledObjects...");
+        //two pillars at each time: one with an empty ID, one with no ID at all
+        write("camera_data.json", "{\"camera1\": ["
+                + "{\"time\": 2, \"detectedObjects\": [{\"id\": \"\", \"description\": \"Pillar\"}, {\"description\": \"Pillar\"}]},"
+                + "{\"time\": 4, \"detectedObjects\": [{\"id\": \"\", \"description\": \"Pillar\"}, {\"id\": \"\", \"description\": \"Pillar\"}]}],"
+                + "\"camera2\": []}");
+        String near = "[[1.75, -0.25, 0.1], [2.25, -0.25, 0.1], [2.25, 0.25, 0.1], [1.75, 0.25, 0.1]]";
+        String far = "[[-0.25, 2.75, 0.1], [0.25, 2.75, 0.1], [0.25, 3.25, 0.1], [-0.25, 3.25, 0.1]]";
+        write("lidar_data.json", "["
+                + "{\"time\": 2, \"id\": \"\", \"cloudPoints\": " + near + "},"
+                + "{\"time\": 2, \"cloudPoints\": " + far + "},"
+                + "{\"time\": 4, \"id\": \"\", \"cloudPoints\": " + near + "},"
+                + "{\"time\": 4, \"id\": \"\", \"cloudPoints\": " + far + "}]");
+        JsonObject output = run(config());
+
+        assertEquals(4, output.get("numTrackedObjects").getAsInt());
+        assertEquals(new TreeSet<>(Arrays.asList("landmark_1", "landmark_2")), landmarkIds(output),
+                     "Each pillar is one landmark, seen twice");
+        JsonObject landmarks = output.getAsJsonObject("landMarks");
+        double nearX = landmarks.getAsJsonObject("landmark_1").getAsJsonArray("coordinates").get(0)
+                                .getAsJsonObject().get("x").getAsDouble();
+        double farX = landmarks.getAsJsonObject("landmark_2").getAsJsonArray("coordinates").get(0)
+                               .getAsJsonObject().get("x").getAsDouble();
+        assertTrue(Math.abs(nearX - farX) > 1, "The two pillars kept their own clouds");
+    }
+}
@@ -83,4 +83,32 @@ public class CameraTest {
         camera.processDetectionsForTick(3); // time + frequency
         assertEquals(STATUS.DOWN, camera.getStatus());
     }
-}
\ No newline at end of file
+
+    @Test //detections are picked up at time + frequency even when the list is not sorted
+    public void testScheduleLookup() {
+        System.out.println("Starting testScheduleLookup...");
+
+        ArrayList<DetectedObject> late = new ArrayList<>();
+        late.add(new DetectedObject("obj2", "late object"));
+        ArrayList<DetectedObject> early = new ArrayList<>();
+        early.add(new DetectedObject("obj1", "early object"));
+        ArrayList<DetectedObject> broken = new ArrayList<>();
+        broken.add(new DetectedObject("ERROR", "camera disconnected"));
+
+        camera.getDetectedObjectsList().add(new StampedDetectedObjects(5, late));
+        camera.getDetectedObjectsList().add(new StampedDetectedObjects(1, early));
+        camera.getDetectedObjectsList().add(new StampedDetectedObjects(8, broken));
+        camera.initializeTotalDetections();
+
+        assertNull(camera.processDetectionsForTick(2));
+        assertEquals("obj1", camera.processDetectionsForTick(3).getDetectedObjects().get(0).getId());
+        assertNull(camera.processDetectionsForTick(3), "Should not hand out the same detection twice");
+        assertEquals("obj2", camera.processDetectionsForTick(7).getDetectedObjects().get(0).getId());
+        assertEquals(2, stats.getNumDetectedObjects());
+
+        StampedDetectedObjects errorFrame = camera.processDetectionsForTick(10);
+        assertNotNull(camera.isValid(errorFrame));
+        assertEquals(2, stats.getNumDetectedObjects(), "ERROR frames are not counted as detections");
+        assertNull(camera.processDetectionsForTick(1000));
+    }
+}
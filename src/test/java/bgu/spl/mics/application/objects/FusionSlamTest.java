@@ -1,7 +1,10 @@
 // FusionSlamTest.java
 
 package bgu.spl.mics.application.objects;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Random;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.BeforeEach;
@@ -71,4 +74,250 @@ public class FusionSlamTest {
         assertEquals(-1/sqrt2, globalLandmark.getCoordinates().get(0).getCloudPointX(), epsilon);
         assertEquals(1/sqrt2, globalLandmark.getCoordinates().get(0).getCloudPointY(), epsilon);
     }
+
+    @Test
+    public void testManyLandmarks() {
+        System.out.println("Starting testManyLandmarks...");
+        Pose robotPose = new Pose(0.0f, 0.0f, 0.0f, 1);
+        int before = fusionSlam.getLandmarks().size();
+
+        //more than the old 1000 slot limit
+        for (int i = 0; i < 1500; i++) {
+            ArrayList<CloudPoint> points = new ArrayList<>();
+            points.add(new CloudPoint((double) i, 0.0));
+            fusionSlam.processTrackedObject(new TrackedObject("bulk" + i, 1, "bulk", points), robotPose);
+        }
+        //a second observation updates the landmark instead of adding a new one
+        ArrayList<CloudPoint> again = new ArrayList<>();
+        again.add(new CloudPoint(1201.0, 2.0));
+        fusionSlam.processTrackedObject(new TrackedObject("bulk1200", 1, "bulk", again), robotPose);
+
+        ArrayList<LandMark> landmarks = fusionSlam.getLandmarks();
+        assertEquals(before + 1500, landmarks.size());
+        assertEquals("bulk0", landmarks.get(before).getLandmarkId(), "landmarks keep insertion order");
+        assertEquals(1200.5, fusionSlam.getLandmark("bulk1200").getCoordinates().get(0).getCloudPointX(), 0.0001);
+        assertEquals(1.0, fusionSlam.getLandmark("bulk1200").getCoordinates().get(0).getCloudPointY(), 0.0001);
+    }
+
+    @Test //the pipeline merges in submission order, so the result matches the serial path
+    public void testPipeline() throws InterruptedException {
+        System.out.println("Starting testPipeline...");
+        FusionPipeline pipeline = new FusionPipeline(fusionSlam, 4, 8);
+        Pose robotPose = new Pose(1.0f, 0.0f, 0.0f, 1);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 100; i++) {
+                ArrayList<CloudPoint> points = new ArrayList<>();
+                points.add(new CloudPoint(round * 4.0, i));
+                pipeline.submit(new TrackedObject("pipe" + i, 1, "pipe", points), robotPose);
+            }
+        }
+        pipeline.shutdown();
+
+        //x goes 0, 4, 8 in the robot frame -> 1, 5, 9 globally, averaged as ((1+5)/2+9)/2
+        for (int i = 0; i < 100; i++) {
+            CloudPoint point = fusionSlam.getLandmark("pipe" + i).getCoordinates().get(0);
+            assertEquals(6.0, point.getCloudPointX(), 0.0001);
+            assertEquals(i, point.getCloudPointY(), 0.0001);
+        }
+    }
+
+    @Test //running mean weighs every observation equally, and only the missing tail is appended
+    public void testLandmarkFusionModes() {
+        System.out.println("Starting testLandmarkFusionModes...");
+        ArrayList<CloudPoint> first = new ArrayList<>();
+        first.add(new CloudPoint(0.0, 0.0));
+        LandMark average = new LandMark("fuseAvg", "fusion test", first);
+        LandMark mean = new LandMark("fuseMean", "fusion test", first);
+
+        PointBuffer sample = new PointBuffer();
+        for (int i = 1; i <= 3; i++) {
+            sample.clear();
+            sample.add(3.0, 3.0);
+            sample.add(10.0 * i, 0.0);
+            average.updateCoordinates(sample, LandMark.FusionMode.AVERAGE);
+            mean.updateCoordinates(sample, LandMark.FusionMode.RUNNING_MEAN);
+        }
+
+        assertEquals(2.625, average.getCoordinates().get(0).getCloudPointX(), 0.0001);
+        assertEquals(2.25, mean.getCoordinates().get(0).getCloudPointX(), 0.0001);
+        assertEquals(4, mean.getObservations(0));
+        assertEquals(2, mean.size(), "the second point is appended once, then fused");
+        assertEquals(20.0, mean.getCoordinates().get(1).getCloudPointX(), 0.0001);
+    }
+
+    @Test //a shorter observation drops the tail in AVERAGE mode, like the original blend, and keeps it in RUNNING_MEAN
+    public void testShorterObservation() {
+        System.out.println("Starting testShorterObservation...");
+        ArrayList<CloudPoint> wall = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            wall.add(new CloudPoint(i, 0.0));
+        }
+        LandMark average = new LandMark("shortAvg", "fusion test", wall);
+        LandMark mean = new LandMark("shortMean", "fusion test", wall);
+        PointBuffer single = new PointBuffer();
+        single.add(2.0, 2.0);
+        average.updateCoordinates(single, LandMark.FusionMode.AVERAGE);
+        mean.updateCoordinates(single, LandMark.FusionMode.RUNNING_MEAN);
+
+        assertEquals(1, average.size());
+        assertEquals(1.0, average.getCoordinates().get(0).getCloudPointX(), 0.0001);
+        assertEquals(1.0, average.getCoordinates().get(0).getCloudPointY(), 0.0001);
+        assertEquals(3, mean.size());
+        assertEquals(2.0, mean.getCoordinates().get(2).getCloudPointX(), 0.0001);
+    }
+
+    @Test //observations without an ID are matched to landmarks by position and shape
+    public void testUnlabelledAssociation() {
+        System.out.println("Starting testUnlabelledAssociation...");
+        Pose robotPose = new Pose(500.0f, 500.0f, 0.0f, 1);   //away from the other tests' landmarks
+        int before = fusionSlam.getLandmarks().size();
+
+        fusionSlam.processTrackedObject(new TrackedObject("", 1, "Pillar", square(0.0, 0.0, 0.5)), robotPose);
+        //same pillar seen again, slightly shifted
+        fusionSlam.processTrackedObject(new TrackedObject("", 2, "Pillar", square(0.2, 0.1, 0.5)), robotPose);
+        //close by, but a much bigger object
+        fusionSlam.processTrackedObject(new TrackedObject("", 3, "Pillar", square(0.3, 0.0, 3.0)), robotPose);
+        //same shape, but far away
+        fusionSlam.processTrackedObject(new TrackedObject("", 4, "Pillar", square(20.0, 0.0, 0.5)), robotPose);
+
+        ArrayList<LandMark> landmarks = fusionSlam.getLandmarks();
+        assertEquals(before + 3, landmarks.size());
+        LandMark pillar = fusionSlam.findNearestLandmark(500.1, 500.05, 1.0);
+        assertNotNull(pillar);
+        assertEquals(2, pillar.getObservations(0), "the shifted pillar was fused into the first one");
+    }
+
+    @Test //old snapshots keep their contents, and unchanged landmarks are shared between versions
+    public void testMapSnapshots() {
+        System.out.println("Starting testMapSnapshots...");
+        Pose robotPose = new Pose(0.0f, 0.0f, 0.0f, 1);
+        ArrayList<CloudPoint> points = new ArrayList<>();
+        points.add(new CloudPoint(1.0, 1.0));
+        fusionSlam.processTrackedObject(new TrackedObject("snapMoved", 1, "snapshot test", points), robotPose);
+        fusionSlam.processTrackedObject(new TrackedObject("snapStill", 1, "snapshot test", points), robotPose);
+        fusionSlam.publishSnapshot();
+        MapSnapshot before = fusionSlam.getSnapshot();
+        int moved = indexOf(before, "snapMoved");
+        int still = indexOf(before, "snapStill");
+
+        ArrayList<CloudPoint> other = new ArrayList<>();
+        other.add(new CloudPoint(3.0, 3.0));
+        fusionSlam.processTrackedObject(new TrackedObject("snapMoved", 2, "snapshot test", other), robotPose);
+        for (int i = 0; i < 100; i++) {   //enough to fill new chunks
+            fusionSlam.processTrackedObject(new TrackedObject("snapNew" + i, 2, "snapshot test", points), robotPose);
+        }
+        assertSame(before, fusionSlam.getSnapshot(), "nothing is visible before the next publish");
+        fusionSlam.publishSnapshot();
+        MapSnapshot after = fusionSlam.getSnapshot();
+
+        assertTrue(after.getVersion() > before.getVersion());
+        assertEquals(before.size() + 100, after.size());
+        assertEquals(1.0, before.get(moved).getX(0), 0.0001);
+        assertEquals(2.0, after.get(moved).getX(0), 0.0001);
+        assertSame(before.get(still), after.get(still));
+        assertEquals("snapNew99", after.get(after.size() - 1).getLandmarkId());
+    }
+
+    @Test //the change log replays to the same landmarks, and observation counts, as the published map
+    public void testChangeLogReplay() throws IOException {
+        System.out.println("Starting testChangeLogReplay...");
+        File file = File.createTempFile("map_changes", ".ndjson");
+        file.deleteOnExit();
+        fusionSlam.publishSnapshot();
+        fusionSlam.setChangeLog(new MapChangeLog(file.getPath()));
+        Pose robotPose = new Pose(1.0f, 2.0f, 90.0f, 1);
+        ArrayList<CloudPoint> points = new ArrayList<>();
+        points.add(new CloudPoint(1.0, 0.0));
+        fusionSlam.processTrackedObject(new TrackedObject("logged", 1, "log test", points), robotPose);
+        fusionSlam.publishSnapshot();
+        points.add(new CloudPoint(2.0, 0.0));
+        fusionSlam.processTrackedObject(new TrackedObject("logged", 2, "log test", points), robotPose);
+        fusionSlam.processTrackedObject(new TrackedObject("loggedToo", 2, "log test", points), robotPose);
+        fusionSlam.publishSnapshot();
+        fusionSlam.closeChangeLog();
+        fusionSlam.setChangeLog(null);
+
+        ArrayList<LandmarkView> replayed = MapChangeLog.replay(file.getPath());
+        assertEquals(2, replayed.size());
+        assertEquals("logged", replayed.get(0).getLandmarkId());
+        assertEquals("loggedToo", replayed.get(1).getLandmarkId());
+        LandMark live = fusionSlam.getLandmark("logged");
+        assertEquals(live.size(), replayed.get(0).size());
+        for (int i = 0; i < live.size(); i++) {
+            assertEquals(live.getCoordinates().get(i).getCloudPointX(), replayed.get(0).getX(i), 0.0);
+            assertEquals(live.getCoordinates().get(i).getCloudPointY(), replayed.get(0).getY(i), 0.0);
+            assertEquals(live.getObservations(i), replayed.get(0).getObservations(i));
+        }
+    }
+
+    @Test //a dense scan is reduced to one centroid per voxel, in the order the voxels were first seen
+    public void testVoxelDownsampling() {
+        System.out.println("Starting testVoxelDownsampling...");
+        ArrayList<CloudPoint> scan = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            scan.add(new CloudPoint(-0.99 + i * 0.02, 0.1));   //-0.99 to 0.99, two cells of 1.0 on each side of 0
+        }
+        scan.add(new CloudPoint(-0.5, 0.5));   //back in the first cell
+        Pose robotPose = new Pose(800.0f, 800.0f, 0.0f, 1);   //away from the other tests' landmarks
+        try {
+            fusionSlam.setVoxelSize(1.0);
+            fusionSlam.processTrackedObject(new TrackedObject("dense", 1, "Shelf", scan), robotPose);
+        } finally {
+            fusionSlam.setVoxelSize(0);
+        }
+
+        LandMark landmark = fusionSlam.getLandmark("dense");
+        assertEquals(2, landmark.size());
+        CloudPoint first = landmark.getCoordinates().get(0);
+        CloudPoint second = landmark.getCoordinates().get(1);
+        assertTrue(first.getCloudPointX() < 800.0 && second.getCloudPointX() > 800.0);
+        assertEquals(800.1 + 0.4 / 51, first.getCloudPointY(), 0.0001);   //50 points at y=0.1 and one at y=0.5
+        assertEquals(800.1, second.getCloudPointY(), 0.0001);
+    }
+
+    private int indexOf(MapSnapshot snapshot, String id) {
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (snapshot.get(i).getLandmarkId().equals(id)) {
+                return i;
+            }
+        }
+        fail("landmark " + id + " is not in the snapshot");
+        return -1;
+    }
+
+    private ArrayList<CloudPoint> square(double x, double y, double half) {
+        ArrayList<CloudPoint> points = new ArrayList<>();
+        points.add(new CloudPoint(x - half, y - half));
+        points.add(new CloudPoint(x + half, y - half));
+        points.add(new CloudPoint(x + half, y + half));
+        points.add(new CloudPoint(x - half, y + half));
+        return points;
+    }
+
+    @Test //with voxels and ICP, repeated noisy scans keep a landmark at one downsampled observation's worth of points
+    public void testVoxelBound() {
+        System.out.println("Starting testVoxelBound...");
+        Random random = new Random(5);
+        Pose robotPose = new Pose(900.0f, 900.0f, 0.0f, 1);   //away from the other tests' landmarks
+        try {
+            fusionSlam.setVoxelSize(1.0);
+            fusionSlam.setIcp(new IcpAligner(20, 0.5));
+            for (int scan = 0; scan < 30; scan++) {
+                ArrayList<CloudPoint> points = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    points.add(new CloudPoint(-0.99 + i * 0.02, 0.1 + random.nextGaussian() * 0.005));   //two cells
+                }
+                for (int stray = 0; stray < 3; stray++) {
+                    points.add(new CloudPoint(5 + random.nextDouble() * 10, 5 + random.nextDouble() * 10));
+                }
+                fusionSlam.processTrackedObject(new TrackedObject("voxel_bound", scan + 1, "Shelf", points), robotPose);
+            }
+        } finally {
+            fusionSlam.setVoxelSize(0);
+            fusionSlam.setIcp(null);
+        }
+
+        LandMark landmark = fusionSlam.getLandmark("voxel_bound");
+        assertTrue(landmark.size() <= 5, "Two wall cells and three strays at most, was " + landmark.size());
+    }
 }
@@ -0,0 +1,111 @@
+package bgu.spl.mics.application.objects;
+import java.util.ArrayList;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IcpAlignerTest {
+
+    @Test //the k-d tree finds the same nearest point as a brute force search
+    public void testKdTreeNearest() {
+        System.out.println("Starting testKdTreeNearest...");
+        Random random = new Random(7);
+        int size = 500;
+        double[] xs = new double[size];
+        double[] ys = new double[size];
+        for (int i = 0; i < size; i++) {
+            xs[i] = random.nextDouble() * 10;
+            ys[i] = random.nextDouble() * 10;
+        }
+        KdTree tree = new KdTree();
+        tree.build(xs, ys, size);
+        for (int query = 0; query < 200; query++) {
+            double x = random.nextDouble() * 12 - 1;
+            double y = random.nextDouble() * 12 - 1;
+            int expected = -1;
+            double expectedDistance = 0.3 * 0.3;
+            for (int i = 0; i < size; i++) {
+                double d = (xs[i] - x) * (xs[i] - x) + (ys[i] - y) * (ys[i] - y);
+                if (d < expectedDistance) {
+                    expectedDistance = d;
+                    expected = i;
+                }
+            }
+            assertEquals(expected, tree.nearest(x, y, 0.3), "Query (" + x + ", " + y + ")");
+        }
+    }
+
+    @Test //a shuffled, slightly moved re-observation is aligned and fused point by point
+    public void testAlignedFusion() {
+        System.out.println("Starting testAlignedFusion...");
+        ArrayList<CloudPoint> points = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            points.add(new CloudPoint(i * 0.5, (i % 3) * 0.4));   //a zigzag wall, so rotation is observable
+        }
+        LandMark wall = new LandMark("icp_wall", "Wall", points);
+
+        //the same points in reverse order, rotated by 3 degrees and shifted by 10 cm
+        double angle = Math.toRadians(3);
+        PointBuffer observation = new PointBuffer();
+        for (int i = points.size() - 1; i >= 0; i--) {
+            double x = points.get(i).getCloudPointX();
+            double y = points.get(i).getCloudPointY();
+            observation.add(Math.cos(angle) * x - Math.sin(angle) * y + 0.1, Math.sin(angle) * x + Math.cos(angle) * y - 0.05);
+        }
+        IcpAligner aligner = new IcpAligner(20, 0.5);
+        wall.updateCoordinates(observation, LandMark.FusionMode.AVERAGE, aligner);
+
+        assertEquals(10, wall.size(), "Every point found its match, nothing was appended");
+        ArrayList<CloudPoint> fused = wall.getCoordinates();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(points.get(i).getCloudPointX(), fused.get(i).getCloudPointX(), 1e-6);
+            assertEquals(points.get(i).getCloudPointY(), fused.get(i).getCloudPointY(), 1e-6);
+            assertEquals(2, wall.getObservations(i));
+        }
+        assertTrue(aligner.getIterations() < 20, "Converged before the iteration limit");
+    }
+
+    @Test //an observation too far off for any pair is fused by index instead of being appended
+    public void testNoPairs() {
+        System.out.println("Starting testNoPairs...");
+        ArrayList<CloudPoint> points = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            points.add(new CloudPoint(i * 0.5, 0.0));
+        }
+        LandMark wall = new LandMark("icp_far_wall", "Wall", points);
+        PointBuffer observation = new PointBuffer();
+        for (int i = 0; i < 5; i++) {
+            observation.add(i * 0.5 + 5.0, 0.0);   //5 m off, far past the 0.5 m pairing distance
+        }
+        wall.updateCoordinates(observation, LandMark.FusionMode.AVERAGE, new IcpAligner(20, 0.5));
+
+        assertEquals(5, wall.size(), "Nothing was appended");
+        assertEquals(2.5, wall.getCoordinates().get(0).getCloudPointX(), 1e-9);
+        assertEquals(2, wall.getObservations(4));
+    }
+
+    @Test //stray points of noisy re-observations do not pile up, the landmark stays as big as its largest observation
+    public void testNoisyObservationsBounded() {
+        System.out.println("Starting testNoisyObservationsBounded...");
+        Random random = new Random(11);
+        ArrayList<CloudPoint> points = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            points.add(new CloudPoint(i * 0.5, (i % 3) * 0.4));
+        }
+        LandMark wall = new LandMark("icp_noisy_wall", "Wall", points);
+        IcpAligner aligner = new IcpAligner(20, 0.5);
+        for (int update = 0; update < 50; update++) {
+            PointBuffer observation = new PointBuffer();
+            for (CloudPoint point : points) {
+                observation.add(point.getCloudPointX() + random.nextGaussian() * 0.02, point.getCloudPointY() + random.nextGaussian() * 0.02);
+            }
+            for (int stray = 0; stray < 3; stray++) {
+                observation.add(20 + random.nextDouble() * 10, 20 + random.nextDouble() * 10);   //pairs with nothing
+            }
+            wall.updateCoordinates(observation, LandMark.FusionMode.RUNNING_MEAN, aligner);
+        }
+
+        assertTrue(wall.size() <= 13, "At most one observation's worth of points, was " + wall.size());
+        assertEquals(51, wall.getObservations(0), "The wall itself was fused every time");
+    }
+}
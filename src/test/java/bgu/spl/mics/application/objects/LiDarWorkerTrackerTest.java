@@ -0,0 +1,85 @@
+package bgu.spl.mics.application.objects;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import bgu.spl.mics.application.messages.DetectObjectsEvent;
+import bgu.spl.mics.application.messages.TrackedObjectsEvent;
+
+public class LiDarWorkerTrackerTest {
+    private static final int BATCH = 300;   //above the parallel threshold
+    private static String dataPath;
+    private LiDarWorkerTracker lidar;
+    private StatisticalFolder stats;
+
+    @BeforeAll
+    public static void writeData() throws IOException {
+        //the database is a singleton, so every object the tests need is in one file
+        File file = File.createTempFile("lidar_data", ".json");
+        file.deleteOnExit();
+        try (FileWriter w = new FileWriter(file)) {
+            w.write("[");
+            w.write("{\"time\":1,\"id\":\"early\",\"cloudPoints\":[[1.0,1.0,0.1]]},");
+            w.write("{\"time\":5,\"id\":\"late\",\"cloudPoints\":[[2.0,2.0,0.1]]}");
+            for (int i = 0; i < BATCH; i++) {
+                w.write(",{\"time\":10,\"id\":\"box" + i + "\",\"cloudPoints\":[[" + i + ".0,0.5,0.1]]}");
+            }
+            w.write("]");
+        }
+        dataPath = file.getAbsolutePath();
+    }
+
+    @BeforeEach
+    public void setUp() {
+        System.out.println("Setting up test environment for LiDarWorkerTracker");
+        stats = new StatisticalFolder();
+        lidar = new LiDarWorkerTracker(1, 1, dataPath, stats);
+    }
+
+    private DetectObjectsEvent detection(int time, String... ids) {
+        ArrayList<DetectedObject> objects = new ArrayList<>();
+        for (String id : ids) {
+            objects.add(new DetectedObject(id, "test"));
+        }
+        return new DetectObjectsEvent(new StampedDetectedObjects(time, objects));
+    }
+
+    @Test //an early detection that arrives after a later one must not get stuck behind it
+    public void testOutOfOrderRelease() {
+        System.out.println("Starting testOutOfOrderRelease...");
+        lidar.processDetection(detection(5, "late"));
+        lidar.processDetection(detection(1, "early"));
+
+        ArrayList<TrackedObjectsEvent> events = lidar.processTimeStep(2);
+        assertEquals(1, events.size());
+        assertEquals("early", events.get(0).getTrackedObjects().get(0).getID());
+        assertTrue(lidar.processTimeStep(5).isEmpty(), "late object is due at tick 6");
+        assertEquals("late", lidar.processTimeStep(6).get(0).getTrackedObjects().get(0).getID());
+    }
+
+    @Test //a big ready batch goes through the parallel path and keeps its order
+    public void testLargeBatch() {
+        System.out.println("Starting testLargeBatch...");
+        String[] ids = new String[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            ids[i] = "box" + i;
+        }
+        lidar.processDetection(detection(10, ids));
+
+        ArrayList<TrackedObjectsEvent> events = lidar.processTimeStep(11);
+        assertEquals(1, events.size());
+        ArrayList<TrackedObject> tracked = events.get(0).getTrackedObjects();
+        assertEquals(BATCH, tracked.size());
+        for (int i = 0; i < BATCH; i++) {
+            assertEquals("box" + i, tracked.get(i).getID());
+            assertEquals(i, tracked.get(i).getCoordinates().get(0).getCloudPointX(), 0.0001);
+        }
+        assertEquals(BATCH, stats.getNumTrackedObjects());
+        assertEquals("box" + (BATCH - 1), stats.getLidarsLastFrame().get(lidar).getID());
+    }
+}
@@ -0,0 +1,162 @@
+package bgu.spl.mics.application.objects;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MapCheckpointerTest {
+
+    private LandMark landmark(String id, int index, double x) {
+        ArrayList<CloudPoint> points = new ArrayList<>();
+        points.add(new CloudPoint(x, -x));
+        LandMark landmark = new LandMark(id, "checkpoint test", points);
+        landmark.mapIndex = index;
+        return landmark;
+    }
+
+    private FusedDetections fused(int time, String... ids) {
+        FusedDetections fused = new FusedDetections();
+        for (String id : ids) {
+            fused.add(time, SymbolTable.intern(id));
+        }
+        return fused;
+    }
+
+    private ArrayList<LandMark> list(LandMark... landmarks) {
+        ArrayList<LandMark> list = new ArrayList<>();
+        for (LandMark landmark : landmarks) {
+            list.add(landmark);
+        }
+        return list;
+    }
+
+    @Test //a diff only returns the landmarks that changed between two versions
+    public void testChangedSince() {
+        System.out.println("Starting testChangedSince...");
+        ArrayList<LandMark> all = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            all.add(landmark("diff" + i, i, i));
+        }
+        MapSnapshot first = MapSnapshot.EMPTY.withChanges(all, 200);
+        PointBuffer update = new PointBuffer();
+        update.add(0.0, 0.0);
+        all.get(5).updateCoordinates(update);
+        all.get(150).updateCoordinates(update);
+        MapSnapshot second = first.withChanges(list(all.get(5), all.get(150), landmark("diff200", 200, 1.0)), 201);
+
+        assertArrayEquals(new int[] {5, 150, 200}, second.changedSince(first));
+        assertEquals(200, first.changedSince(MapSnapshot.EMPTY).length);
+    }
+
+    @Test //checkpoints are merged on load, and a block cut off by a crash is ignored
+    public void testCheckpointAndLoad() throws IOException, InterruptedException {
+        System.out.println("Starting testCheckpointAndLoad...");
+        File file = File.createTempFile("fusion", ".checkpoint");
+        file.deleteOnExit();
+        StatisticalFolder stats = new StatisticalFolder();
+        PoseStore poses = new PoseStore();
+        MapCheckpointer checkpointer = new MapCheckpointer(file.getPath(), null);
+
+        LandMark a = landmark("saved_a", 0, 1.0);
+        LandMark b = landmark("saved_b", 1, 2.0);
+        poses.put(new Pose(1.0f, 0.0f, 0.0f, 1));
+        MapSnapshot first = MapSnapshot.EMPTY.withChanges(list(a, b), 2);
+        assertTrue(checkpointer.checkpoint(1, first, fused(1, "saved_a", "saved_b"), poses, stats));
+        while (!checkpointer.checkpoint(2, first, new FusedDetections(), poses, stats)) {
+            Thread.sleep(1);   //wait for the first one, this one has nothing new
+        }
+
+        PointBuffer update = new PointBuffer();
+        update.add(4.0, 4.0);
+        update.add(9.0, 9.0);
+        b.updateCoordinates(update, LandMark.FusionMode.RUNNING_MEAN);
+        poses.put(new Pose(2.0f, 0.0f, 0.0f, 2));
+        poses.put(new Pose(3.0f, 0.0f, 0.0f, 3));
+        stats.incrementRuntime(3);
+        MapSnapshot second = first.withChanges(list(b), 2);
+        while (!checkpointer.checkpoint(3, second, fused(3, "saved_b"), poses, stats)) {
+            Thread.sleep(1);
+        }
+        checkpointer.close();
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[] {0x53, 0x4c, 0x4d, 0x43, 0, 0, 1});   //start of a block that never finished
+        }
+
+        MapCheckpointer.Restored restored = MapCheckpointer.load(file.getPath());
+        assertEquals(3, restored.getTick());
+        assertEquals(3, restored.getSystemRuntime());
+        assertEquals(3, restored.getPoses().size());
+        assertEquals(2, restored.getLandmarks().size());
+        assertEquals("saved_a", restored.getLandmarks().get(0).getLandmarkId());
+        LandmarkView savedB = restored.getLandmarks().get(1);
+        assertEquals(2, savedB.size());
+        assertEquals(3.0, savedB.getX(0), 0.0001);
+        assertEquals(2, savedB.getObservations(0));
+        FusedDetections fused = restored.getFusedDetections();
+        assertEquals(3, fused.size());
+        assertTrue(fused.remove(1, SymbolTable.intern("saved_a")));
+        assertFalse(fused.remove(3, SymbolTable.intern("saved_a")));
+        assertTrue(fused.remove(3, SymbolTable.intern("saved_b")));
+        assertEquals(file.length() - 7, restoredLength(file.getPath()));
+    }
+
+    @Test //a block that fails halfway is cut off, and the next block still gets its detections
+    public void testFailedWrite() throws IOException, InterruptedException {
+        System.out.println("Starting testFailedWrite...");
+        File file = File.createTempFile("fusion", ".checkpoint");
+        file.deleteOnExit();
+        StatisticalFolder stats = new StatisticalFolder();
+        PoseStore poses = new PoseStore();
+        AtomicBoolean fail = new AtomicBoolean(false);
+        MapCheckpointer checkpointer = new MapCheckpointer(file.getPath(), null) {
+            @Override
+            void write(ByteBuffer block) throws IOException {
+                if (fail.getAndSet(false)) {
+                    block.limit(block.limit() / 2);
+                    super.write(block);
+                    throw new IOException("disk full");
+                }
+                super.write(block);
+            }
+        };
+
+        LandMark a = landmark("failed_a", 0, 1.0);
+        MapSnapshot first = MapSnapshot.EMPTY.withChanges(list(a), 1);
+        assertTrue(checkpointer.checkpoint(1, first, fused(1, "failed_a"), poses, stats));
+        LandMark b = landmark("failed_b", 1, 2.0);
+        MapSnapshot second = first.withChanges(list(b), 2);
+        while (!checkpointer.checkpoint(2, second, fused(2, "failed_b"), poses, stats)) {
+            Thread.sleep(1);
+        }
+        fail.set(true);   //the first block is done, the second or the third one fails
+        LandMark c = landmark("failed_c", 2, 3.0);
+        MapSnapshot third = second.withChanges(list(c), 3);
+        while (!checkpointer.checkpoint(3, third, fused(3, "failed_c"), poses, stats)) {
+            Thread.sleep(1);
+        }
+        while (!checkpointer.checkpoint(4, third, new FusedDetections(), poses, stats)) {
+            Thread.sleep(1);
+        }
+        checkpointer.close();
+
+        MapCheckpointer.Restored restored = MapCheckpointer.load(file.getPath());
+        assertEquals(4, restored.getTick(), "The blocks after the failed one were read");
+        assertEquals(3, restored.getLandmarks().size());
+        FusedDetections fused = restored.getFusedDetections();
+        assertEquals(3, fused.size());
+        assertTrue(fused.remove(2, SymbolTable.intern("failed_b")));
+        assertTrue(fused.remove(3, SymbolTable.intern("failed_c")), "The failed block's detections were written by the next one");
+        assertEquals(file.length(), restoredLength(file.getPath()), "Nothing but whole blocks in the file");
+    }
+
+    //size of the file after a resume cut the broken block away
+    private long restoredLength(String path) throws IOException, InterruptedException {
+        MapCheckpointer resumed = new MapCheckpointer(path, MapCheckpointer.load(path));
+        resumed.close();
+        return new File(path).length();
+    }
+}
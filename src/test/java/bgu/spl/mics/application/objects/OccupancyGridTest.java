@@ -0,0 +1,44 @@
+package bgu.spl.mics.application.objects;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OccupancyGridTest {
+
+    @Test //a changed landmark leaves its old cells and takes its new ones, and the image shows the result
+    public void testIncrementalUpdateAndPgm() throws IOException {
+        System.out.println("Starting testIncrementalUpdateAndPgm...");
+        ArrayList<CloudPoint> points = new ArrayList<>();
+        points.add(new CloudPoint(0.05, 0.05));
+        points.add(new CloudPoint(0.25, 0.05));
+        LandMark wall = new LandMark("grid_wall", "Wall", points);
+        OccupancyGrid grid = new OccupancyGrid(0.1);
+        grid.update(wall);
+        assertEquals(2, grid.getOccupiedCells());
+        assertTrue(grid.isOccupied(0.21, 0.01));
+
+        PointBuffer moved = new PointBuffer();
+        moved.add(0.05, 0.05);
+        moved.add(0.25, 0.25);   //averaged with (0.25, 0.05) into (0.25, 0.15)
+        wall.updateCoordinates(moved);
+        grid.update(wall);
+        assertEquals(2, grid.getOccupiedCells());
+        assertFalse(grid.isOccupied(0.21, 0.01), "The old cell was released");
+        assertTrue(grid.isOccupied(0.25, 0.15));
+
+        File file = File.createTempFile("grid", ".pgm");
+        file.deleteOnExit();
+        grid.writePgm(file.getPath());
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        String header = "P5\n# resolution 0.1 origin 0.0 0.0\n3 2\n255\n";
+        assertEquals(header, new String(bytes, 0, header.length(), StandardCharsets.US_ASCII));
+        //top row is y cell 1: only x cell 2 is occupied. bottom row: only x cell 0.
+        assertArrayEquals(new byte[] {(byte) 255, (byte) 255, 0, 0, (byte) 255, (byte) 255},
+                Arrays.copyOfRange(bytes, header.length(), bytes.length));
+    }
+}
@@ -0,0 +1,58 @@
+package bgu.spl.mics.application.objects;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PoseGraphTest {
+
+    @Test //the odometry overstates every step by 10%, the landmarks seen from several poses pull the poses back
+    public void testLandmarksCorrectDrift() {
+        System.out.println("Starting testLandmarksCorrectDrift...");
+        PoseGraph graph = new PoseGraph();
+        int last = 40;
+        for (int tick = 0; tick <= last; tick++) {
+            Pose raw = new Pose(1.1f * tick, 0f, 0f, tick);   //really at (tick, 0)
+            for (int landmark = Math.max(0, tick - 3); landmark <= tick + 3; landmark++) {
+                //landmark k is at (k, 2), seen from the true pose
+                graph.addObservation(landmark, raw, landmark - tick, 2.0);
+            }
+        }
+        assertEquals(last + 1, graph.getPoseCount());
+        graph.optimize();
+
+        Pose optimized = graph.getOptimizedPose(last);
+        double rawError = 1.1 * last - last;
+        assertTrue(Math.abs(optimized.getPoseX() - last) < rawError / 4,
+                "Optimized x " + optimized.getPoseX() + " should be close to " + last);
+        assertEquals(0.0, graph.getOptimizedPose(0).getPoseX(), 1e-3, "The first pose is held by the prior");
+
+        //new raw poses get the same correction as the latest node
+        Pose corrected = graph.correct(new Pose(1.1f * last, 0f, 0f, last));
+        assertEquals(optimized.getPoseX(), corrected.getPoseX(), 1e-3);
+
+        //nothing new and nothing moved: the cached Jacobians are reused
+        graph.optimize();
+        assertEquals(0, graph.getRelinearizedEdges());
+    }
+
+    @Test //a pose that arrives between two others replaces their odometry edge, so the result does not depend on the order
+    public void testOutOfOrderPose() {
+        System.out.println("Starting testOutOfOrderPose...");
+        int[][] orders = {{0, 1, 2, 3, 4}, {0, 2, 4, 1, 3}};
+        Pose[] results = new Pose[orders.length];
+        for (int o = 0; o < orders.length; o++) {
+            PoseGraph graph = new PoseGraph();
+            for (int tick : orders[o]) {
+                //odometry says 1.1 per tick, the landmark at (0, 2) says the robot came back to 0 at tick 4
+                Pose raw = new Pose(tick == 4 ? 4.4f : 1.1f * tick, 0f, 0f, tick);
+                double seenX = tick == 0 || tick == 4 ? 0.0 : -1.1 * tick;
+                graph.addObservation(0, raw, seenX, 2.0);
+            }
+            //a prior, 4 odometry edges and 5 observations
+            assertEquals(10, graph.getEdgeCount(), "Order " + o);
+            graph.optimize();
+            results[o] = graph.getOptimizedPose(4);
+        }
+        assertEquals(results[0].getPoseX(), results[1].getPoseX(), 1e-4);
+        assertEquals(results[0].getPoseY(), results[1].getPoseY(), 1e-4);
+    }
+}
@@ -0,0 +1,42 @@
+package bgu.spl.mics.application.objects;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PoseInterpolatorTest {
+
+    @Test //x and y are linear, yaw takes the short way across 180 degrees
+    public void testInterpolate() {
+        System.out.println("Starting testInterpolate...");
+        PoseStore poses = new PoseStore(16);
+        poses.put(new Pose(0.0f, 0.0f, 170.0f, 2));
+        poses.put(new Pose(4.0f, -2.0f, -170.0f, 6));
+        PoseInterpolator interpolator = new PoseInterpolator(5, 0);
+
+        Pose middle = interpolator.poseAt(poses, 4);
+        assertEquals(4, middle.getTime());
+        assertEquals(2.0f, middle.getPoseX(), 0.0001);
+        assertEquals(-1.0f, middle.getPoseY(), 0.0001);
+        assertEquals(180.0f, middle.getYaw(), 0.0001);
+        assertEquals(175.0f, interpolator.poseAt(poses, 3).getYaw(), 0.0001);
+        assertEquals(-175.0f, interpolator.poseAt(poses, 5).getYaw(), 0.0001);
+        assertSame(poses.get(6), interpolator.poseAt(poses, 6), "A stored pose is used as is");
+        assertNull(new PoseInterpolator(3, 0).poseAt(poses, 4), "The samples are further apart than the gap");
+        assertNull(interpolator.poseAt(poses, 7), "poseAt never extrapolates");
+    }
+
+    @Test //extrapolation follows the last motion, but only for a few ticks
+    public void testExtrapolationLimit() {
+        System.out.println("Starting testExtrapolationLimit...");
+        PoseStore poses = new PoseStore(16);
+        poses.put(new Pose(1.0f, 0.0f, 0.0f, 3));
+        poses.put(new Pose(2.0f, 0.0f, 10.0f, 4));
+        PoseInterpolator interpolator = new PoseInterpolator(5, 2);
+
+        Pose ahead = interpolator.estimatePoseAt(poses, 6);
+        assertEquals(4.0f, ahead.getPoseX(), 0.0001);
+        assertEquals(30.0f, ahead.getYaw(), 0.0001);
+        assertEquals(0.0f, interpolator.estimatePoseAt(poses, 2).getPoseX(), 0.0001);
+        assertNull(interpolator.estimatePoseAt(poses, 7), "Too far past the last sample");
+        assertNull(interpolator.estimatePoseAt(poses, 0), "Too far before the first sample");
+    }
+}
@@ -0,0 +1,59 @@
+package bgu.spl.mics.application.objects;
+import java.io.File;
+import java.io.IOException;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PoseStoreTest {
+
+    @Test //default store finds poses by tick
+    public void testDenseLookup() {
+        System.out.println("Starting testDenseLookup...");
+        PoseStore store = new PoseStore();
+        for (int tick = 1; tick <= 500; tick++) {
+            store.put(new Pose(tick, 0.0f, 0.0f, tick));
+        }
+        assertEquals(250.0f, store.get(250).getPoseX());
+        assertNull(store.get(0), "No pose was written for tick 0");
+        assertNull(store.get(501), "Ticks past the latest one have no pose");
+        assertEquals(500, store.getLatest().getTime());
+    }
+
+    @Test //bounded store forgets poses that fell out of the ring
+    public void testRingBuffer() {
+        System.out.println("Starting testRingBuffer...");
+        PoseStore store = new PoseStore(10);
+        for (int tick = 1; tick <= 25; tick++) {
+            store.put(new Pose(tick, 0.0f, 0.0f, tick));
+        }
+        assertNull(store.get(15), "Tick 15 was overwritten by tick 25");
+        assertEquals(16, store.get(16).getTime());
+        assertEquals(25, store.get(25).getTime());
+    }
+
+    @Test //poses that leave the window are spilled and still listed in tick order
+    public void testSpill() throws IOException {
+        System.out.println("Starting testSpill...");
+        File file = File.createTempFile("poses", ".spill");
+        file.deleteOnExit();
+        PoseStore store = new PoseStore(8, file.getPath());
+        for (int tick = 1; tick <= 100; tick++) {
+            if (tick != 50) {
+                store.put(new Pose(tick, -tick, 0.0f, tick));
+            }
+        }
+        assertTrue(store.put(new Pose(50.0f, -50.0f, 0.0f, 50)), "A late pose goes straight to the spill file");
+        assertFalse(store.put(new Pose(0.0f, 0.0f, 0.0f, 3)), "The first pose of a tick wins");
+        assertEquals(3.0f, store.get(3).getPoseX());
+        assertEquals(-50.0f, store.get(50).getPoseY());
+        assertNull(store.get(0), "No pose was written for tick 0");
+
+        int expected = 1;
+        for (Pose pose : store) {
+            assertEquals(expected++, pose.getTime());
+        }
+        assertEquals(101, expected);
+        assertEquals(93 * 16, file.length(), "Ticks 1 to 92 left the ring, plus the hole for tick 0");
+        store.close();
+    }
+}
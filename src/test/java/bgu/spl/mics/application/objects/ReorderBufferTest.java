@@ -0,0 +1,65 @@
+package bgu.spl.mics.application.objects;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReorderBufferTest {
+
+    private TrackedObject object(String id, int time) {
+        return new TrackedObject(id, time, "reorder test", new ArrayList<>());
+    }
+
+    @Test //objects wait until the pose of their tick arrives, and only that tick is released
+    public void testRelease() {
+        System.out.println("Starting testRelease...");
+        ReorderBuffer buffer = new ReorderBuffer(10, 5);
+        assertTrue(buffer.add(object("a", 3), 3));
+        assertTrue(buffer.add(object("b", 3), 3));
+        assertTrue(buffer.add(object("c", 4), 4));
+        assertEquals(3, buffer.size());
+        assertEquals(Arrays.asList(3), buffer.waitingTicksUpTo(3));
+
+        ArrayList<TrackedObject> ready = buffer.release(3);
+        assertEquals(2, ready.size());
+        assertEquals("a", ready.get(0).getID());
+        assertEquals("b", ready.get(1).getID());
+        assertEquals(1, buffer.size());
+        assertTrue(buffer.release(3).isEmpty(), "Released objects are gone");
+        assertEquals(0, buffer.getDropped());
+    }
+
+    @Test //a full buffer drops its oldest tick to make room
+    public void testEviction() {
+        System.out.println("Starting testEviction...");
+        ReorderBuffer buffer = new ReorderBuffer(3, 100);
+        buffer.add(object("old1", 1), 4);
+        buffer.add(object("old2", 1), 4);
+        buffer.add(object("mid", 2), 4);
+        assertTrue(buffer.add(object("new", 3), 4));
+
+        assertEquals(2, buffer.size());
+        assertEquals(2, buffer.getDropped(), "Both objects of the oldest tick were dropped");
+        assertEquals(Arrays.asList(2, 3), buffer.waitingTicksUpTo(4));
+        assertFalse(new ReorderBuffer(0, 100).add(object("none", 1), 1), "A buffer of size 0 holds nothing");
+    }
+
+    @Test //objects that waited longer than maxLateness expire, and late objects are not taken at all
+    public void testExpire() {
+        System.out.println("Starting testExpire...");
+        ReorderBuffer buffer = new ReorderBuffer(10, 2);
+        buffer.add(object("a", 1), 1);
+        buffer.add(object("b", 2), 2);
+        buffer.add(object("c", 3), 3);
+
+        assertTrue(buffer.expiringTicks(3).isEmpty());
+        assertEquals(0, buffer.expire(3), "Tick 1 waited exactly maxLateness ticks");
+        assertEquals(Arrays.asList(1, 2), buffer.expiringTicks(5));
+        assertEquals(2, buffer.expire(5));
+        assertEquals(1, buffer.size());
+        assertEquals(Arrays.asList(3), buffer.waitingTicksUpTo(5));
+
+        assertFalse(buffer.add(object("late", 2), 5), "Already past maxLateness when it arrived");
+        assertEquals(3, buffer.getDropped());
+    }
+}
@@ -0,0 +1,48 @@
+package bgu.spl.mics.application.objects;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotBarrierTest {
+
+    @Test //a round waits for the threads that are alive, and ends once each of them arrived or ended
+    public void testRound() throws InterruptedException {
+        System.out.println("Starting testRound...");
+        SnapshotBarrier barrier = new SnapshotBarrier();
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch arrived = new CountDownLatch(1);
+        Thread arriving = new Thread(() -> {
+            try {
+                go.await();
+                barrier.arrive();
+                arrived.countDown();
+                Thread.sleep(10_000);   //stays alive after arriving
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Thread ending = new Thread(() -> {
+            try {
+                go.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        barrier.register(arriving);
+        barrier.register(ending);
+        arriving.start();
+        ending.start();
+
+        barrier.startRound();
+        assertFalse(barrier.awaitRound(50), "Nobody arrived yet");
+        go.countDown();
+        arrived.await();
+        assertTrue(barrier.awaitRound(5000));
+
+        barrier.startRound();
+        assertFalse(barrier.awaitRound(50), "A new round forgets who arrived before");
+        arriving.interrupt();
+        arriving.join();
+        assertTrue(barrier.awaitRound(5000), "Ended threads do not hold the round");
+    }
+}
@@ -0,0 +1,108 @@
+package bgu.spl.mics.application.objects;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SpatialIndexTest {
+    private SpatialIndex index;
+    private ArrayList<LandMark> landmarks;
+
+    @BeforeEach
+    public void setUp() {
+        System.out.println("Setting up test environment for SpatialIndex");
+        index = new SpatialIndex(2.0);
+        landmarks = new ArrayList<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 500; i++) {
+            ArrayList<CloudPoint> points = new ArrayList<>();
+            points.add(new CloudPoint(random.nextDouble() * 100 - 50, random.nextDouble() * 100 - 50));
+            LandMark landmark = new LandMark("grid" + i, "grid test", points);
+            landmarks.add(landmark);
+            index.update(landmark);
+        }
+    }
+
+    @Test //radius and nearest queries agree with a brute force scan
+    public void testQueriesMatchBruteForce() {
+        System.out.println("Starting testQueriesMatchBruteForce...");
+        Random random = new Random(11);
+        for (int q = 0; q < 50; q++) {
+            double x = random.nextDouble() * 120 - 60;
+            double y = random.nextDouble() * 120 - 60;
+
+            HashSet<LandMark> expected = new HashSet<>();
+            LandMark closest = null;
+            double closestDistance = Double.MAX_VALUE;
+            for (LandMark landmark : landmarks) {
+                double d = Math.hypot(landmark.getCentroidX() - x, landmark.getCentroidY() - y);
+                if (d <= 5.0) {
+                    expected.add(landmark);
+                }
+                if (d < closestDistance) {
+                    closestDistance = d;
+                    closest = landmark;
+                }
+            }
+            assertEquals(expected, new HashSet<>(index.queryRadius(x, y, 5.0)));
+            assertSame(closest, index.nearest(x, y, Double.POSITIVE_INFINITY));
+        }
+    }
+
+    @Test //a landmark whose centroid moves is found at its new position only
+    public void testMovedLandmark() {
+        System.out.println("Starting testMovedLandmark...");
+        LandMark moved = landmarks.get(0);
+        PointBuffer far = new PointBuffer();
+        far.add(1000.0, 1000.0);
+        far.add(1000.0, 1000.0);
+        moved.updateCoordinates(far, LandMark.FusionMode.AVERAGE);
+        index.update(moved);
+
+        assertSame(moved, index.nearest(1000.0, 1000.0, 1000.0));
+        assertFalse(index.queryRadius(moved.getCentroidX(), moved.getCentroidY(), 0.1).isEmpty());
+        assertNull(index.nearest(5000.0, 5000.0, 10.0), "Nothing is within 10 of (5000, 5000)");
+        assertEquals(500, index.size());
+    }
+
+    @Test //a query far from every landmark scans them instead of searching ring after empty ring
+    public void testFarQuery() {
+        System.out.println("Starting testFarQuery...");
+        double x = 1.0e7, y = -3.0e6;
+        LandMark closest = null;
+        double closestDistance = Double.MAX_VALUE;
+        for (LandMark landmark : landmarks) {
+            double d = Math.hypot(landmark.getCentroidX() - x, landmark.getCentroidY() - y);
+            if (d < closestDistance) {
+                closestDistance = d;
+                closest = landmark;
+            }
+        }
+        long start = System.nanoTime();
+        assertSame(closest, index.nearest(x, y, Double.POSITIVE_INFINITY));
+        assertTrue(System.nanoTime() - start < 1_000_000_000L, "Did not walk millions of rings");
+    }
+
+    @Test //a landmark that went far away and came back is only found at home, its old cells are dropped
+    public void testBoundsShrink() {
+        System.out.println("Starting testBoundsShrink...");
+        LandMark outlier = landmarks.get(0);
+        PointBuffer far = new PointBuffer();
+        far.add(1.0e6, 1.0e6);
+        for (int i = 0; i < 60; i++) {
+            outlier.updateCoordinates(far, LandMark.FusionMode.AVERAGE);   //each update halves the way there
+            index.update(outlier);
+        }
+        PointBuffer home = new PointBuffer();
+        home.add(0.0, 0.0);
+        for (int i = 0; i < 60; i++) {
+            outlier.updateCoordinates(home, LandMark.FusionMode.AVERAGE);
+            index.update(outlier);
+        }
+        assertSame(outlier, index.nearest(0.0, 0.0, 1.0));
+        assertNull(index.nearest(1.0e6, 1.0e6, 10.0));
+        assertEquals(500, index.size());
+    }
+}
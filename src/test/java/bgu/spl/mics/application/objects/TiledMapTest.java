@@ -0,0 +1,117 @@
+package bgu.spl.mics.application.objects;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TiledMapTest {
+
+    private LandMark landmark(String id, double x, double y) {
+        ArrayList<CloudPoint> points = new ArrayList<>();
+        points.add(new CloudPoint(x, y));
+        points.add(new CloudPoint(x + 0.5, y + 0.25));
+        return new LandMark(id, "tile test", points);
+    }
+
+    @Test //cold tiles go to disk and come back transparently when their landmarks are used
+    public void testEvictAndReload() throws IOException {
+        System.out.println("Starting testEvictAndReload...");
+        File directory = Files.createTempDirectory("tiles").toFile();
+        directory.deleteOnExit();
+        TiledMap map = new TiledMap(directory.getPath(), 10.0, 2);
+        LandMark a = landmark("tile_a", 1.0, 1.0);
+        LandMark b = landmark("tile_b", 51.0, 1.0);
+        LandMark c = landmark("tile_c", 101.0, 1.0);
+        map.add(a);
+        map.add(b);
+        map.add(c);
+
+        assertEquals(3, map.getTileCount());
+        assertEquals(2, map.getResidentTiles());
+        assertFalse(a.isResident(), "The least recently used tile was evicted");
+        assertEquals(2, a.size(), "The point count stays in memory");
+
+        PointBuffer reloaded = new PointBuffer();
+        a.copyCoordinates(reloaded);
+        assertEquals(1.5, reloaded.getX(1), 0.0);
+        assertEquals(1.25, reloaded.getY(1), 0.0);
+        assertFalse(b.isResident(), "Loading tile_a pushed out tile_b");
+        assertEquals(1, map.getLoads());
+        for (File file : directory.listFiles()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Test //the tiles around the robot stay in memory even when they are the oldest
+    public void testFocusKeepsTilesHot() throws IOException {
+        System.out.println("Starting testFocusKeepsTilesHot...");
+        File directory = Files.createTempDirectory("tiles").toFile();
+        directory.deleteOnExit();
+        TiledMap map = new TiledMap(directory.getPath(), 10.0, 1);
+        LandMark home = landmark("tile_home", 1.0, 1.0);
+        map.add(home);
+        map.focus(5.0, 5.0);
+        LandMark far = landmark("tile_far", 201.0, 1.0);
+        LandMark farther = landmark("tile_farther", 301.0, 1.0);
+        map.add(far);
+        map.add(farther);
+
+        assertTrue(home.isResident());
+        assertFalse(far.isResident());
+        assertEquals(301.0, farther.getCoordinates().get(0).getCloudPointX(), 0.0);
+        for (File file : directory.listFiles()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Test //readers on other threads load and evict tiles while the writer updates landmarks
+    public void testConcurrentReaders() throws IOException, InterruptedException {
+        System.out.println("Starting testConcurrentReaders...");
+        File directory = Files.createTempDirectory("tiles").toFile();
+        directory.deleteOnExit();
+        TiledMap map = new TiledMap(directory.getPath(), 10.0, 1);   //every read of another tile evicts one
+        LandMark[] landmarks = new LandMark[4];
+        for (int i = 0; i < landmarks.length; i++) {
+            landmarks[i] = landmark("tile_busy" + i, 100.0 * i + 1.0, 1.0);
+            landmarks[i].tiledMap = map;
+            map.add(landmarks[i]);
+        }
+        Throwable[] failure = new Throwable[1];
+        Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            int first = r;
+            readers[r] = new Thread(() -> {
+                try {
+                    PointBuffer points = new PointBuffer();
+                    for (int i = 0; i < 2000; i++) {
+                        LandMark landmark = landmarks[(first + i) % landmarks.length];
+                        landmark.copyCoordinates(points);
+                        assertEquals(2, points.size());
+                        assertEquals(1.0, points.getY(0), 0.0);
+                    }
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            });
+            readers[r].start();
+        }
+        PointBuffer same = new PointBuffer();
+        for (int i = 0; i < 2000; i++) {
+            LandMark landmark = landmarks[i % landmarks.length];
+            landmark.copyCoordinates(same);
+            landmark.updateCoordinates(same, LandMark.FusionMode.RUNNING_MEAN);   //the points stay where they are
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertNull(failure[0], "A reader saw a tile half loaded or evicted");
+        assertTrue(map.getEvictions() > 0);
+        assertEquals(501, landmarks[0].getObservations(0));
+        for (File file : directory.listFiles()) {
+            file.deleteOnExit();
+        }
+    }
+}
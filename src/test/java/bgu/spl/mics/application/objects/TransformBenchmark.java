@@ -0,0 +1,87 @@
+package bgu.spl.mics.application.objects;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the old per-point transformToGlobal with TransformKernel.
+ * Not a unit test: run it through main after mvn test-compile, or with
+ * java -cp target/test-classes:target/classes:&lt;test classpath&gt; org.openjdk.jmh.Main TransformBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformBenchmark {
+
+    @Param({"16", "256", "4096"})
+    public int points;
+
+    private ArrayList<CloudPoint> cloud;
+    private Pose pose;
+    private PointBuffer local;
+    private PointBuffer global;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        cloud = new ArrayList<>();
+        for (int i = 0; i < points; i++) {
+            cloud.add(new CloudPoint(random.nextDouble() * 10, random.nextDouble() * 10));
+        }
+        pose = new Pose(1.5f, -2.0f, 37.0f, 1);
+        local = new PointBuffer(points);
+        local.load(cloud);
+        global = new PointBuffer(points);
+    }
+
+    //the transform as FusionSlam did it before the kernel: trig per point, a new CloudPoint per point
+    @Benchmark
+    public ArrayList<CloudPoint> perPoint() {
+        ArrayList<CloudPoint> globalCoordinates = new ArrayList<>();
+        for (CloudPoint localPoint : cloud) {
+            double x = Math.cos(Math.toRadians(pose.getYaw())) * localPoint.getCloudPointX()
+                        - Math.sin(Math.toRadians(pose.getYaw())) * localPoint.getCloudPointY() + pose.getPoseX();
+            double y = Math.sin(Math.toRadians(pose.getYaw())) * localPoint.getCloudPointX()
+                        + Math.cos(Math.toRadians(pose.getYaw())) * localPoint.getCloudPointY() + pose.getPoseY();
+            globalCoordinates.add(new CloudPoint(x, y));
+        }
+        return globalCoordinates;
+    }
+
+    //kernel over buffers that are already loaded
+    @Benchmark
+    public PointBuffer kernel() {
+        TransformKernel.transform(local, pose, global);
+        return global;
+    }
+
+    //kernel including loading the CloudPoint list, which is what processTrackedObject does
+    @Benchmark
+    public PointBuffer kernelWithLoad() {
+        local.load(cloud);
+        TransformKernel.transform(local, pose, global);
+        return global;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(TransformBenchmark.class.getSimpleName()).build()).run();
+    }
+}